@@ -0,0 +1,7 @@
+package uk.ac.jisc.bookshop.Exception;
+
+public class ExportNotFoundException extends RuntimeException{
+    public ExportNotFoundException(String what){
+        super("Could not find export " + what);
+    }
+}
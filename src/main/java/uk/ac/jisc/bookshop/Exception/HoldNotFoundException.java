@@ -0,0 +1,7 @@
+package uk.ac.jisc.bookshop.Exception;
+
+public class HoldNotFoundException extends RuntimeException{
+    public HoldNotFoundException(String id){
+        super("Could not find stock hold " + id);
+    }
+}
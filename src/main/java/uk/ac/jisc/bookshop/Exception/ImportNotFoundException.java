@@ -0,0 +1,7 @@
+package uk.ac.jisc.bookshop.Exception;
+
+public class ImportNotFoundException extends RuntimeException{
+    public ImportNotFoundException(String what){
+        super("Could not find import " + what);
+    }
+}
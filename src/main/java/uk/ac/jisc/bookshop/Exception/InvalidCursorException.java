@@ -0,0 +1,7 @@
+package uk.ac.jisc.bookshop.Exception;
+
+public class InvalidCursorException extends RuntimeException{
+    public InvalidCursorException(String reason){
+        super("invalid cursor: " + reason + ". please restart paging without a cursor");
+    }
+}
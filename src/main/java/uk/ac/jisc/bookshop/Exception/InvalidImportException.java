@@ -0,0 +1,7 @@
+package uk.ac.jisc.bookshop.Exception;
+
+public class InvalidImportException extends RuntimeException{
+    public InvalidImportException(String reason){
+        super("invalid import: " + reason);
+    }
+}
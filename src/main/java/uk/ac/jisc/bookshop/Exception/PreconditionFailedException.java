@@ -0,0 +1,11 @@
+package uk.ac.jisc.bookshop.Exception;
+
+public class PreconditionFailedException extends RuntimeException{
+    public PreconditionFailedException(Long id, String eTag){
+        super("book " + id + " has changed, its etag is now " + eTag);
+    }
+
+    public PreconditionFailedException(Long id){
+        super("Could not find book " + id);
+    }
+}
@@ -0,0 +1,7 @@
+package uk.ac.jisc.bookshop.Exception;
+
+public class ReservationsDisabledException extends RuntimeException{
+    public ReservationsDisabledException(){
+        super("stock reservations are disabled, set bookshop.stock.reservations.enabled=true");
+    }
+}
@@ -0,0 +1,7 @@
+package uk.ac.jisc.bookshop.Exception;
+
+public class StockConflictException extends RuntimeException{
+    public StockConflictException(String reason){
+        super(reason);
+    }
+}
@@ -0,0 +1,7 @@
+package uk.ac.jisc.bookshop.Exception;
+
+public class UnsupportedSortException extends RuntimeException{
+    public UnsupportedSortException(String sort, String reason){
+        super("cannot sort by " + sort + ": " + reason);
+    }
+}
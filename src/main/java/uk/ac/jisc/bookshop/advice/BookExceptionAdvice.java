@@ -1,6 +1,7 @@
 package uk.ac.jisc.bookshop.advice;
 
 import jakarta.validation.ConstraintViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.validation.FieldError;
@@ -10,6 +11,15 @@ import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import uk.ac.jisc.bookshop.Exception.BookNotFoundException;
+import uk.ac.jisc.bookshop.Exception.ExportNotFoundException;
+import uk.ac.jisc.bookshop.Exception.HoldNotFoundException;
+import uk.ac.jisc.bookshop.Exception.ImportNotFoundException;
+import uk.ac.jisc.bookshop.Exception.InvalidCursorException;
+import uk.ac.jisc.bookshop.Exception.InvalidImportException;
+import uk.ac.jisc.bookshop.Exception.PreconditionFailedException;
+import uk.ac.jisc.bookshop.Exception.ReservationsDisabledException;
+import uk.ac.jisc.bookshop.Exception.StockConflictException;
+import uk.ac.jisc.bookshop.Exception.UnsupportedSortException;
 
 import javax.net.ssl.SSLException;
 import java.util.HashMap;
@@ -25,6 +35,77 @@ class BookExceptionAdvice {
         return ex.getMessage();
     }
 
+    @ResponseBody
+    @ExceptionHandler(StockConflictException.class)
+    @ResponseStatus(HttpStatus.CONFLICT)
+    String stockConflictHandler(StockConflictException ex){
+        return ex.getMessage();
+    }
+
+    @ResponseBody
+    @ExceptionHandler(PreconditionFailedException.class)
+    @ResponseStatus(HttpStatus.PRECONDITION_FAILED)
+    String preconditionFailedHandler(PreconditionFailedException ex){
+        return ex.getMessage();
+    }
+
+    //a write based on a version of the book that another one has replaced meanwhile
+    @ResponseBody
+    @ExceptionHandler(OptimisticLockingFailureException.class)
+    @ResponseStatus(HttpStatus.CONFLICT)
+    String optimisticLockingFailureHandler(OptimisticLockingFailureException ex){
+        return "the book was changed by another request, read it again";
+    }
+
+    @ResponseBody
+    @ExceptionHandler(HoldNotFoundException.class)
+    @ResponseStatus(HttpStatus.NOT_FOUND)
+    String holdNotFoundHandler(HoldNotFoundException ex){
+        return ex.getMessage();
+    }
+
+    @ResponseBody
+    @ExceptionHandler(ReservationsDisabledException.class)
+    @ResponseStatus(HttpStatus.NOT_IMPLEMENTED)
+    String reservationsDisabledHandler(ReservationsDisabledException ex){
+        return ex.getMessage();
+    }
+
+    @ResponseBody
+    @ExceptionHandler(InvalidCursorException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    String invalidCursorHandler(InvalidCursorException ex){
+        return ex.getMessage();
+    }
+
+    @ResponseBody
+    @ExceptionHandler(ExportNotFoundException.class)
+    @ResponseStatus(HttpStatus.NOT_FOUND)
+    String exportNotFoundHandler(ExportNotFoundException ex){
+        return ex.getMessage();
+    }
+
+    @ResponseBody
+    @ExceptionHandler(ImportNotFoundException.class)
+    @ResponseStatus(HttpStatus.NOT_FOUND)
+    String importNotFoundHandler(ImportNotFoundException ex){
+        return ex.getMessage();
+    }
+
+    @ResponseBody
+    @ExceptionHandler(InvalidImportException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    String invalidImportHandler(InvalidImportException ex){
+        return ex.getMessage();
+    }
+
+    @ResponseBody
+    @ExceptionHandler(UnsupportedSortException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    String unsupportedSortHandler(UnsupportedSortException ex){
+        return ex.getMessage();
+    }
+
     //jsr303 validation
     @ResponseBody
     @ResponseStatus(HttpStatus.BAD_REQUEST)
@@ -0,0 +1,107 @@
+package uk.ac.jisc.bookshop.cache;
+
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jackson.Jackson2ObjectMapperBuilderCustomizer;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.stereotype.Component;
+import uk.ac.jisc.bookshop.domain.Book;
+import uk.ac.jisc.bookshop.serialiser.CachingBookSerializer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the json of single books, so that a book read again is written into the
+ * response as the json it was serialised to the first time. An entry only serves the version of
+ * the book it was written from, a write the cache was not told about never showing stale json,
+ * and holds the json of each way of serialising the book that has been asked for.
+ * Installed in the application's object mapper, which makes every response holding books use it.
+ */
+@Component
+public class BookJsonCache implements Jackson2ObjectMapperBuilderCustomizer {
+
+    public static final String NAME = "books.json";
+
+    private final Cache<Long, Entry> cache;
+
+    @Autowired
+    public BookJsonCache(MeterRegistry meterRegistry,
+                         @Value("${bookshop.books.json-cache.max-bytes:67108864}") long maxBytes) {
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Long id, Entry entry) -> entry.weight())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, NAME);
+    }
+
+    @Override
+    public void customize(Jackson2ObjectMapperBuilder builder) {
+        builder.postConfigurer(objectMapper -> objectMapper.registerModule(new SimpleModule(NAME).setSerializerModifier(new BeanSerializerModifier() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public JsonSerializer<?> modifySerializer(SerializationConfig config, BeanDescription description, JsonSerializer<?> serializer) {
+                return description.getBeanClass() == Book.class
+                        ? new CachingBookSerializer((JsonSerializer<Object>) serializer, BookJsonCache.this)
+                        : serializer;
+            }
+        })));
+    }
+
+    /**
+     * @param variant what besides the book decides its json, equal for equal json
+     * @return the json of the book at its version, null when there is none
+     */
+    public SerializedString get(Book book, Object variant) {
+        Entry entry = cache.getIfPresent(book.getId());
+        return entry != null && entry.version() == book.getVersion() ? entry.json().get(variant) : null;
+    }
+
+    //json of an older version than the cached one is dropped
+    public void put(Book book, Object variant, SerializedString json) {
+        cache.asMap().compute(book.getId(), (id, entry) -> entry == null || entry.version() < book.getVersion()
+                ? new Entry(book.getVersion(), Map.of(variant, json))
+                : entry.version() == book.getVersion() ? entry.with(variant, json) : entry);
+    }
+
+    /**
+     * @return whether there is json of the book at its version, however serialised
+     */
+    public boolean contains(Book book) {
+        Entry entry = cache.getIfPresent(book.getId());
+        return entry != null && entry.version() == book.getVersion();
+    }
+
+    public void invalidate(Long id) {
+        cache.invalidate(id);
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    private record Entry(long version, Map<Object, SerializedString> json) {
+
+        Entry with(Object variant, SerializedString value) {
+            Map<Object, SerializedString> variants = new HashMap<>(json);
+            variants.put(variant, value);
+            return new Entry(version, Map.copyOf(variants));
+        }
+
+        //the text and its utf-8 encoding
+        int weight() {
+            return json.values().stream().mapToInt(value -> value.charLength() + value.asUnquotedUTF8().length).sum();
+        }
+    }
+}
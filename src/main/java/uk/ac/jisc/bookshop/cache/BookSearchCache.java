@@ -0,0 +1,242 @@
+package uk.ac.jisc.bookshop.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.apache.commons.collections4.CollectionUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import uk.ac.jisc.bookshop.domain.Book;
+import uk.ac.jisc.bookshop.domain.Isbn;
+import uk.ac.jisc.bookshop.nondomain.BookField;
+import uk.ac.jisc.bookshop.nondomain.BookRow;
+import uk.ac.jisc.bookshop.nondomain.BookSearchArgument;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Bounded cache of search results, keyed on a canonical form of the search argument.
+ * Each write bumps a generation and is logged with the book before and after it. An entry is
+ * stamped with the generation it was read at and, once writes have come after it, only served
+ * when none of them matches its filters, since those are the only writes that can add to,
+ * remove from or reorder its results. A change of stock alone is logged with the id of the book
+ * and only touches the entries showing it or ordered by stock level. An entry older than the log simply misses and is replaced,
+ * Caffeine evicting what is not, so that writes never sweep the cache or take a lock.
+ */
+@Component
+public class BookSearchCache {
+
+    public static final String NAME = "books.search";
+
+    //writes kept for checking entries read before them
+    private static final int MAX_WRITES = 256;
+
+    //books, or rows of the selected fields when the argument has any
+    private final Cache<SearchKey, Entry> cache;
+
+    //bumped by every write
+    private final AtomicLong generation = new AtomicLong();
+
+    //the latest writes by their generation
+    private final Map<Long, Write> writes = new ConcurrentHashMap<>();
+
+    @Autowired
+    public BookSearchCache(MeterRegistry meterRegistry,
+                           @Value("${bookshop.search.cache.max-size:10000}") long maxSize,
+                           @Value("${bookshop.search.cache.ttl:60s}") Duration ttl) {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, NAME);
+        Gauge.builder(NAME + ".hit.ratio", cache, c -> c.stats().hitRate()).register(meterRegistry);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> List<T> get(BookSearchArgument argument, Supplier<List<T>> search) {
+        SearchKey key = SearchKey.of(argument);
+        long current = generation.get();
+        Entry cached = cache.getIfPresent(key);
+        if (cached != null && isCurrent(key, cached, current)) {
+            return (List<T>) cached.result();
+        }
+        //a write racing with the search comes after the stamp, so the next read checks it
+        List<T> result = Collections.unmodifiableList(new ArrayList<>(search.get()));
+        cache.put(key, new Entry(current, result));
+        return result;
+    }
+
+    /**
+     * @param before the state of the book before the write, null for a new book
+     * @param after the state of the book after the write, null for a deleted book
+     */
+    public void invalidate(Book before, Book after) {
+        //copies, as the entries are checked against the write later on
+        log(new Write(before == null ? null : (Book) before.clone(), after == null ? null : (Book) after.clone(), null, false));
+    }
+
+    /**
+     * A change to the stock level of a book and nothing else, which leaves it matching the same filters.
+     */
+    public void invalidateStock(Long id) {
+        log(new Write(null, null, id, false));
+    }
+
+    public void invalidateAll() {
+        log(new Write(null, null, null, true));
+    }
+
+    //counts the writes since the start, which lets a listing of the catalog tell whether it has changed
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    private void log(Write write) {
+        long stamp = generation.incrementAndGet();
+        writes.put(stamp, write);
+        writes.remove(stamp - MAX_WRITES);
+    }
+
+    //restamps an entry no write has touched, so that the writes are checked against it once
+    private boolean isCurrent(SearchKey key, Entry entry, long current) {
+        if (entry.generation() == current) {
+            return true;
+        }
+        if (current - entry.generation() >= MAX_WRITES) {
+            return false;
+        }
+        for (long stamp = entry.generation() + 1; stamp <= current; stamp++) {
+            //a write missing from the log is one being logged or already dropped from it
+            Write write = writes.get(stamp);
+            if (write == null || write.touches(key, entry.result())) {
+                return false;
+            }
+        }
+        cache.asMap().replace(key, entry, new Entry(current, entry.result()));
+        return true;
+    }
+
+    private record Entry(long generation, List<?> result) {
+    }
+
+    private record Write(Book before, Book after, Long stockOf, boolean all) {
+
+        boolean touches(SearchKey key, List<?> result) {
+            if (all) {
+                return true;
+            }
+            if (stockOf != null) {
+                return key.sortsByStockLevel() || result.stream().anyMatch(row -> stockOf.equals(
+                        row instanceof Book book ? book.getId() : row instanceof BookRow bookRow ? bookRow.getId() : null));
+            }
+            return key.matches(before) || key.matches(after);
+        }
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    //searches with equal keys return the same results
+    public record SearchKey(String title, String author, BigDecimal priceFrom, BigDecimal priceTo,
+                     LocalDate dateStart, LocalDate dateEnd, List<String> formats, List<String> categories,
+                     String isbn, int page, int size, String sorts, String cursor, List<BookField> fields, boolean fuzzy) {
+
+        public static SearchKey of(BookSearchArgument argument) {
+            return new SearchKey(
+                    StringUtils.hasText(argument.getTitle()) ? argument.getTitle().toUpperCase(Locale.ROOT) : null,
+                    StringUtils.hasText(argument.getAuthor()) ? argument.getAuthor().toUpperCase(Locale.ROOT) : null,
+                    positive(argument.getPriceFrom()),
+                    positive(argument.getPriceTo()),
+                    argument.getPublicationDateStart(),
+                    argument.getPublicationDateEnd(),
+                    sorted(argument.getFormats()),
+                    sorted(argument.getCategories()),
+                    isbn(argument.getIsbn()),
+                    argument.getPage(),
+                    argument.getSize(),
+                    sorts(argument.getSorts()),
+                    argument.getCursor() == null ? null : argument.getCursor().encode(),
+                    argument.getFields() == null ? null : List.copyOf(argument.getFields()),
+                    argument.isFuzzy());
+        }
+
+        //same filters as the criteria search, wildcards and fuzzy or word matched text filters are assumed to match
+        boolean matches(Book book) {
+            if (book == null) {
+                return false;
+            }
+            boolean words = fuzzy || BookSearchArgument.RELEVANCE.equals(sorts);
+            return (words || contains(book.getTitle(), title, true))
+                    && (words || contains(book.getAuthor(), author, true))
+                    && (priceFrom == null || book.getPrice() != null && book.getPrice().compareTo(priceFrom) >= 0)
+                    && (priceTo == null || book.getPrice() != null && book.getPrice().compareTo(priceTo) <= 0)
+                    && (dateStart == null || book.getPublishedDate() != null && !book.getPublishedDate().isBefore(dateStart))
+                    && (dateEnd == null || book.getPublishedDate() != null && !book.getPublishedDate().isAfter(dateEnd))
+                    && (formats == null || book.getFormat() != null && formats.contains(book.getFormat().name()))
+                    && (categories == null || book.getCategory() != null && categories.contains(book.getCategory().name()))
+                    && matchesIsbn(book);
+        }
+
+        boolean sortsByStockLevel() {
+            return sorts != null && sorts.contains("stockLevel:");
+        }
+
+        private boolean matchesIsbn(Book book) {
+            Long isbn13 = Isbn.toIsbn13(isbn);
+            return isbn13 != null ? isbn13.equals(book.getIsbn13()) : contains(book.getIsbn(), isbn, false);
+        }
+
+        private static boolean contains(String value, String pattern, boolean ignoreCase) {
+            if (pattern == null || pattern.contains("%") || pattern.contains("_")) {
+                return true;
+            }
+            return value != null && (ignoreCase ? value.toUpperCase(Locale.ROOT) : value).contains(pattern);
+        }
+
+        private static String isbn(String isbn) {
+            Long isbn13 = Isbn.toIsbn13(isbn);
+            return isbn13 != null ? isbn13.toString() : isbn;
+        }
+
+        private static BigDecimal positive(BigDecimal value) {
+            return value != null && value.compareTo(BigDecimal.ZERO) > 0 ? value.stripTrailingZeros() : null;
+        }
+
+        private static List<String> sorted(Collection<? extends Enum<?>> values) {
+            return CollectionUtils.isEmpty(values) ? null
+                    : values.stream().map(Enum::name).distinct().sorted().collect(Collectors.toList());
+        }
+
+        //a trailing id ascending order is the tie breaker the search appends anyway, ignoring case or not as ids have none,
+        //and nothing after relevance is used
+        private static String sorts(Sort sorts) {
+            if (sorts == null) {
+                return null;
+            }
+            if (BookSearchArgument.isRelevance(sorts)) {
+                return BookSearchArgument.RELEVANCE;
+            }
+            List<String> orders = sorts.stream()
+                    .map(order -> order.getProperty() + ":" + order.getDirection() + (order.isIgnoreCase() ? ":i" : ""))
+                    .collect(Collectors.toCollection(ArrayList::new));
+            if (orders.size() > 1 && orders.get(orders.size() - 1).matches("id:ASC(:i)?")) {
+                orders.remove(orders.size() - 1);
+            }
+            return String.join(",", orders);
+        }
+    }
+}
@@ -1,45 +1,130 @@
 package uk.ac.jisc.bookshop.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.Max;
 import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Size;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.ReflectionUtils;
+import org.springframework.util.StringUtils;
 import org.springframework.validation.FieldError;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.WebDataBinder;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.AsyncRequestTimeoutException;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import uk.ac.jisc.bookshop.Exception.BookNotFoundException;
+import uk.ac.jisc.bookshop.Exception.HoldNotFoundException;
+import uk.ac.jisc.bookshop.Exception.ImportNotFoundException;
+import uk.ac.jisc.bookshop.Exception.InvalidCursorException;
+import uk.ac.jisc.bookshop.Exception.PreconditionFailedException;
+import uk.ac.jisc.bookshop.Exception.ReservationsDisabledException;
 import uk.ac.jisc.bookshop.dao.BookRepository;
 import uk.ac.jisc.bookshop.domain.Book;
 import uk.ac.jisc.bookshop.domain.Category;
 import uk.ac.jisc.bookshop.domain.Format;
+import uk.ac.jisc.bookshop.domain.Isbn;
+import uk.ac.jisc.bookshop.index.BookCatalogIndex;
+import uk.ac.jisc.bookshop.nondomain.BatchSearchQuery;
+import uk.ac.jisc.bookshop.nondomain.BookField;
+import uk.ac.jisc.bookshop.nondomain.BookFieldRequestParamConverter;
+import uk.ac.jisc.bookshop.nondomain.BookLookup;
+import uk.ac.jisc.bookshop.nondomain.BookRow;
 import uk.ac.jisc.bookshop.nondomain.BookSearchArgument;
+import uk.ac.jisc.bookshop.nondomain.BulkResult;
 import uk.ac.jisc.bookshop.nondomain.CategoryRequestParamConverter;
+import uk.ac.jisc.bookshop.nondomain.CountMode;
+import uk.ac.jisc.bookshop.nondomain.CountModeRequestParamConverter;
+import uk.ac.jisc.bookshop.nondomain.ExportFormat;
+import uk.ac.jisc.bookshop.nondomain.ExportFormatRequestParamConverter;
+import uk.ac.jisc.bookshop.nondomain.ExportManifest;
 import uk.ac.jisc.bookshop.nondomain.FormatRequestParamConverter;
+import uk.ac.jisc.bookshop.nondomain.ImportFormat;
+import uk.ac.jisc.bookshop.nondomain.ImportFormatRequestParamConverter;
+import uk.ac.jisc.bookshop.nondomain.ImportProgress;
+import uk.ac.jisc.bookshop.nondomain.SearchCursor;
+import uk.ac.jisc.bookshop.nondomain.SearchFacets;
+import uk.ac.jisc.bookshop.nondomain.SearchResult;
+import uk.ac.jisc.bookshop.nondomain.SortField;
+import uk.ac.jisc.bookshop.nondomain.StockHold;
+import uk.ac.jisc.bookshop.nondomain.StockLevel;
+import uk.ac.jisc.bookshop.nondomain.SuggestField;
+import uk.ac.jisc.bookshop.nondomain.SuggestFieldRequestParamConverter;
+import uk.ac.jisc.bookshop.service.BookBulkService;
+import uk.ac.jisc.bookshop.service.BookExportService;
+import uk.ac.jisc.bookshop.service.BookImportService;
 import uk.ac.jisc.bookshop.service.BookRepositoryService;
+import uk.ac.jisc.bookshop.stock.StockReservationEngine;
 
 import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Field;
 import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @Validated
 @RestController
 public class BookStoreController {
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    public static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+    public static final int MAX_BATCH_SEARCHES = 20;
+    public static final int MAX_LOOKUP_IDS = 1000;
+    private static final String STREAM_TIMEOUT_KEY = BookStoreController.class.getName() + ".streamTimeout";
+    public static final int MAX_BULK_BOOKS = 10000;
+    public static final String CHECKSUM_HEADER = "X-Checksum-CRC32C";
+    public static final int MAX_STOCK_CHANGE = 1000000;
+
     private final BookRepository bookRepository;
 
     private BookRepositoryService bookRepositoryService;
 
+    private ObjectMapper objectMapper;
+
+    private BookBulkService bookBulkService;
+
+    private BookImportService bookImportService;
+
+    private BookExportService bookExportService;
+
+    private StockReservationEngine stockReservations;
+
+    //how long streaming the catalog may go without writing a row, after which the stream is cut and its cursor closed
+    @Value("${bookshop.books.stream-idle-timeout:1m}")
+    private Duration streamIdleTimeout = Duration.ofMinutes(1);
 
     public BookRepository getBookRepository() {
         return bookRepository;
@@ -53,25 +138,104 @@ public class BookStoreController {
         this.bookRepositoryService = bookRepositoryService;
     }
 
+    @Autowired
+    public void setObjectMapper(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @Autowired
+    public void setBookBulkService(BookBulkService bookBulkService) {
+        this.bookBulkService = bookBulkService;
+    }
+
+    @Autowired
+    public void setBookImportService(BookImportService bookImportService) {
+        this.bookImportService = bookImportService;
+    }
+
+    @Autowired
+    public void setBookExportService(BookExportService bookExportService) {
+        this.bookExportService = bookExportService;
+    }
+
+    //only there when bookshop.stock.reservations.enabled is set
+    @Autowired(required = false)
+    public void setStockReservations(StockReservationEngine stockReservations) {
+        this.stockReservations = stockReservations;
+    }
+
     public BookStoreController(BookRepository bookRepository) {
         this.bookRepository = bookRepository;
     }
 
 
 
+    /**
+     * Streams the catalog row by row instead of building the whole list first, as a json array
+     * or as newline delimited json when the client asks for application/x-ndjson.
+     * With fields, only those columns are read and written. An Accept header that cannot be parsed
+     * gets the json array. The async request timeout does not apply, a big catalog taking as long
+     * as it takes, but a stream going longer than the idle timeout without writing a row is cut
+     * short, its json left unterminated so that it is not mistaken for the whole catalog.
+     */
     @GetMapping("/books")
-    public ResponseEntity<List<Book>> all(){
-        return new ResponseEntity<List<Book>>(bookRepository.findAll(), HttpStatus.OK);
+    public ResponseEntity<StreamingResponseBody> all(@RequestHeader(required = false,value = HttpHeaders.ACCEPT) String accept,
+                                                     @RequestParam(required = false,name = "fields") List<BookField> fields,
+                                                     WebRequest request){
+        if(request.checkNotModified(bookRepositoryService.catalogETag())){
+            return null;
+        }
+        boolean ndjson;
+        try {
+            ndjson = accept != null && MediaType.parseMediaTypes(accept).stream().anyMatch(APPLICATION_NDJSON::equalsTypeAndSubtype);
+        } catch (InvalidMediaTypeException e) {
+            ndjson = false;
+        }
+        WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(STREAM_TIMEOUT_KEY, new CallableProcessingInterceptor() {
+            @Override
+            public <T> void beforeConcurrentHandling(NativeWebRequest webRequest, Callable<T> task) {
+                ((AsyncWebRequest) webRequest).setTimeout(-1L);
+            }
+        });
+        boolean asNdjson = ndjson;
+        StreamingResponseBody body = out -> writeCatalog(out, asNdjson, fields);
+        return ResponseEntity.ok().contentType(asNdjson ? APPLICATION_NDJSON : MediaType.APPLICATION_JSON).body(body);
+    }
+
+    /**
+     * Resolves up to {@value #MAX_LOOKUP_IDS} ids in one request, in the order asked for,
+     * listing the ids that have no book rather than failing.
+     */
+    @GetMapping(value = "/books", params = "ids")
+    public ResponseEntity<BookLookup> getByIds(@RequestParam(name = "ids") @NotEmpty @Size(max = MAX_LOOKUP_IDS) List<@NotNull Long> ids, WebRequest request){
+        if(request.checkNotModified(bookRepositoryService.catalogETag())){
+            return null;
+        }
+        return new ResponseEntity<BookLookup>(bookRepositoryService.findBooksByIds(ids), HttpStatus.OK);
     }
 
+    //same as GET /books?ids= for lists too long for a url
+    @PostMapping("/books/ids")
+    public ResponseEntity<BookLookup> postByIds(@RequestBody @NotEmpty @Size(max = MAX_LOOKUP_IDS) List<@NotNull Long> ids){
+        return new ResponseEntity<BookLookup>(bookRepositoryService.findBooksByIds(ids), HttpStatus.OK);
+    }
+
+    /**
+     * A book with its version as a strong etag, answering 304 without a body when it is the one
+     * in If-None-Match.
+     */
     @GetMapping("/book/{id}")
-    public @ResponseBody Book getById(@PathVariable Long id){
-        return bookRepository.findById(id).orElseThrow(
+    public ResponseEntity<Book> getById(@PathVariable Long id, WebRequest request){
+        Book book = bookRepository.findById(id).orElseThrow(
                 ()-> new BookNotFoundException(id));
+        if(request.checkNotModified(eTag(book))){
+            return null;
+        }
+        return new ResponseEntity<Book>(book, HttpStatus.OK);
     }
 
     @GetMapping("/search")
-    public ResponseEntity<List<Book>> getBooks(@RequestParam(required = false) String title, @RequestParam(required = false)String author,
+    public ResponseEntity<?> getBooks(@RequestParam(required = false) String title, @RequestParam(required = false)String author,
                                @RequestParam(required = false)@Min(0) Integer priceStart, @RequestParam(required = false)@Min(0)Integer priceEnd,
                                @RequestParam(required = false,name="dateStart") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)LocalDate publicationDateStart,
                                @RequestParam(required = false,name="dateEnd")  @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate publicationDateEnd,
@@ -80,15 +244,25 @@ public class BookStoreController {
                                @RequestParam(required = false,name="isbn") String isbn,
                                @RequestParam(required = false,name="page", defaultValue = "0") int page,
                                @RequestParam(required = false,name ="size", defaultValue = "10") int size,
-                               @RequestParam(required = false,value = "sort", defaultValue = "title;desc") String[] sortBy
+                               @RequestParam(required = false,value = "sort", defaultValue = "title;desc") String[] sortBy,
+                               @RequestParam(required = false,name = "cursor") String cursor,
+                               @RequestParam(required = false,name = "count") CountMode count,
+                               @RequestParam(required = false,name = "fields") List<BookField> fields,
+                               @RequestParam(required = false,name = "fuzzy", defaultValue = "false") boolean fuzzy,
+                               WebRequest request
                                 ){
-        Sort sorts = Sort.by(Arrays.stream(sortBy).map(sort -> sort.split(";",2)).map(array -> new Sort.Order(replaceOrderStringThroughDirection(array[1]),array[0]).ignoreCase()).collect(Collectors.toList()));
+        if(request.checkNotModified(bookRepositoryService.catalogETag())){
+            return null;
+        }
+        Sort sorts = toSort(sortBy);
         BookSearchArgument argument = inialiseSearchArgument(title, author, priceStart, priceEnd,publicationDateStart,publicationDateEnd, formats, categories, isbn, page, size,sorts);
-        return new ResponseEntity<List<Book>>(bookRepositoryService.findBookBySearchArgument(argument), HttpStatus.OK);
+        argument.setFields(fields);
+        argument.setFuzzy(fuzzy);
+        return search(argument, cursor, count);
     }
 
     @GetMapping("/search2")
-    public ResponseEntity<List<Book>> searchBooks(@RequestParam(required = false) String title, @RequestParam(required = false)String author,
+    public ResponseEntity<?> searchBooks(@RequestParam(required = false) String title, @RequestParam(required = false)String author,
                                                @RequestParam(required = false)@Min(0) Integer priceStart, @RequestParam(required = false)@Min(0)Integer priceEnd,
                                                @RequestParam(required = false,name="dateStart") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)LocalDate publicationDateStart,
                                                @RequestParam(required = false,name="dateEnd")  @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate publicationDateEnd,
@@ -97,9 +271,23 @@ public class BookStoreController {
                                                @RequestParam(required = false,name="isbn") String isbn,
                                                @RequestParam(required = false,name="page", defaultValue = "0") int page,
                                                @RequestParam(required = false,name ="size", defaultValue = "10") int size,
-                                               @RequestParam(required = false,value = "sort", defaultValue = "title;desc") String[] sortBy
+                                               @RequestParam(required = false,value = "sort", defaultValue = "title;desc") String[] sortBy,
+                                               @RequestParam(required = false,name = "cursor") String cursor,
+                                               @RequestParam(required = false,name = "count") CountMode count,
+                                               @RequestParam(required = false,name = "fields") List<BookField> fields,
+                                               WebRequest request
     ){
-        Sort sorts = Sort.by(Arrays.stream(sortBy).map(sort -> sort.split(";",2)).map(array -> new Sort.Order(replaceOrderStringThroughDirection(array[1]),array[0]).ignoreCase()).collect(Collectors.toList()));
+        if(request.checkNotModified(bookRepositoryService.catalogETag())){
+            return null;
+        }
+        Sort sorts = toSort(sortBy);
+        if(cursor != null || count != null || fields != null || BookSearchArgument.isRelevance(sorts)){
+            //keyset paging, slices, projections and relevance cannot be expressed in the native query, answer them through the criteria search instead
+            //an empty cursor starts keyset paging from the first page
+            BookSearchArgument argument = inialiseSearchArgument(title, author, priceStart, priceEnd,publicationDateStart,publicationDateEnd, formats, categories, isbn, page, size,sorts);
+            argument.setFields(fields);
+            return search(argument, cursor, count);
+        }
         Pageable pageable = PageRequest.of(page,size,sorts);
 
         //TODO use enum collection in jpa query got  "Cannot invoke "org.hibernate.metamodel.mapping.JdbcMapping.getJdbcValueBinder()" because "jdbcMapping" is null "
@@ -111,18 +299,147 @@ public class BookStoreController {
                 format2,
                 categoriesString,
                 isbn,
+                Isbn.toIsbn13(isbn),
                 pageable);
         return new ResponseEntity<List<Book>>(result, HttpStatus.OK);
     }
 
+    /**
+     * Runs up to {@value #MAX_BATCH_SEARCHES} searches in one request, each one with the same
+     * parameters and defaults as /search, and answers the list of books of each in turn.
+     */
+    @PostMapping("/search/batch")
+    public ResponseEntity<List<List<Book>>> searchBatch(@RequestBody @NotEmpty @Size(max = MAX_BATCH_SEARCHES) List<@Valid BatchSearchQuery> queries){
+        List<BookSearchArgument> arguments = new ArrayList<>(queries.size());
+        for (BatchSearchQuery query : queries) {
+            Sort sorts = toSort(Optional.ofNullable(query.getSort()).orElse(List.of()).toArray(new String[0]));
+            BookSearchArgument argument = inialiseSearchArgument(query.getTitle(), query.getAuthor(), query.getPriceStart(), query.getPriceEnd(),
+                    query.getDateStart(), query.getDateEnd(), query.getFormat(), query.getCategory(), query.getIsbn(), query.getPage(), query.getSize(), sorts);
+            argument.setFuzzy(query.isFuzzy());
+            arguments.add(argument);
+        }
+        return new ResponseEntity<List<List<Book>>>(bookRepositoryService.findBooksBySearchArguments(arguments), HttpStatus.OK);
+    }
+
+    //counts per format, category, price band and year of the books matching the same filters as /search
+    @GetMapping("/search/facets")
+    public ResponseEntity<SearchFacets> getFacets(@RequestParam(required = false) String title, @RequestParam(required = false)String author,
+                                                  @RequestParam(required = false)@Min(0) Integer priceStart, @RequestParam(required = false)@Min(0)Integer priceEnd,
+                                                  @RequestParam(required = false,name="dateStart") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)LocalDate publicationDateStart,
+                                                  @RequestParam(required = false,name="dateEnd")  @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate publicationDateEnd,
+                                                  @RequestParam(required = false,name="format") List<Format> formats,
+                                                  @RequestParam(required = false,name="category") List<Category> categories,
+                                                  @RequestParam(required = false,name="isbn") String isbn,
+                                                  @RequestParam(required = false,name = "fuzzy", defaultValue = "false") boolean fuzzy,
+                                                  WebRequest request
+    ){
+        if(request.checkNotModified(bookRepositoryService.catalogETag())){
+            return null;
+        }
+        BookSearchArgument argument = inialiseSearchArgument(title, author, priceStart, priceEnd,publicationDateStart,publicationDateEnd, formats, categories, isbn, 0, 0, null);
+        argument.setFuzzy(fuzzy);
+        return new ResponseEntity<SearchFacets>(bookRepositoryService.facets(argument), HttpStatus.OK);
+    }
+
+    @GetMapping("/suggest")
+    public ResponseEntity<List<String>> suggest(@RequestParam(required = false,name = "prefix", defaultValue = "") String prefix,
+                                                @RequestParam(required = false,name = "field", defaultValue = "title") SuggestField field,
+                                                @RequestParam(required = false,name = "limit", defaultValue = "10") @Min(1) @Max(BookCatalogIndex.MAX_SUGGESTIONS) int limit,
+                                                WebRequest request){
+        if(request.checkNotModified(bookRepositoryService.catalogETag())){
+            return null;
+        }
+        return new ResponseEntity<List<String>>(bookRepositoryService.suggest(field, prefix, limit), HttpStatus.OK);
+    }
+
+    /**
+     * Saves up to {@value #MAX_BULK_BOOKS} books in one request. Each book is validated and
+     * saved on its own merits, the response counting those saved and telling why the others were not.
+     */
+    @PostMapping("/books/bulk")
+    public ResponseEntity<BulkResult> addBooks(@RequestBody @NotEmpty @Size(max = MAX_BULK_BOOKS) List<Book> books){
+        return new ResponseEntity<BulkResult>(bookBulkService.saveAll(books), HttpStatus.OK);
+    }
+
+    /**
+     * Imports a csv or newline delimited json catalog from the request body, saving it chunk by
+     * chunk as it arrives rather than reading it whole first. Rows that cannot be parsed or are
+     * invalid are reported by line number and the others still saved.
+     */
+    @PostMapping(value = "/books/import", params = "!file", consumes = {"text/csv", "application/x-ndjson"})
+    public ResponseEntity<ImportProgress> importBooks(@RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType, InputStream body){
+        ImportFormat format = ImportFormat.fromMediaType(MediaType.parseMediaType(contentType));
+        return new ResponseEntity<ImportProgress>(bookImportService.importStream(body, format), HttpStatus.OK);
+    }
+
+    /**
+     * Starts importing a file of the import directory in the background, the progress being
+     * followed at the returned location.
+     * @param format when the file extension does not tell it
+     */
+    @PostMapping(value = "/books/import", params = "file")
+    public ResponseEntity<ImportProgress> importFile(@RequestParam(name = "file") String file,
+                                                     @RequestParam(required = false,name = "format") ImportFormat format){
+        ImportProgress progress = bookImportService.startFileImport(file, format);
+        return ResponseEntity.accepted().header(HttpHeaders.LOCATION, "/books/import/" + progress.getId()).body(progress);
+    }
+
+    @GetMapping("/books/import/{id}")
+    public ResponseEntity<ImportProgress> importProgress(@PathVariable String id){
+        return new ResponseEntity<ImportProgress>(bookImportService.progress(id).orElseThrow(() -> new ImportNotFoundException(id)), HttpStatus.OK);
+    }
+
+    /**
+     * Starts exporting the whole catalog in the background into checksummed chunk files, the
+     * manifest listing them being followed at the returned location.
+     */
+    @PostMapping("/books/export")
+    public ResponseEntity<ExportManifest> exportBooks(@RequestParam(required = false,name = "format",defaultValue = "ndjson") ExportFormat format){
+        ExportManifest manifest = bookExportService.startExport(format);
+        return ResponseEntity.accepted().header(HttpHeaders.LOCATION, "/books/export/" + manifest.getId()).body(manifest);
+    }
+
+    @PostMapping("/books/export/{id}/resume")
+    public ResponseEntity<ExportManifest> resumeExport(@PathVariable String id){
+        ExportManifest manifest = bookExportService.resume(id);
+        return ResponseEntity.accepted().header(HttpHeaders.LOCATION, "/books/export/" + manifest.getId()).body(manifest);
+    }
+
+    @GetMapping("/books/export/{id}")
+    public ResponseEntity<ExportManifest> exportManifest(@PathVariable String id){
+        return new ResponseEntity<ExportManifest>(bookExportService.manifest(id), HttpStatus.OK);
+    }
+
+    /**
+     * One chunk file of an export, with its crc32c. Range requests are honoured, so that an
+     * interrupted download carries on where it stopped.
+     */
+    @GetMapping("/books/export/{id}/chunks/{index}")
+    public ResponseEntity<Resource> exportChunk(@PathVariable String id, @PathVariable int index){
+        ExportManifest manifest = bookExportService.manifest(id);
+        Path file = bookExportService.chunk(id, index);
+        return ResponseEntity.ok()
+                .contentType(manifest.getFormat().getMediaType())
+                .header(CHECKSUM_HEADER, manifest.getChunks().get(index).getCrc32c())
+                .body(new FileSystemResource(file));
+    }
+
     @PostMapping("/book")
     public  ResponseEntity<Book> addBook(@Valid @RequestBody Book book){
-        return new ResponseEntity(bookRepository.save(book),HttpStatus.CREATED);
+        Book savedBook = bookRepository.save(book);
+        bookRepositoryService.afterSave(savedBook);
+        return ResponseEntity.status(HttpStatus.CREATED).eTag(eTag(savedBook)).body(savedBook);
     }
 
+    /**
+     * Replaces a book, or creates it when there is none. With If-Match, the book is only replaced
+     * when its etag is one of those given, answering 412 otherwise.
+     */
     @PutMapping("/book/{id}")
-    public ResponseEntity<Book> updateBook(@PathVariable("id") Long id, @RequestBody @Valid Book newBook){
+    public ResponseEntity<Book> updateBook(@PathVariable("id") Long id, @RequestBody @Valid Book newBook, WebRequest request){
         return bookRepository.findById(id).map(book ->{
+            checkIfMatch(request, id, book);
+            Book before = (Book) book.clone();
             book.setTitle(newBook.getTitle());
             book.setAuthor(newBook.getAuthor());
             book.setFormat(newBook.getFormat());
@@ -132,27 +449,128 @@ public class BookStoreController {
             book.setIsbn(newBook.getIsbn());
             book.setStockLevel(newBook.getStockLevel());
             Book savedBook = bookRepository.saveAndFlush(book);
-            return new ResponseEntity(savedBook,HttpStatus.OK);
+            bookRepositoryService.afterSave(before, savedBook, true);
+            return ResponseEntity.ok().eTag(eTag(savedBook)).body(savedBook);
         }).orElseGet(()-> {
-            return new ResponseEntity(bookRepository.save(newBook),HttpStatus.CREATED);
+            checkIfMatch(request, id, null);
+            Book savedBook = bookRepository.save(newBook);
+            bookRepositoryService.afterSave(savedBook);
+            return ResponseEntity.status(HttpStatus.CREATED).eTag(eTag(savedBook)).body(savedBook);
         });
 
     }
 
     @PatchMapping("/book/{id}/{stockLevel}")
-    @ResponseStatus(HttpStatus.OK)
-    public @ResponseBody Book updateBookPartially(@PathVariable @Min(0) Long id, @PathVariable @Min(0) Integer stockLevel){
+    public ResponseEntity<Book> updateBookPartially(@PathVariable @Min(0) Long id, @PathVariable @Min(0) Integer stockLevel, WebRequest request){
         return bookRepository.findById(id).map(book-> {
+            checkIfMatch(request, id, book);
+            Book before = (Book) book.clone();
             book.setStockLevel(stockLevel);
-            return bookRepository.save(book);
+            Book savedBook = bookRepository.save(book);
+            bookRepositoryService.afterSave(before, savedBook, true);
+            return ResponseEntity.ok().eTag(eTag(savedBook)).body(savedBook);
         }).orElseThrow(()-> new BookNotFoundException(id));
     }
 
+    /**
+     * Sells stock of a book in one conditional update, answering 409 when there is not enough of it
+     * rather than reading the level first, so that concurrent sales cannot oversell.
+     */
+    @PostMapping("/book/{id}/stock/decrement")
+    public ResponseEntity<StockLevel> decrementStock(@PathVariable @Min(0) Long id,
+                                                     @RequestParam(required = false,name = "by",defaultValue = "1") @Min(1) @Max(MAX_STOCK_CHANGE) int by){
+        if(stockReservations != null){
+            return new ResponseEntity<StockLevel>(stockReservations.sell(id, by), HttpStatus.OK);
+        }
+        StockLevel level = bookRepositoryService.decrementStock(id, by);
+        bookRepositoryService.afterStockChange(level);
+        return new ResponseEntity<StockLevel>(level, HttpStatus.OK);
+    }
+
+    @PostMapping("/book/{id}/stock/increment")
+    public ResponseEntity<StockLevel> incrementStock(@PathVariable @Min(0) Long id,
+                                                     @RequestParam(required = false,name = "by",defaultValue = "1") @Min(1) @Max(MAX_STOCK_CHANGE) int by){
+        if(stockReservations != null){
+            return new ResponseEntity<StockLevel>(stockReservations.restock(id, by), HttpStatus.OK);
+        }
+        StockLevel level = bookRepositoryService.incrementStock(id, by);
+        bookRepositoryService.afterStockChange(level);
+        return new ResponseEntity<StockLevel>(level, HttpStatus.OK);
+    }
+
+    //the stock on sale, less what is held when reservations are enabled
+    @GetMapping("/book/{id}/stock")
+    public ResponseEntity<StockLevel> getStock(@PathVariable @Min(0) Long id){
+        if(stockReservations != null){
+            return new ResponseEntity<StockLevel>(stockReservations.available(id), HttpStatus.OK);
+        }
+        Book book = bookRepository.findById(id).orElseThrow(() -> new BookNotFoundException(id));
+        return new ResponseEntity<StockLevel>(new StockLevel(book.getId(), book.getStockLevel()), HttpStatus.OK);
+    }
+
+    /**
+     * Sets stock aside for a checkout, answering 409 when there is not enough of it. The hold is
+     * confirmed or released through its location, lapsing after its ttl in seconds otherwise.
+     */
+    @PostMapping("/book/{id}/stock/holds")
+    public ResponseEntity<StockHold> holdStock(@PathVariable @Min(0) Long id,
+                                               @RequestParam(required = false,name = "quantity",defaultValue = "1") @Min(1) @Max(MAX_STOCK_CHANGE) int quantity,
+                                               @RequestParam(required = false,name = "ttl") @Min(1) Integer ttl){
+        StockHold hold = stockReservations().reserve(id, quantity, ttl == null ? null : Duration.ofSeconds(ttl));
+        return ResponseEntity.status(HttpStatus.CREATED).header(HttpHeaders.LOCATION, "/stock/holds/" + hold.getId()).body(hold);
+    }
+
+    @GetMapping("/stock/holds/{holdId}")
+    public ResponseEntity<StockHold> getStockHold(@PathVariable String holdId){
+        return new ResponseEntity<StockHold>(stockReservations().hold(holdId).orElseThrow(() -> new HoldNotFoundException(holdId)), HttpStatus.OK);
+    }
+
+    @PostMapping("/stock/holds/{holdId}/confirm")
+    public ResponseEntity<StockHold> confirmStockHold(@PathVariable String holdId){
+        return new ResponseEntity<StockHold>(stockReservations().confirm(holdId), HttpStatus.OK);
+    }
+
+    @DeleteMapping("/stock/holds/{holdId}")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void releaseStockHold(@PathVariable String holdId){
+        stockReservations().release(holdId);
+    }
+
+    //strong, the version of a book changing with every write to it
+    private static String eTag(Book book){
+        return "\"" + book.getVersion() + "\"";
+    }
+
+    //a write with If-Match only goes ahead on a book whose etag is one of those given, or on any book with *
+    private static void checkIfMatch(WebRequest request, Long id, Book book){
+        String ifMatch = request.getHeader(HttpHeaders.IF_MATCH);
+        if(ifMatch == null){
+            return;
+        }
+        if(book == null){
+            throw new PreconditionFailedException(id);
+        }
+        String eTag = eTag(book);
+        if(Arrays.stream(ifMatch.split(",")).map(String::trim).noneMatch(tag -> tag.equals("*") || tag.equals(eTag))){
+            throw new PreconditionFailedException(id, eTag);
+        }
+    }
+
+    private StockReservationEngine stockReservations(){
+        if(stockReservations == null){
+            throw new ReservationsDisabledException();
+        }
+        return stockReservations;
+    }
+
     @PatchMapping("/book/{id}")
-    @ResponseStatus(HttpStatus.OK)
-    public @ResponseBody Book patchBook(@PathVariable @Min(0) Long id, @RequestBody Map<String, Object> fields){
+    public ResponseEntity<Book> patchBook(@PathVariable @Min(0) Long id, @RequestBody Map<String, Object> fields, WebRequest request){
         return bookRepository.findById(id).map(book -> {
+            checkIfMatch(request, id, book);
+            Book before = (Book) book.clone();
             fields.remove("id");
+            //the version only moves with writes, If-Match being the way to write on a given one
+            fields.remove("version");
             fields.forEach((k,v)->{
                 Field field = ReflectionUtils.findField(Book.class,k);
                 if(field != null){
@@ -162,21 +580,32 @@ public class BookStoreController {
                     new IllegalArgumentException("Unknown Book field " + k);
                 }
             });
-        return bookRepository.saveAndFlush(book);
+            Book savedBook = bookRepository.saveAndFlush(book);
+            bookRepositoryService.afterSave(before, savedBook, fields.containsKey("stockLevel"));
+            return ResponseEntity.ok().eTag(eTag(savedBook)).body(savedBook);
         }).orElseThrow(()->new BookNotFoundException(id));
     }
 
 
     @DeleteMapping("/book/{id}")
     @ResponseStatus(HttpStatus.NO_CONTENT)
-    public void deleteBook(@PathVariable Long id) {
+    public void deleteBook(@PathVariable Long id, WebRequest request) {
+        //the deleted state tells which cached searches it was part of
+        Optional<Book> deleted = bookRepository.findById(id);
+        checkIfMatch(request, id, deleted.orElse(null));
         bookRepository.deleteById(id);
+        bookRepositoryService.afterDelete(id, deleted.orElse(null));
     }
 
     @InitBinder
     public void initBinder(final WebDataBinder webDataBinder){
         webDataBinder.registerCustomEditor(Format.class, new FormatRequestParamConverter());
         webDataBinder.registerCustomEditor(Category.class, new CategoryRequestParamConverter());
+        webDataBinder.registerCustomEditor(CountMode.class, new CountModeRequestParamConverter());
+        webDataBinder.registerCustomEditor(BookField.class, new BookFieldRequestParamConverter());
+        webDataBinder.registerCustomEditor(SuggestField.class, new SuggestFieldRequestParamConverter());
+        webDataBinder.registerCustomEditor(ImportFormat.class, new ImportFormatRequestParamConverter());
+        webDataBinder.registerCustomEditor(ExportFormat.class, new ExportFormatRequestParamConverter());
     }
 
     private BookSearchArgument inialiseSearchArgument(String title,String author, Integer priceStart, Integer priceEnd,
@@ -197,6 +626,80 @@ public class BookStoreController {
         return argument;
     }
 
+    private ResponseEntity<?> search(BookSearchArgument argument, String cursor, CountMode count) {
+        if(StringUtils.hasText(cursor)){
+            if(argument.isRelevanceSorted()){
+                //scores are not stable keys to seek from, relevance is paged by page number only
+                throw new InvalidCursorException("results sorted by relevance are paged by page number");
+            }
+            argument.setCursor(SearchCursor.decode(cursor, argument.getSorts()));
+        }
+        if(argument.getFields() != null){
+            return searchRows(argument, count);
+        }
+        if(count != null){
+            return new ResponseEntity<SearchResult<Book>>(bookRepositoryService.searchSlice(argument, count), HttpStatus.OK);
+        }
+        List<Book> result = bookRepositoryService.findBookBySearchArgument(argument);
+        HttpHeaders headers = new HttpHeaders();
+        if(argument.getSize() > 0 && result.size() == argument.getSize() && !argument.isRelevanceSorted()){
+            headers.add(NEXT_CURSOR_HEADER, SearchCursor.after(result.get(result.size() - 1), argument.getSorts()).encode());
+        }
+        return new ResponseEntity<List<Book>>(result, headers, HttpStatus.OK);
+    }
+
+    private ResponseEntity<?> searchRows(BookSearchArgument argument, CountMode count) {
+        if(count != null){
+            return new ResponseEntity<SearchResult<BookRow>>(bookRepositoryService.searchRowSlice(argument, count), HttpStatus.OK);
+        }
+        List<BookRow> result = bookRepositoryService.findBookRowsBySearchArgument(argument);
+        HttpHeaders headers = new HttpHeaders();
+        if(argument.getSize() > 0 && result.size() == argument.getSize() && !argument.isRelevanceSorted()){
+            headers.add(NEXT_CURSOR_HEADER, SearchCursor.after(result.get(result.size() - 1), argument.getSorts()).encode());
+        }
+        return new ResponseEntity<List<BookRow>>(result, headers, HttpStatus.OK);
+    }
+
+    private void writeCatalog(OutputStream out, boolean ndjson, List<BookField> fields) throws IOException {
+        long idleTimeout = streamIdleTimeout.toNanos();
+        long[] lastWrite = {System.nanoTime()};
+        ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+            generator.setRootValueSeparator(null);
+            if(!ndjson) generator.writeStartArray();
+            Consumer<Object> write = row -> {
+                if(System.nanoTime() - lastWrite[0] > idleTimeout){
+                    throw new AsyncRequestTimeoutException();
+                }
+                try {
+                    writer.writeValue(generator, row);
+                    if(ndjson) generator.writeRaw('\n');
+                    lastWrite[0] = System.nanoTime();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            };
+            if(fields == null){
+                bookRepositoryService.streamCatalog(write::accept);
+            } else {
+                bookRepositoryService.streamCatalog(fields, write::accept);
+            }
+            if(!ndjson) generator.writeEndArray();
+        }
+    }
+
+    //the direction may be left out, as in sort=relevance
+    //only the properties the catalog index keeps an order for can be sorted by, besides relevance
+    private Sort toSort(String[] sortBy) {
+        Sort sorts = Sort.by(Arrays.stream(sortBy).map(sort -> sort.split(";",2)).map(array -> new Sort.Order(replaceOrderStringThroughDirection(array.length > 1 ? array[1] : ""),array[0]).ignoreCase()).collect(Collectors.toList()));
+        if(!BookSearchArgument.isRelevance(sorts)){
+            sorts.forEach(order -> SortField.fromValue(order.getProperty()));
+        }
+        return sorts;
+    }
+
     private Sort.Direction replaceOrderStringThroughDirection(String sortDirection) {
         if (sortDirection.equalsIgnoreCase("DESC")){
             return Sort.Direction.DESC;
@@ -23,7 +23,7 @@ public interface BookRepository  extends JpaRepository<Book, Long> {
             "and (:dateEnd is null or b.published_date<= :dateEnd)" +
             "and (COALESCE(:formatsString) is null or b.format IN :formatsString)"+
             "and (COALESCE(:categories) is null or b.category IN :categories)" +
-            "and (b.isbn =:isbn  or :isbn is null or :isbn ='')"
+            "and (b.isbn13 = :isbn13 or (:isbn13 is null and (b.isbn =:isbn  or :isbn is null or :isbn ='')))"
            // "and (COALESCE(:formats) is null or format in :#{#formats.![getValue()]})"
              ,
             countQuery = "select count(*) from Book b where (b.title like %:title%  or :title is null or :title ='')and (b.author like %:author% or :author is null or :author='')"+
@@ -33,7 +33,7 @@ public interface BookRepository  extends JpaRepository<Book, Long> {
                     "and (:dateEnd is null or b.published_date<= :dateEnd)" +
                    "and (COALESCE(:formatsString) is null or b.format IN :formatsString)"+
                     "and (COALESCE(:categories) is null or b.category IN :categories)" +
-                    "and (b.isbn =:isbn  or :isbn is null or :isbn ='')"
+                    "and (b.isbn13 = :isbn13 or (:isbn13 is null and (b.isbn =:isbn  or :isbn is null or :isbn ='')))"
             //        "and (COALESCE(:formats) is null or format IN :#{#formats.![getValue()]})"
             ,
             nativeQuery = true)
@@ -45,5 +45,6 @@ public interface BookRepository  extends JpaRepository<Book, Long> {
                                        @Param("formatsString")List<String>format2,
                                        @Param("categories") List<String> categories,
                                        @Param("isbn") String isbn,
+                                       @Param("isbn13") Long isbn13,
                                        Pageable pageable);
 }
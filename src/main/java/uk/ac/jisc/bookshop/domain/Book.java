@@ -1,6 +1,7 @@
 package uk.ac.jisc.bookshop.domain;
 
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
@@ -16,18 +17,36 @@ import uk.ac.jisc.bookshop.validation.constraint.ZeroIfAnotherFieldIsNull;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.util.Locale;
 import java.util.Objects;
 
 @ZeroIfAnotherFieldIsNull(fieldName="publishedDate",dependFieldName="stockLevel", message = "stockLevel should be zero if publishedDate is null")
 @ZeroIfAnotherFieldIsNull(fieldName="price",dependFieldName="stockLevel", message = "stockLevel should be zero if price is empty")
 @Entity
+//composites follow the filter combinations of the search, the upper case columns serve case-insensitive text filters
+@Table(indexes = {
+        @Index(name = "idx_book_isbn13", columnList = "isbn13"),
+        @Index(name = "idx_book_isbn", columnList = "isbn"),
+        @Index(name = "idx_book_category_price", columnList = "category, price"),
+        @Index(name = "idx_book_format_published_date", columnList = "format, publishedDate"),
+        @Index(name = "idx_book_title_upper", columnList = "titleUpper"),
+        @Index(name = "idx_book_author_upper", columnList = "authorUpper")})
 public class Book {
-    private @Id @GeneratedValue Long id;
+    //ids are handed out from blocks of 50, so bulk inserts reach the sequence once per block
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "book_seq")
+    @SequenceGenerator(name = "book_seq", sequenceName = "book_seq", allocationSize = 50)
+    private Long id;
 
     @NotBlank(message = "title is mandatory")
     private String title;
     @NotBlank(message = "author is mandatory")
     private String author;
+    //upper case copies of title and author, so that case-insensitive filters need no function on the column
+    @JsonIgnore
+    private String titleUpper;
+    @JsonIgnore
+    private String authorUpper;
 
     private Format format;
     @DecimalMin(value = "0.00", inclusive = false,message = "the price should great than 0")
@@ -41,17 +60,27 @@ public class Book {
     private LocalDate publishedDate;
     @ISBN(message = "invalid isbn")
     private String isbn;
+    //derived from isbn on write, so that any hyphenation of the same number matches exactly
+    @JsonIgnore
+    private Long isbn13;
     @PositiveOrZero(message = "stockLevel should not be less than 0")
     private int stockLevel;
+    //bumped by every write, sent as the etag of the book rather than in its body
+    @Version
+    @JsonIgnore
+    private long version;
 
     public Book(String title, String author, Format format, BigDecimal price, Category category, LocalDate publishedDate, String isbn, int stockLevel) {
         this.title = title;
         this.author = author;
+        this.titleUpper = upper(title);
+        this.authorUpper = upper(author);
         this.format = format;
         this.price = price;
         this.category = category;
         this.publishedDate = publishedDate;
         this.isbn = isbn;
+        this.isbn13 = Isbn.toIsbn13(isbn);
         this.stockLevel = stockLevel;
     }
 
@@ -65,6 +94,7 @@ public class Book {
 
     public void setTitle(String title) {
         this.title = title;
+        this.titleUpper = upper(title);
     }
 
     public String getAuthor() {
@@ -73,6 +103,7 @@ public class Book {
 
     public void setAuthor(String author) {
         this.author = author;
+        this.authorUpper = upper(author);
     }
 
     public Format getFormat() {
@@ -113,6 +144,32 @@ public class Book {
 
     public void setIsbn(String isbn) {
         this.isbn = isbn;
+        this.isbn13 = Isbn.toIsbn13(isbn);
+    }
+
+    public Long getIsbn13() {
+        return isbn13;
+    }
+
+    public String getTitleUpper() {
+        return titleUpper;
+    }
+
+    public String getAuthorUpper() {
+        return authorUpper;
+    }
+
+    //fields can also be written by reflection, see BookStoreController.patchBook
+    @PrePersist
+    @PreUpdate
+    void normalise() {
+        isbn13 = Isbn.toIsbn13(isbn);
+        titleUpper = upper(title);
+        authorUpper = upper(author);
+    }
+
+    private static String upper(String value) {
+        return value == null ? null : value.toUpperCase(Locale.ROOT);
     }
 
     public int getStockLevel() {
@@ -123,6 +180,14 @@ public class Book {
         this.stockLevel = stockLevel;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,65 @@
+package uk.ac.jisc.bookshop.domain;
+
+/**
+ * Canonical form of an ISBN: the 13 digits as a number, whatever the hyphenation
+ * and whether it was written as an ISBN-10 or an ISBN-13.
+ */
+public final class Isbn {
+
+    private Isbn() {
+    }
+
+    /**
+     * @return the ISBN-13 as a number, null when the value is not a complete ISBN
+     */
+    public static Long toIsbn13(String isbn) {
+        if (isbn == null) {
+            return null;
+        }
+        StringBuilder digits = new StringBuilder(13);
+        for (int i = 0; i < isbn.length(); i++) {
+            char c = isbn.charAt(i);
+            if (c == '-' || c == ' ') {
+                continue;
+            }
+            if (!Character.isDigit(c) && !(c == 'X' || c == 'x')) {
+                return null;
+            }
+            digits.append(Character.toUpperCase(c));
+        }
+        if (digits.length() == 13 && digits.indexOf("X") < 0) {
+            return Long.parseLong(digits.toString());
+        }
+        if (digits.length() == 10 && isValidIsbn10(digits)) {
+            return fromIsbn10(digits);
+        }
+        return null;
+    }
+
+    /*
+     a ten digit string is also what a partial ISBN-13 looks like, so it only counts as an
+     ISBN-10 when its check digit is right
+     */
+    private static boolean isValidIsbn10(CharSequence digits) {
+        int sum = 0;
+        for (int i = 0; i < 10; i++) {
+            char c = digits.charAt(i);
+            if (c == 'X' && i != 9) {
+                return false;
+            }
+            sum += (10 - i) * (c == 'X' ? 10 : c - '0');
+        }
+        return sum % 11 == 0;
+    }
+
+    private static long fromIsbn10(CharSequence digits) {
+        long isbn = 978;
+        int sum = 9 + 7 * 3 + 8;
+        for (int i = 0; i < 9; i++) {
+            int digit = digits.charAt(i) - '0';
+            isbn = isbn * 10 + digit;
+            sum += (i % 2 == 0 ? 3 : 1) * digit;
+        }
+        return isbn * 10 + (10 - sum % 10) % 10;
+    }
+}
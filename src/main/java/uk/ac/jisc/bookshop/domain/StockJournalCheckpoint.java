@@ -0,0 +1,42 @@
+package uk.ac.jisc.bookshop.domain;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+
+/**
+ * The last record of the stock journal whose change is in the stock levels of the books, written
+ * in the transaction that applies it. A single row, naming the journal it belongs to, so that a
+ * journal replayed against another database is recognised and set aside.
+ */
+@Entity
+public class StockJournalCheckpoint {
+    public static final long ID = 1;
+
+    @Id
+    private Long id;
+
+    private String journalId;
+
+    private long sequence;
+
+    public StockJournalCheckpoint() {
+    }
+
+    public StockJournalCheckpoint(String journalId, long sequence) {
+        this.id = ID;
+        this.journalId = journalId;
+        this.sequence = sequence;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getJournalId() {
+        return journalId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+}
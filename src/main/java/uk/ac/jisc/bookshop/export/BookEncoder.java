@@ -0,0 +1,17 @@
+package uk.ac.jisc.bookshop.export;
+
+import uk.ac.jisc.bookshop.domain.Book;
+
+import java.io.IOException;
+
+/**
+ * Writes the books of one chunk file in an export format.
+ */
+public interface BookEncoder {
+
+    void write(Book book) throws IOException;
+
+    //anything written once the last book is known, before the file is closed
+    default void finish() throws IOException {
+    }
+}
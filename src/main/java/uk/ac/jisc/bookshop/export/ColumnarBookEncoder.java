@@ -0,0 +1,101 @@
+package uk.ac.jisc.bookshop.export;
+
+import uk.ac.jisc.bookshop.domain.Book;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The values of each property stored together, so that a reader after one column skips the others.
+ * Big endian throughout: the magic "BKC1", the row and column counts as ints, then per column its
+ * name (int length, utf-8), its type, the int length of its data and the data, one value per row:
+ * <ul>
+ *     <li>'L' a long, Long.MIN_VALUE for null: id, and price in pence</li>
+ *     <li>'I' an int, Integer.MIN_VALUE for null: publishedDate in days since 1970-01-01, stockLevel</li>
+ *     <li>'S' an int length, -1 for null, then the utf-8 bytes: the other properties</li>
+ * </ul>
+ * The columns of a chunk are kept in memory until it ends, so the chunk size bounds the heap used.
+ */
+public class ColumnarBookEncoder implements BookEncoder {
+
+    static final byte[] MAGIC = "BKC1".getBytes(StandardCharsets.US_ASCII);
+
+    private final ChunkFileWriter out;
+    private final Map<String, Column> columns = new LinkedHashMap<>();
+    private int rows;
+
+    public ColumnarBookEncoder(ChunkFileWriter out) {
+        this.out = out;
+        for (String name : new String[]{"id", "price"}) {
+            columns.put(name, new Column('L'));
+        }
+        for (String name : new String[]{"publishedDate", "stockLevel"}) {
+            columns.put(name, new Column('I'));
+        }
+        for (String name : new String[]{"title", "author", "format", "category", "isbn"}) {
+            columns.put(name, new Column('S'));
+        }
+    }
+
+    @Override
+    public void write(Book book) throws IOException {
+        columns.get("id").writeLong(book.getId());
+        columns.get("price").writeLong(book.getPrice() == null ? null : book.getPrice().movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact());
+        columns.get("publishedDate").writeInt(book.getPublishedDate() == null ? null : (int) book.getPublishedDate().toEpochDay());
+        columns.get("stockLevel").writeInt(book.getStockLevel());
+        columns.get("title").writeString(book.getTitle());
+        columns.get("author").writeString(book.getAuthor());
+        columns.get("format").writeString(book.getFormat() == null ? null : book.getFormat().getValue());
+        columns.get("category").writeString(book.getCategory() == null ? null : book.getCategory().getValue());
+        columns.get("isbn").writeString(book.getIsbn());
+        rows++;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        out.write(MAGIC);
+        out.writeInt(rows);
+        out.writeInt(columns.size());
+        for (Map.Entry<String, Column> column : columns.entrySet()) {
+            byte[] name = column.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(name.length);
+            out.write(name);
+            out.write((byte) column.getValue().type);
+            out.writeInt(column.getValue().bytes.size());
+            out.write(column.getValue().bytes.toByteArray());
+        }
+    }
+
+    private static class Column {
+        private final char type;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream data = new DataOutputStream(bytes);
+
+        Column(char type) {
+            this.type = type;
+        }
+
+        void writeLong(Long value) throws IOException {
+            data.writeLong(value == null ? Long.MIN_VALUE : value);
+        }
+
+        void writeInt(Integer value) throws IOException {
+            data.writeInt(value == null ? Integer.MIN_VALUE : value);
+        }
+
+        void writeString(String value) throws IOException {
+            if (value == null) {
+                data.writeInt(-1);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            data.writeInt(utf8.length);
+            data.write(utf8);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package uk.ac.jisc.bookshop.export;
+
+import uk.ac.jisc.bookshop.domain.Book;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A header row then one line per book, in the columns the csv import reads back. Fields holding
+ * a comma, a quote or a line break are quoted, their quotes doubled.
+ */
+public class CsvBookEncoder implements BookEncoder {
+
+    static final String HEADER = "id,title,author,format,price,category,publishedDate,isbn,stockLevel";
+
+    private final ChunkFileWriter out;
+    private final StringBuilder line = new StringBuilder(256);
+
+    public CsvBookEncoder(ChunkFileWriter out) throws IOException {
+        this.out = out;
+        out.write((HEADER + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void write(Book book) throws IOException {
+        line.setLength(0);
+        line.append(book.getId()).append(',');
+        field(book.getTitle()).append(',');
+        field(book.getAuthor()).append(',');
+        field(book.getFormat() == null ? null : book.getFormat().getValue()).append(',');
+        field(book.getPrice() == null ? null : book.getPrice().toPlainString()).append(',');
+        field(book.getCategory() == null ? null : book.getCategory().getValue()).append(',');
+        field(book.getPublishedDate() == null ? null : book.getPublishedDate().toString()).append(',');
+        field(book.getIsbn()).append(',');
+        line.append(book.getStockLevel()).append('\n');
+        out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private StringBuilder field(String value) {
+        if (value == null) {
+            return line;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return line.append(value);
+        }
+        return line.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+}
@@ -0,0 +1,26 @@
+package uk.ac.jisc.bookshop.export;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+import uk.ac.jisc.bookshop.domain.Book;
+
+import java.io.IOException;
+
+/**
+ * One json object per line, as GET /books writes them.
+ */
+public class NdjsonBookEncoder implements BookEncoder {
+
+    private final ChunkFileWriter out;
+    private final ObjectWriter writer;
+
+    public NdjsonBookEncoder(ChunkFileWriter out, ObjectWriter writer) {
+        this.out = out;
+        this.writer = writer;
+    }
+
+    @Override
+    public void write(Book book) throws IOException {
+        out.write(writer.writeValueAsBytes(book));
+        out.write((byte) '\n');
+    }
+}
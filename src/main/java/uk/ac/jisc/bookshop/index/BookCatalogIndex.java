@@ -0,0 +1,475 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.apache.commons.collections4.CollectionUtils;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import uk.ac.jisc.bookshop.domain.Book;
+import uk.ac.jisc.bookshop.domain.Category;
+import uk.ac.jisc.bookshop.domain.Format;
+import uk.ac.jisc.bookshop.domain.Isbn;
+import uk.ac.jisc.bookshop.nondomain.BookSearchArgument;
+import uk.ac.jisc.bookshop.nondomain.SearchFacets;
+import uk.ac.jisc.bookshop.nondomain.SortField;
+import uk.ac.jisc.bookshop.nondomain.SuggestField;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * In-process index over the book catalog. Every book gets a dense int slot so that the
+ * per-field indexes can keep their postings as compressed bitmaps, and searches are
+ * resolved to candidate ids before JPA is involved.
+ */
+@Component
+public class BookCatalogIndex {
+
+    public static final int MAX_SUGGESTIONS = 10;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<Long, Integer> slotById = new HashMap<>();
+    private long[] idBySlot = new long[1024];
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private int nextSlot;
+
+    private final TrigramIndex titles = new TrigramIndex();
+    private final TrigramIndex authors = new TrigramIndex();
+    private final FuzzyTermIndex fuzzyTitles = new FuzzyTermIndex();
+    private final FuzzyTermIndex fuzzyAuthors = new FuzzyTermIndex();
+    private final EnumBitmapIndex<Format> formats = new EnumBitmapIndex<>(Format.class);
+    private final EnumBitmapIndex<Category> categories = new EnumBitmapIndex<>(Category.class);
+    //price in minor units and published date in epoch days
+    private final SortedLongIndex prices = new SortedLongIndex();
+    private final SortedLongIndex publishedDates = new SortedLongIndex();
+    private final LongHashIndex isbns = new LongHashIndex();
+    private final PrefixTrie titleSuggestions = new PrefixTrie(MAX_SUGGESTIONS);
+    private final PrefixTrie authorSuggestions = new PrefixTrie(MAX_SUGGESTIONS);
+    private final Map<SortField, SortPermutation> sortOrders = new EnumMap<>(SortField.class);
+
+    {
+        for (SortField field : SortField.values()) {
+            sortOrders.put(field, new SortPermutation());
+        }
+    }
+
+    private volatile boolean ready;
+
+    @Value("${bookshop.index.max-resolved-ids:1000}")
+    private int maxResolvedIds = 1000;
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    //the most ids a match or a page resolves to, beyond which the filters are left to sql
+    public int getMaxResolvedIds() {
+        return maxResolvedIds;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slotById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void rebuild(Stream<Book> books) {
+        lock.writeLock().lock();
+        try {
+            slotById.clear();
+            freeSlots.clear();
+            nextSlot = 0;
+            titles.clear();
+            authors.clear();
+            fuzzyTitles.clear();
+            fuzzyAuthors.clear();
+            formats.clear();
+            categories.clear();
+            prices.clear();
+            publishedDates.clear();
+            isbns.clear();
+            titleSuggestions.clear();
+            authorSuggestions.clear();
+            sortOrders.values().forEach(SortPermutation::clear);
+            books.forEach(book -> put(book, true));
+            formats.optimize();
+            categories.optimize();
+            prices.seal();
+            publishedDates.seal();
+            titleSuggestions.seal();
+            authorSuggestions.seal();
+            sortOrders.values().forEach(SortPermutation::seal);
+            ready = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void index(Book book) {
+        if (book == null || book.getId() == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            put(book, false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //under a single write lock, so that searches see either none or all of the books. The sort
+    //orders and the range indexes buffer them, merging only once their buffers outgrow a fraction
+    //of the catalog, so that an import in chunks does not shift or merge them whole for each book
+    public void indexAll(Collection<Book> books) {
+        lock.writeLock().lock();
+        try {
+            for (Book book : books) {
+                if (book != null && book.getId() != null) {
+                    put(book, false);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //only the stock level order depends on the stock level
+    public void updateStockLevel(Long id, int stockLevel) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slotById.get(id);
+            if (slot != null) {
+                sortOrders.get(SortField.STOCK_LEVEL).put(slot, id, stockLevel);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(Long id) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slotById.remove(id);
+            if (slot != null) {
+                titles.remove(slot);
+                authors.remove(slot);
+                fuzzyTitles.remove(slot);
+                fuzzyAuthors.remove(slot);
+                formats.remove(slot);
+                categories.remove(slot);
+                prices.remove(slot);
+                publishedDates.remove(slot);
+                isbns.remove(slot);
+                titleSuggestions.remove(slot);
+                authorSuggestions.remove(slot);
+                sortOrders.values().forEach(order -> order.remove(slot));
+                freeSlots.push(slot);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Resolves the filters of the argument this index can answer.
+     * @return empty when the index is not ready or covers none of the filters
+     */
+    public Optional<IndexMatch> match(BookSearchArgument argument) {
+        if (!ready) {
+            return Optional.empty();
+        }
+        lock.readLock().lock();
+        try {
+            EnumSet<SearchFilter> covered = EnumSet.noneOf(SearchFilter.class);
+            RoaringBitmap slots = resolve(argument, covered, null);
+            if (slots == null) {
+                return Optional.empty();
+            }
+            int count = slots.getCardinality();
+            return Optional.of(new IndexMatch(covered, count, count <= maxResolvedIds ? toIds(slots) : null));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Counts the matches per format, category, price band and year with bitmap intersections,
+     * and a single pass over the matches for the years.
+     * @return empty when the index is not ready or cannot answer every filter of the argument
+     */
+    public Optional<SearchFacets> facets(BookSearchArgument argument, List<BigDecimal> priceBands) {
+        if (!ready) {
+            return Optional.empty();
+        }
+        lock.readLock().lock();
+        try {
+            EnumSet<SearchFilter> covered = EnumSet.noneOf(SearchFilter.class);
+            RoaringBitmap slots = resolve(argument, covered, null);
+            if (!covered.containsAll(SearchFilter.requestedBy(argument))) {
+                return Optional.empty();
+            }
+            if (slots == null) {
+                slots = RoaringBitmap.bitmapOfRange(0, nextSlot);
+                freeSlots.forEach(slots::remove);
+            }
+            SearchFacets facets = new SearchFacets(priceBands);
+            facets.setTotal(slots.getCardinality());
+            for (Format format : Format.values()) {
+                facets.addFormat(format, RoaringBitmap.andCardinality(slots, formats.get(format)));
+            }
+            for (Category category : Category.values()) {
+                facets.addCategory(category, RoaringBitmap.andCardinality(slots, categories.get(category)));
+            }
+            for (int band = 0; band <= priceBands.size(); band++) {
+                long from = band == 0 ? Long.MIN_VALUE : minorUnits(priceBands.get(band - 1), RoundingMode.CEILING);
+                long to = band == priceBands.size() ? Long.MAX_VALUE : minorUnits(priceBands.get(band), RoundingMode.CEILING) - 1;
+                facets.addPriceBand(band, RoaringBitmap.andCardinality(slots, prices.range(from, to)));
+            }
+            slots.forEach((int slot) -> {
+                Long publishedDate = publishedDates.get(slot);
+                if (publishedDate != null) {
+                    facets.addYear(LocalDate.ofEpochDay(publishedDate).getYear(), 1);
+                }
+            });
+            return Optional.of(facets);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads a page of the search from the precomputed order of its sort, which must be a single
+     * sortable property followed by the id ascending, or the id alone. Pages after a cursor are
+     * left to the keyset seek of the database, and so are pages longer than max-resolved-ids, as
+     * their ids would all be bound in a single in list.
+     * @param limit the number of ids after the offset, 0 for all of them
+     * @return the ids of the page in order, empty when the index cannot answer every filter or the sort,
+     * or the page may hold more than max-resolved-ids
+     */
+    public Optional<List<Long>> page(BookSearchArgument argument, List<Sort.Order> orders, int offset, int limit) {
+        if (!ready) {
+            return Optional.empty();
+        }
+        lock.readLock().lock();
+        try {
+            return page(argument, orders, offset, limit, null);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The pages of several searches read under the same lock, each distinct filter being looked up
+     * once for all of them, so that searches sharing a format or a price range share its bitmap.
+     * @return for each argument in turn, the ids of its page or empty as {@link #page} would
+     */
+    public List<Optional<List<Long>>> pages(List<BookSearchArgument> arguments, List<List<Sort.Order>> orders) {
+        List<Optional<List<Long>>> pages = new ArrayList<>(arguments.size());
+        if (!ready) {
+            arguments.forEach(argument -> pages.add(Optional.empty()));
+            return pages;
+        }
+        Map<List<Object>, RoaringBitmap> lookups = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < arguments.size(); i++) {
+                BookSearchArgument argument = arguments.get(i);
+                pages.add(page(argument, orders.get(i), argument.getPage() * argument.getSize(), argument.getSize(), lookups));
+            }
+            return pages;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Optional<List<Long>> page(BookSearchArgument argument, List<Sort.Order> orders, int offset, int limit,
+                                      Map<List<Object>, RoaringBitmap> lookups) {
+        if (argument.getCursor() != null || orders.isEmpty() || orders.size() > 2 || limit <= 0 || limit > maxResolvedIds) {
+            return Optional.empty();
+        }
+        Sort.Order order = orders.get(0);
+        if (orders.size() == 2 && !(orders.get(1).getProperty().equals(SortField.ID.getValue()) && orders.get(1).isAscending())) {
+            return Optional.empty();
+        }
+        SortPermutation permutation = Arrays.stream(SortField.values())
+                .filter(field -> field.getValue().equals(order.getProperty()))
+                .findFirst().map(sortOrders::get).orElse(null);
+        if (permutation == null) {
+            return Optional.empty();
+        }
+        EnumSet<SearchFilter> covered = EnumSet.noneOf(SearchFilter.class);
+        RoaringBitmap slots = resolve(argument, covered, lookups);
+        if (!covered.containsAll(SearchFilter.requestedBy(argument))) {
+            return Optional.empty();
+        }
+        return Optional.of(permutation.page(slots, order.isAscending(), offset, limit));
+    }
+
+    /*
+     fuzzy matches cannot be expressed in sql, so they are resolved to ids, unless there are too
+     many to bind, in which case the search falls back to the substring matches alone. matches,
+     pages and facets all go through here, so that the page, the pages after its cursor, the
+     total and the facets of a search are made of the same books
+     */
+    private RoaringBitmap resolve(BookSearchArgument argument, Set<SearchFilter> covered, Map<List<Object>, RoaringBitmap> lookups) {
+        RoaringBitmap slots = resolve(argument, covered, lookups, argument.isFuzzy());
+        boolean fuzzy = argument.isFuzzy() && (covered.contains(SearchFilter.TITLE) || covered.contains(SearchFilter.AUTHOR));
+        if (fuzzy && slots.getCardinality() > maxResolvedIds) {
+            covered.clear();
+            slots = resolve(argument, covered, lookups, false);
+        }
+        return slots;
+    }
+
+    /*
+     the slots matching every filter the index can answer, null when it can answer none.
+     lookups, when given, keeps the bitmap of each filter value for the next searches, text being
+     matched ignoring case. that is safe as bitmaps are combined into new ones rather than in place
+     */
+    private RoaringBitmap resolve(BookSearchArgument argument, Set<SearchFilter> covered, Map<List<Object>, RoaringBitmap> lookups, boolean fuzzy) {
+        RoaringBitmap slots = null;
+        if (StringUtils.hasText(argument.getTitle())) {
+            slots = intersect(slots, lookup(lookups, List.of(SearchFilter.TITLE, argument.getTitle().toUpperCase(Locale.ROOT), fuzzy),
+                    () -> text(titles, fuzzyTitles, argument.getTitle(), fuzzy)), SearchFilter.TITLE, covered);
+        }
+        if (StringUtils.hasText(argument.getAuthor())) {
+            slots = intersect(slots, lookup(lookups, List.of(SearchFilter.AUTHOR, argument.getAuthor().toUpperCase(Locale.ROOT), fuzzy),
+                    () -> text(authors, fuzzyAuthors, argument.getAuthor(), fuzzy)), SearchFilter.AUTHOR, covered);
+        }
+        if (CollectionUtils.isNotEmpty(argument.getFormats())) {
+            slots = intersect(slots, lookup(lookups, List.of(SearchFilter.FORMAT, EnumSet.copyOf(argument.getFormats())),
+                    () -> formats.union(argument.getFormats())), SearchFilter.FORMAT, covered);
+        }
+        if (CollectionUtils.isNotEmpty(argument.getCategories())) {
+            slots = intersect(slots, lookup(lookups, List.of(SearchFilter.CATEGORY, EnumSet.copyOf(argument.getCategories())),
+                    () -> categories.union(argument.getCategories())), SearchFilter.CATEGORY, covered);
+        }
+        if (isPositive(argument.getPriceFrom()) || isPositive(argument.getPriceTo())) {
+            long from = isPositive(argument.getPriceFrom()) ? minorUnits(argument.getPriceFrom(), RoundingMode.CEILING) : Long.MIN_VALUE;
+            long to = isPositive(argument.getPriceTo()) ? minorUnits(argument.getPriceTo(), RoundingMode.FLOOR) : Long.MAX_VALUE;
+            slots = intersect(slots, lookup(lookups, List.of(SearchFilter.PRICE, from, to), () -> prices.range(from, to)), SearchFilter.PRICE, covered);
+        }
+        if (argument.getPublicationDateStart() != null || argument.getPublicationDateEnd() != null) {
+            long from = argument.getPublicationDateStart() != null ? argument.getPublicationDateStart().toEpochDay() : Long.MIN_VALUE;
+            long to = argument.getPublicationDateEnd() != null ? argument.getPublicationDateEnd().toEpochDay() : Long.MAX_VALUE;
+            slots = intersect(slots, lookup(lookups, List.of(SearchFilter.PUBLISHED_DATE, from, to), () -> publishedDates.range(from, to)),
+                    SearchFilter.PUBLISHED_DATE, covered);
+        }
+        //a partial isbn is still a substring search left to the database
+        Long isbn13 = Isbn.toIsbn13(argument.getIsbn());
+        if (isbn13 != null) {
+            slots = intersect(slots, isbns.get(isbn13), SearchFilter.ISBN, covered);
+        }
+        return slots;
+    }
+
+    private static RoaringBitmap lookup(Map<List<Object>, RoaringBitmap> lookups, List<Object> key, Supplier<RoaringBitmap> bitmap) {
+        return lookups == null ? bitmap.get() : lookups.computeIfAbsent(key, k -> bitmap.get());
+    }
+
+    /**
+     * @return the most common titles or authors starting with the prefix, ignoring case
+     */
+    public List<String> suggest(SuggestField field, String prefix, int limit) {
+        lock.readLock().lock();
+        try {
+            PrefixTrie suggestions = field == SuggestField.AUTHOR ? authorSuggestions : titleSuggestions;
+            return suggestions.complete(prefix, Math.min(limit, MAX_SUGGESTIONS));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     substring matches, plus in fuzzy mode the values with words close to those of the pattern.
+     a pattern too short for trigrams is left to sql, fuzzy or not, as its words are too short
+     to allow any typo
+     */
+    private RoaringBitmap text(TrigramIndex substrings, FuzzyTermIndex words, String pattern, boolean fuzzy) {
+        RoaringBitmap matches = substrings.search(pattern);
+        if (matches == null || !fuzzy) {
+            return matches;
+        }
+        RoaringBitmap similar = words.search(pattern);
+        return similar == null ? matches : RoaringBitmap.or(matches, similar);
+    }
+
+    private RoaringBitmap intersect(RoaringBitmap slots, RoaringBitmap filterSlots, SearchFilter filter, Set<SearchFilter> covered) {
+        if (filterSlots == null) {
+            return slots;
+        }
+        covered.add(filter);
+        return slots == null ? filterSlots : RoaringBitmap.and(slots, filterSlots);
+    }
+
+    private List<Long> toIds(RoaringBitmap slots) {
+        List<Long> ids = new ArrayList<>(slots.getCardinality());
+        slots.forEach((int slot) -> ids.add(idBySlot[slot]));
+        return ids;
+    }
+
+    static boolean isPositive(BigDecimal value) {
+        return value != null && value.compareTo(BigDecimal.ZERO) > 0;
+    }
+
+    //prices are stored with two decimals, so bounds finer than a penny are rounded inwards
+    static long minorUnits(BigDecimal price, RoundingMode rounding) {
+        return price.movePointRight(2).setScale(0, rounding).longValueExact();
+    }
+
+    private void put(Book book, boolean bulk) {
+        int slot = putFilters(book, bulk);
+        for (Map.Entry<SortField, SortPermutation> order : sortOrders.entrySet()) {
+            if (bulk) {
+                order.getValue().load(slot, book.getId(), order.getKey().keyOf(book));
+            } else {
+                order.getValue().put(slot, book.getId(), order.getKey().keyOf(book));
+            }
+        }
+    }
+
+    //everything but the sort orders, returning the slot of the book
+    private int putFilters(Book book, boolean bulk) {
+        Integer slot = slotById.get(book.getId());
+        if (slot == null) {
+            slot = freeSlots.isEmpty() ? nextSlot++ : freeSlots.pop();
+            if (slot >= idBySlot.length) {
+                idBySlot = Arrays.copyOf(idBySlot, idBySlot.length * 2);
+            }
+            idBySlot[slot] = book.getId();
+            slotById.put(book.getId(), slot);
+        }
+        titles.add(slot, book.getTitle());
+        authors.add(slot, book.getAuthor());
+        fuzzyTitles.add(slot, book.getTitle());
+        fuzzyAuthors.add(slot, book.getAuthor());
+        formats.set(slot, book.getFormat());
+        categories.set(slot, book.getCategory());
+        isbns.set(slot, book.getIsbn13());
+        Long price = book.getPrice() == null ? null : minorUnits(book.getPrice(), RoundingMode.HALF_UP);
+        Long publishedDate = book.getPublishedDate() == null ? null : book.getPublishedDate().toEpochDay();
+        if (bulk) {
+            prices.load(slot, price);
+            publishedDates.load(slot, publishedDate);
+            titleSuggestions.load(slot, book.getTitle());
+            authorSuggestions.load(slot, book.getAuthor());
+        } else {
+            prices.put(slot, price);
+            publishedDates.put(slot, publishedDate);
+            titleSuggestions.set(slot, book.getTitle());
+            authorSuggestions.set(slot, book.getAuthor());
+        }
+        return slot;
+    }
+}
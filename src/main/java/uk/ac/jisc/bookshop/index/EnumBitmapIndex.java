@@ -0,0 +1,69 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * One compressed bitmap of slots per enum constant, so that filtering on a set of values is
+ * a union of a few bitmaps instead of a comparison per row.
+ * Not thread safe, guarded by {@link BookCatalogIndex}.
+ */
+public class EnumBitmapIndex<E extends Enum<E>> {
+
+    private final RoaringBitmap[] bitmaps;
+
+    //ordinal + 1 of the value held by each slot, 0 for none
+    private byte[] values = new byte[1024];
+
+    public EnumBitmapIndex(Class<E> type) {
+        bitmaps = new RoaringBitmap[type.getEnumConstants().length];
+        for (int i = 0; i < bitmaps.length; i++) {
+            bitmaps[i] = new RoaringBitmap();
+        }
+    }
+
+    public void set(int slot, E value) {
+        remove(slot);
+        if (value == null) {
+            return;
+        }
+        if (slot >= values.length) {
+            values = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+        }
+        values[slot] = (byte) (value.ordinal() + 1);
+        bitmaps[value.ordinal()].add(slot);
+    }
+
+    public void remove(int slot) {
+        if (slot < values.length && values[slot] != 0) {
+            bitmaps[values[slot] - 1].remove(slot);
+            values[slot] = 0;
+        }
+    }
+
+    public void clear() {
+        for (RoaringBitmap bitmap : bitmaps) {
+            bitmap.clear();
+        }
+        values = new byte[1024];
+    }
+
+    public void optimize() {
+        for (RoaringBitmap bitmap : bitmaps) {
+            bitmap.runOptimize();
+        }
+    }
+
+    public RoaringBitmap get(E value) {
+        return bitmaps[value.ordinal()];
+    }
+
+    /**
+     * @return the slots holding any of the values
+     */
+    public RoaringBitmap union(Collection<E> selected) {
+        return RoaringBitmap.or(selected.stream().distinct().map(this::get).iterator());
+    }
+}
@@ -0,0 +1,188 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.*;
+
+/**
+ * Typo tolerant word index, after SymSpell: every word of every value is stored along with all
+ * the strings obtained by deleting up to {@link #MAX_EDITS} of its characters. A misspelled word
+ * finds its candidates by looking up its own deletions, and only those candidates are checked
+ * with an edit distance, so a lookup never compares against the whole dictionary.
+ * Not thread safe, guarded by {@link BookCatalogIndex}.
+ */
+public class FuzzyTermIndex {
+
+    public static final int MAX_EDITS = 2;
+
+    private final Map<String, RoaringBitmap> postings = new HashMap<>();
+    private final Map<String, Set<String>> termsByDeletion = new HashMap<>();
+
+    private String[][] termsBySlot = new String[1024][];
+
+    public void add(int slot, String value) {
+        remove(slot);
+        if (value == null) {
+            return;
+        }
+        String[] terms = tokenize(value).toArray(String[]::new);
+        if (slot >= termsBySlot.length) {
+            termsBySlot = Arrays.copyOf(termsBySlot, Math.max(slot + 1, termsBySlot.length * 2));
+        }
+        termsBySlot[slot] = terms;
+        for (String term : terms) {
+            RoaringBitmap posting = postings.get(term);
+            if (posting == null) {
+                posting = new RoaringBitmap();
+                postings.put(term, posting);
+                for (String deletion : deletions(term, MAX_EDITS)) {
+                    termsByDeletion.computeIfAbsent(deletion, d -> new HashSet<>(2)).add(term);
+                }
+            }
+            posting.add(slot);
+        }
+    }
+
+    public void remove(int slot) {
+        if (slot >= termsBySlot.length || termsBySlot[slot] == null) {
+            return;
+        }
+        for (String term : termsBySlot[slot]) {
+            RoaringBitmap posting = postings.get(term);
+            if (posting == null) {
+                continue;
+            }
+            posting.remove(slot);
+            if (posting.isEmpty()) {
+                postings.remove(term);
+                for (String deletion : deletions(term, MAX_EDITS)) {
+                    Set<String> terms = termsByDeletion.get(deletion);
+                    if (terms != null && terms.remove(term) && terms.isEmpty()) {
+                        termsByDeletion.remove(deletion);
+                    }
+                }
+            }
+        }
+        termsBySlot[slot] = null;
+    }
+
+    public void clear() {
+        postings.clear();
+        termsByDeletion.clear();
+        termsBySlot = new String[1024][];
+    }
+
+    /**
+     * @return the slots holding, for every word of the pattern, a word within its allowed edit
+     * distance, or null when the pattern has no word
+     */
+    public RoaringBitmap search(String pattern) {
+        List<String> words = tokenize(pattern);
+        if (words.isEmpty()) {
+            return null;
+        }
+        RoaringBitmap slots = null;
+        for (String word : new LinkedHashSet<>(words)) {
+            RoaringBitmap wordSlots = new RoaringBitmap();
+            for (String term : similarTerms(word)) {
+                wordSlots.or(postings.get(term));
+            }
+            slots = slots == null ? wordSlots : RoaringBitmap.and(slots, wordSlots);
+            if (slots.isEmpty()) {
+                break;
+            }
+        }
+        return slots;
+    }
+
+    //short words are more likely to land on another word with a single typo
+    static int allowedEdits(String word) {
+        return word.length() <= 2 ? 0 : word.length() <= 5 ? 1 : MAX_EDITS;
+    }
+
+    /**
+     * Splits on anything but letters and digits, and between a lower and an upper case letter or
+     * a letter and a digit, so that "harryPotter" and "coreJava17" are made of several words.
+     */
+    static List<String> tokenize(String value) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= value.length(); i++) {
+            char c = i < value.length() ? value.charAt(i) : ' ';
+            boolean wordChar = Character.isLetterOrDigit(c);
+            boolean boundary = start >= 0 && wordChar && i > start
+                    && ((Character.isLowerCase(value.charAt(i - 1)) && Character.isUpperCase(c))
+                    || Character.isDigit(value.charAt(i - 1)) != Character.isDigit(c));
+            if (start >= 0 && (!wordChar || boundary)) {
+                words.add(value.substring(start, i).toUpperCase(Locale.ROOT));
+                start = -1;
+            }
+            if (wordChar && start < 0) {
+                start = i;
+            }
+        }
+        return words;
+    }
+
+    private List<String> similarTerms(String word) {
+        int edits = allowedEdits(word);
+        List<String> similar = new ArrayList<>();
+        Set<String> checked = new HashSet<>();
+        for (String deletion : deletions(word, edits)) {
+            for (String term : termsByDeletion.getOrDefault(deletion, Collections.emptySet())) {
+                if (checked.add(term) && distance(word, term, edits) <= edits) {
+                    similar.add(term);
+                }
+            }
+        }
+        return similar;
+    }
+
+    //the word itself and every string obtained by deleting up to edits characters from it
+    private static Set<String> deletions(String word, int edits) {
+        Set<String> deletions = new HashSet<>();
+        deletions.add(word);
+        Collection<String> previous = List.of(word);
+        for (int edit = 0; edit < edits; edit++) {
+            List<String> next = new ArrayList<>();
+            for (String candidate : previous) {
+                for (int i = 0; i < candidate.length() && candidate.length() > 1; i++) {
+                    String deletion = candidate.substring(0, i) + candidate.substring(i + 1);
+                    if (deletions.add(deletion)) {
+                        next.add(deletion);
+                    }
+                }
+            }
+            previous = next;
+        }
+        return deletions;
+    }
+
+    /**
+     * Optimal string alignment distance, where swapping two adjacent characters is one edit.
+     * Gives up with max + 1 as soon as the distance is known to exceed max.
+     */
+    static int distance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) {
+            return max + 1;
+        }
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) d[i][0] = i;
+        for (int j = 0; j <= b.length(); j++) d[0][j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            int rowMin = Integer.MAX_VALUE;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+                }
+                rowMin = Math.min(rowMin, d[i][j]);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+}
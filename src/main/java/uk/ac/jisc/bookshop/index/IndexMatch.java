@@ -0,0 +1,41 @@
+package uk.ac.jisc.bookshop.index;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The books matching the filters the catalog index covered for a search.
+ * The ids are only resolved when the match is small enough to be pushed into an {@code IN} list.
+ */
+public class IndexMatch {
+    private final Set<SearchFilter> covered;
+    private final int count;
+    private final List<Long> ids;
+
+    public IndexMatch(Set<SearchFilter> covered, int count, List<Long> ids) {
+        this.covered = Collections.unmodifiableSet(covered);
+        this.count = count;
+        this.ids = ids;
+    }
+
+    public boolean covers(SearchFilter filter) {
+        return covered.contains(filter);
+    }
+
+    public Set<SearchFilter> getCovered() {
+        return covered;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public boolean hasIds() {
+        return ids != null;
+    }
+
+    public List<Long> getIds() {
+        return ids;
+    }
+}
@@ -0,0 +1,62 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Exact-match index from a {@code long} key to the slots holding it, for keys such as the
+ * ISBN that are shared by a handful of books at most.
+ * Not thread safe, guarded by {@link BookCatalogIndex}.
+ */
+public class LongHashIndex {
+
+    private static final RoaringBitmap NONE = new RoaringBitmap();
+
+    private final Map<Long, RoaringBitmap> slotsByKey = new HashMap<>();
+
+    //key held by each slot, with a parallel flag since every long is a valid key
+    private long[] keys = new long[1024];
+    private boolean[] hasKey = new boolean[1024];
+
+    public void set(int slot, Long key) {
+        remove(slot);
+        if (key == null) {
+            return;
+        }
+        if (slot >= keys.length) {
+            int length = Math.max(slot + 1, keys.length * 2);
+            keys = Arrays.copyOf(keys, length);
+            hasKey = Arrays.copyOf(hasKey, length);
+        }
+        keys[slot] = key;
+        hasKey[slot] = true;
+        slotsByKey.computeIfAbsent(key, k -> new RoaringBitmap()).add(slot);
+    }
+
+    public void remove(int slot) {
+        if (slot >= hasKey.length || !hasKey[slot]) {
+            return;
+        }
+        RoaringBitmap slots = slotsByKey.get(keys[slot]);
+        slots.remove(slot);
+        if (slots.isEmpty()) {
+            slotsByKey.remove(keys[slot]);
+        }
+        hasKey[slot] = false;
+    }
+
+    public void clear() {
+        slotsByKey.clear();
+        Arrays.fill(hasKey, false);
+    }
+
+    /**
+     * @return the slots holding the key, never null and not to be modified
+     */
+    public RoaringBitmap get(long key) {
+        return slotsByKey.getOrDefault(key, NONE);
+    }
+}
@@ -0,0 +1,313 @@
+package uk.ac.jisc.bookshop.index;
+
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.collections4.CollectionUtils;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.MMapDirectory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import uk.ac.jisc.bookshop.domain.Book;
+import uk.ac.jisc.bookshop.domain.Category;
+import uk.ac.jisc.bookshop.domain.Format;
+import uk.ac.jisc.bookshop.domain.Isbn;
+import uk.ac.jisc.bookshop.nondomain.BookSearchArgument;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Optional full-text index of the catalog in a memory mapped Lucene directory, ranking title and
+ * author words with BM25 and applying the other search filters as non-scoring clauses.
+ * Writes return without reopening the reader: a background thread reopens it near-real-time
+ * from the writer within max-staleness of a write, or within min-staleness when a search is
+ * waiting for it, as a search waits for the writes made before it so as not to read older data.
+ * Commits are left to rebuilds and shutdown since the index is rebuilt from the database on
+ * startup anyway.
+ */
+@Component
+@ConditionalOnProperty(name = "bookshop.lucene.enabled", havingValue = "true")
+public class LuceneBookIndex implements Closeable {
+
+    private static final String ID = "id";
+    private static final String ID_ORDER = "idOrder";
+    private static final String TITLE = "title";
+    private static final String AUTHOR = "author";
+    private static final String FORMAT = "format";
+    private static final String CATEGORY = "category";
+    private static final String PRICE = "price";
+    private static final String PUBLISHED_DATE = "publishedDate";
+    private static final String ISBN = "isbn";
+    private static final String ISBN13 = "isbn13";
+
+    //best score first, equal scores in id order so that pages are stable
+    private static final Sort RANKING = new Sort(SortField.FIELD_SCORE, new SortField(ID_ORDER, SortField.Type.LONG));
+
+    private final MMapDirectory directory;
+    private final IndexWriter writer;
+    private final SearcherManager searcherManager;
+    private final ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+    private final Duration maxStaleness;
+
+    //sequence number of the latest write, which searches wait to see
+    private final AtomicLong lastWrite = new AtomicLong(-1);
+
+    public LuceneBookIndex(@Value("${bookshop.lucene.directory:data/lucene}") Path path,
+                           @Value("${bookshop.lucene.max-staleness:1s}") Duration maxStaleness,
+                           @Value("${bookshop.lucene.min-staleness:20ms}") Duration minStaleness) throws IOException {
+        this.maxStaleness = maxStaleness;
+        Files.createDirectories(path);
+        directory = new MMapDirectory(path);
+        writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer())
+                .setSimilarity(new BM25Similarity())
+                .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND));
+        searcherManager = new SearcherManager(writer, new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                searcher.setSimilarity(new BM25Similarity());
+                return searcher;
+            }
+        });
+        reopenThread = new ControlledRealTimeReopenThread<>(writer, searcherManager,
+                maxStaleness.toNanos() / 1e9, minStaleness.toNanos() / 1e9);
+        reopenThread.setName("lucene-reopen");
+        reopenThread.setDaemon(true);
+        reopenThread.start();
+    }
+
+    public void rebuild(Stream<Book> books) {
+        try {
+            writer.deleteAll();
+            for (Iterator<Book> iterator = books.iterator(); iterator.hasNext(); ) {
+                writer.addDocument(document(iterator.next()));
+            }
+            writer.commit();
+            searcherManager.maybeRefreshBlocking();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void index(Book book) {
+        if (book == null || book.getId() == null) {
+            return;
+        }
+        try {
+            written(writer.updateDocument(new Term(ID, book.getId().toString()), document(book)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void indexAll(Collection<Book> books) {
+        try {
+            for (Book book : books) {
+                if (book != null && book.getId() != null) {
+                    written(writer.updateDocument(new Term(ID, book.getId().toString()), document(book)));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void remove(Long id) {
+        try {
+            written(writer.deleteDocuments(new Term(ID, id.toString())));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param limit the number of ids after the offset, 0 for all of them
+     * @return the ids of the matching books, most relevant first
+     */
+    public List<Long> search(BookSearchArgument argument, int offset, int limit) {
+        awaitWrites();
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                Query query = query(argument);
+                int hits = limit > 0 ? offset + limit : searcher.count(query);
+                if (hits <= offset) {
+                    return Collections.emptyList();
+                }
+                ScoreDoc[] docs = searcher.search(query, hits, RANKING, true).scoreDocs;
+                StoredFields fields = searcher.storedFields();
+                List<Long> ids = new ArrayList<>(Math.max(0, docs.length - offset));
+                for (int i = offset; i < docs.length; i++) {
+                    ids.add(Long.valueOf(fields.document(docs[i].doc, Set.of(ID)).get(ID)));
+                }
+                return ids;
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int count(BookSearchArgument argument) {
+        awaitWrites();
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                return searcher.count(query(argument));
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @PreDestroy
+    @Override
+    public void close() throws IOException {
+        reopenThread.close();
+        searcherManager.close();
+        writer.close();
+        directory.close();
+    }
+
+    private void written(long sequence) {
+        lastWrite.accumulateAndGet(sequence, Math::max);
+    }
+
+    //a search reads at least what was written before it, waiting for the reopen no longer than max-staleness
+    private void awaitWrites() {
+        long sequence = lastWrite.get();
+        if (sequence < 0) {
+            return;
+        }
+        try {
+            reopenThread.waitForGeneration(sequence, (int) maxStaleness.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     title and author words are stored split the way the fuzzy index splits them, so that
+     "harryPotter" is made of the words harry and potter
+     */
+    private static Document document(Book book) {
+        Document document = new Document();
+        document.add(new StringField(ID, book.getId().toString(), Field.Store.YES));
+        document.add(new NumericDocValuesField(ID_ORDER, book.getId()));
+        if (book.getTitle() != null) {
+            document.add(new TextField(TITLE, words(book.getTitle()), Field.Store.NO));
+        }
+        if (book.getAuthor() != null) {
+            document.add(new TextField(AUTHOR, words(book.getAuthor()), Field.Store.NO));
+        }
+        if (book.getFormat() != null) {
+            document.add(new StringField(FORMAT, book.getFormat().name(), Field.Store.NO));
+        }
+        if (book.getCategory() != null) {
+            document.add(new StringField(CATEGORY, book.getCategory().name(), Field.Store.NO));
+        }
+        if (book.getPrice() != null) {
+            document.add(new LongPoint(PRICE, BookCatalogIndex.minorUnits(book.getPrice(), RoundingMode.HALF_UP)));
+        }
+        if (book.getPublishedDate() != null) {
+            document.add(new LongPoint(PUBLISHED_DATE, book.getPublishedDate().toEpochDay()));
+        }
+        if (book.getIsbn() != null) {
+            document.add(new StringField(ISBN, book.getIsbn(), Field.Store.NO));
+        }
+        if (book.getIsbn13() != null) {
+            document.add(new LongPoint(ISBN13, book.getIsbn13()));
+        }
+        return document;
+    }
+
+    //the same filters as the criteria search, only the words of the title and author are scored
+    static Query query(BookSearchArgument argument) {
+        BooleanQuery.Builder query = new BooleanQuery.Builder();
+        boolean scored = addWords(query, TITLE, argument.getTitle()) | addWords(query, AUTHOR, argument.getAuthor());
+        if (!scored) {
+            query.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+        }
+        if (CollectionUtils.isNotEmpty(argument.getFormats())) {
+            BooleanQuery.Builder formats = new BooleanQuery.Builder();
+            for (Format format : argument.getFormats()) {
+                formats.add(new TermQuery(new Term(FORMAT, format.name())), BooleanClause.Occur.SHOULD);
+            }
+            query.add(formats.build(), BooleanClause.Occur.FILTER);
+        }
+        if (CollectionUtils.isNotEmpty(argument.getCategories())) {
+            BooleanQuery.Builder categories = new BooleanQuery.Builder();
+            for (Category category : argument.getCategories()) {
+                categories.add(new TermQuery(new Term(CATEGORY, category.name())), BooleanClause.Occur.SHOULD);
+            }
+            query.add(categories.build(), BooleanClause.Occur.FILTER);
+        }
+        if (BookCatalogIndex.isPositive(argument.getPriceFrom()) || BookCatalogIndex.isPositive(argument.getPriceTo())) {
+            long from = BookCatalogIndex.isPositive(argument.getPriceFrom()) ? BookCatalogIndex.minorUnits(argument.getPriceFrom(), RoundingMode.CEILING) : Long.MIN_VALUE;
+            long to = BookCatalogIndex.isPositive(argument.getPriceTo()) ? BookCatalogIndex.minorUnits(argument.getPriceTo(), RoundingMode.FLOOR) : Long.MAX_VALUE;
+            query.add(LongPoint.newRangeQuery(PRICE, from, to), BooleanClause.Occur.FILTER);
+        }
+        if (argument.getPublicationDateStart() != null || argument.getPublicationDateEnd() != null) {
+            long from = argument.getPublicationDateStart() != null ? argument.getPublicationDateStart().toEpochDay() : Long.MIN_VALUE;
+            long to = argument.getPublicationDateEnd() != null ? argument.getPublicationDateEnd().toEpochDay() : Long.MAX_VALUE;
+            query.add(LongPoint.newRangeQuery(PUBLISHED_DATE, from, to), BooleanClause.Occur.FILTER);
+        }
+        if (argument.getIsbn() != null) {
+            Long isbn13 = Isbn.toIsbn13(argument.getIsbn());
+            query.add(isbn13 != null ? LongPoint.newExactQuery(ISBN13, isbn13)
+                    : new WildcardQuery(new Term(ISBN, "*" + escapeWildcards(argument.getIsbn()) + "*")), BooleanClause.Occur.FILTER);
+        }
+        return query.build();
+    }
+
+    //every word of the pattern must be in the field
+    private static boolean addWords(BooleanQuery.Builder query, String field, String pattern) {
+        if (!StringUtils.hasText(pattern)) {
+            return false;
+        }
+        List<String> words = FuzzyTermIndex.tokenize(pattern);
+        if (words.isEmpty()) {
+            //nothing but punctuation, which no book can match as a word
+            query.add(new MatchNoDocsQuery(), BooleanClause.Occur.MUST);
+        }
+        for (String word : words) {
+            query.add(new TermQuery(new Term(field, word.toLowerCase(Locale.ROOT))), BooleanClause.Occur.MUST);
+        }
+        return true;
+    }
+
+    private static String words(String value) {
+        return String.join(" ", FuzzyTermIndex.tokenize(value));
+    }
+
+    private static String escapeWildcards(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            if (c == WildcardQuery.WILDCARD_STRING || c == WildcardQuery.WILDCARD_CHAR || c == WildcardQuery.WILDCARD_ESCAPE) {
+                escaped.append(WildcardQuery.WILDCARD_ESCAPE);
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
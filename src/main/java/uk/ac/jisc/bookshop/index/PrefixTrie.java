@@ -0,0 +1,232 @@
+package uk.ac.jisc.bookshop.index;
+
+import java.util.*;
+
+/**
+ * Case-folded radix trie over the distinct values of a field, counting the slots holding each.
+ * Every node keeps the top completions below it, most frequent first, so a prefix lookup is a
+ * walk down the prefix and a copy of at most k entries.
+ * Not thread safe, guarded by {@link BookCatalogIndex}.
+ */
+public class PrefixTrie {
+
+    private static final Comparator<Completion> RANKING =
+            Comparator.comparingInt((Completion completion) -> completion.count).reversed()
+                    .thenComparing(completion -> completion.key);
+
+    private final int topK;
+    private Node root = new Node("");
+
+    private String[] values = new String[1024];
+
+    public PrefixTrie(int topK) {
+        this.topK = topK;
+    }
+
+    /**
+     * Adds without maintaining the top completions, {@link #seal()} must be called once loading is done.
+     */
+    public void load(int slot, String value) {
+        if (store(slot, value)) {
+            insert(value);
+        }
+    }
+
+    public void seal() {
+        rank(root);
+    }
+
+    public void set(int slot, String value) {
+        if (Objects.equals(slot < values.length ? values[slot] : null, value)) {
+            return;
+        }
+        remove(slot);
+        if (store(slot, value)) {
+            rerank(insert(value));
+        }
+    }
+
+    public void remove(int slot) {
+        if (slot >= values.length || values[slot] == null) {
+            return;
+        }
+        String value = values[slot];
+        values[slot] = null;
+        List<Node> path = find(fold(value));
+        Node node = path.get(path.size() - 1);
+        Completion completion = node.completion;
+        completion.count--;
+        completion.spellings.merge(value, -1, Integer::sum);
+        completion.spellings.remove(value, 0);
+        if (completion.count == 0) {
+            node.completion = null;
+        } else {
+            completion.display = display(completion.spellings);
+        }
+        //drop the nodes left without completions or children
+        for (int i = path.size() - 1; i > 0 && path.get(i).completion == null && path.get(i).children.isEmpty(); i--) {
+            path.get(i - 1).children.remove(path.get(i).label.charAt(0));
+            path.remove(i);
+        }
+        rerank(path);
+    }
+
+    public void clear() {
+        root = new Node("");
+        values = new String[1024];
+    }
+
+    /**
+     * @return up to limit values starting with the prefix ignoring case, most frequent first
+     */
+    public List<String> complete(String prefix, int limit) {
+        String folded = fold(prefix);
+        Node node = root;
+        int i = 0;
+        while (i < folded.length()) {
+            Node child = node.children.get(folded.charAt(i));
+            if (child == null) {
+                return Collections.emptyList();
+            }
+            int common = commonPrefix(child.label, folded, i);
+            if (i + common < folded.length() && common < child.label.length()) {
+                return Collections.emptyList();
+            }
+            i += common;
+            node = child;
+        }
+        List<String> completions = new ArrayList<>(Math.min(limit, node.top.size()));
+        for (int j = 0; j < node.top.size() && j < limit; j++) {
+            completions.add(node.top.get(j).display);
+        }
+        return completions;
+    }
+
+    static String fold(String value) {
+        return value.toUpperCase(Locale.ROOT);
+    }
+
+    private boolean store(int slot, String value) {
+        if (value == null || value.isBlank()) {
+            return false;
+        }
+        if (slot >= values.length) {
+            values = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+        }
+        values[slot] = value;
+        return true;
+    }
+
+    //returns the path from the root to the node of the value
+    private List<Node> insert(String value) {
+        String key = fold(value);
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        path.add(node);
+        int i = 0;
+        while (i < key.length()) {
+            char first = key.charAt(i);
+            Node child = node.children.get(first);
+            if (child == null) {
+                child = new Node(key.substring(i));
+                node.children.put(first, child);
+            } else {
+                int common = commonPrefix(child.label, key, i);
+                if (common < child.label.length()) {
+                    Node split = new Node(child.label.substring(0, common));
+                    child.label = child.label.substring(common);
+                    split.children.put(child.label.charAt(0), child);
+                    split.top = child.top;
+                    node.children.put(first, split);
+                    child = split;
+                }
+            }
+            i += child.label.length();
+            node = child;
+            path.add(node);
+        }
+        if (node.completion == null) {
+            node.completion = new Completion(key);
+        }
+        Completion completion = node.completion;
+        completion.count++;
+        completion.spellings.merge(value, 1, Integer::sum);
+        completion.display = display(completion.spellings);
+        return path;
+    }
+
+    private List<Node> find(String key) {
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        path.add(node);
+        for (int i = 0; i < key.length(); i += node.label.length()) {
+            node = node.children.get(key.charAt(i));
+            path.add(node);
+        }
+        return path;
+    }
+
+    private void rerank(List<Node> path) {
+        for (int i = path.size() - 1; i >= 0; i--) {
+            top(path.get(i));
+        }
+    }
+
+    private void rank(Node node) {
+        for (Node child : node.children.values()) {
+            rank(child);
+        }
+        top(node);
+    }
+
+    private void top(Node node) {
+        List<Completion> candidates = new ArrayList<>();
+        if (node.completion != null) {
+            candidates.add(node.completion);
+        }
+        for (Node child : node.children.values()) {
+            candidates.addAll(child.top);
+        }
+        candidates.sort(RANKING);
+        node.top = candidates.size() > topK ? new ArrayList<>(candidates.subList(0, topK)) : candidates;
+    }
+
+    //the most used spelling of values that only differ in case
+    private static String display(Map<String, Integer> spellings) {
+        return spellings.entrySet().stream()
+                .max(Map.Entry.<String, Integer>comparingByValue().thenComparing(Map.Entry.comparingByKey(Comparator.reverseOrder())))
+                .map(Map.Entry::getKey)
+                .orElse(null);
+    }
+
+    private static int commonPrefix(String label, String key, int offset) {
+        int length = Math.min(label.length(), key.length() - offset);
+        int i = 0;
+        while (i < length && label.charAt(i) == key.charAt(offset + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static final class Node {
+        private String label;
+        private final Map<Character, Node> children = new HashMap<>(4);
+        private Completion completion;
+        private List<Completion> top = Collections.emptyList();
+
+        private Node(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final class Completion {
+        private final String key;
+        private final Map<String, Integer> spellings = new HashMap<>(2);
+        private String display;
+        private int count;
+
+        private Completion(String key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.apache.commons.collections4.CollectionUtils;
+import org.springframework.util.StringUtils;
+import uk.ac.jisc.bookshop.nondomain.BookSearchArgument;
+
+import java.math.BigDecimal;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The filters of a {@link BookSearchArgument}, used to tell which of them the catalog index answered.
+ */
+public enum SearchFilter {
+    TITLE, AUTHOR, PRICE, PUBLISHED_DATE, FORMAT, CATEGORY, ISBN;
+
+    public static Set<SearchFilter> requestedBy(BookSearchArgument argument) {
+        EnumSet<SearchFilter> filters = EnumSet.noneOf(SearchFilter.class);
+        if (StringUtils.hasText(argument.getTitle())) filters.add(TITLE);
+        if (StringUtils.hasText(argument.getAuthor())) filters.add(AUTHOR);
+        if (isPositive(argument.getPriceFrom()) || isPositive(argument.getPriceTo())) filters.add(PRICE);
+        if (argument.getPublicationDateStart() != null || argument.getPublicationDateEnd() != null) filters.add(PUBLISHED_DATE);
+        if (CollectionUtils.isNotEmpty(argument.getFormats())) filters.add(FORMAT);
+        if (CollectionUtils.isNotEmpty(argument.getCategories())) filters.add(CATEGORY);
+        if (argument.getIsbn() != null) filters.add(ISBN);
+        return filters;
+    }
+
+    private static boolean isPositive(BigDecimal value) {
+        return value != null && value.compareTo(BigDecimal.ZERO) > 0;
+    }
+}
@@ -0,0 +1,302 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.*;
+
+/**
+ * Precomputed order of the catalog on one property: the slots sorted by (key, id). Keys compare
+ * the way the database orders the column, nulls lowest and strings by code unit, so a page read
+ * here continues with a cursor seeked in SQL. Slots changed one at a time leave their place in
+ * the order dead and go to a sorted side buffer, read merged with the order, which takes the
+ * buffer in once it outgrows a fraction of the catalog, so that a write costs a logarithm
+ * rather than a shift of the whole order. Not thread safe, guarded by {@link BookCatalogIndex}.
+ */
+public class SortPermutation {
+
+    //changes buffered before they are merged into the order, at least, or an eighth of the entries
+    private static final int MIN_CHANGES = 1024;
+
+    private static final byte ABSENT = 0;
+    private static final byte ORDERED = 1;
+    private static final byte CHANGED = 2;
+    private static final byte LOADED = 3;
+
+    //the ordered slots, with the dead places of those changed or removed since
+    private int[] order = new int[1024];
+    private int orderLength;
+    private int dead;
+    //slots put or loaded since the last merge, the first in (key, id) order
+    private final TreeSet<Integer> changed = new TreeSet<>(this::compare);
+    private int[] loaded = new int[1024];
+    private int loadedLength;
+    private int size;
+
+    private Comparable<Object>[] keyBySlot = newKeys(1024);
+    private long[] idBySlot = new long[1024];
+    private byte[] stateBySlot = new byte[1024];
+
+    public void clear() {
+        orderLength = 0;
+        dead = 0;
+        changed.clear();
+        loadedLength = 0;
+        size = 0;
+        keyBySlot = newKeys(keyBySlot.length);
+        stateBySlot = new byte[stateBySlot.length];
+    }
+
+    /**
+     * Appends without keeping the order, {@link #seal()} must be called once loading is done.
+     * A slot already present is taken out of the order first.
+     */
+    public void load(int slot, long id, Comparable<?> key) {
+        remove(slot);
+        ensureCapacity(slot);
+        if (loadedLength == loaded.length) {
+            loaded = Arrays.copyOf(loaded, loaded.length * 2);
+        }
+        loaded[loadedLength++] = slot;
+        set(slot, id, key, LOADED);
+    }
+
+    //sorts the loaded entries and merges them and the changed ones into the order in one pass
+    public void seal() {
+        Integer[] sortedLoads = new Integer[loadedLength];
+        int loads = 0;
+        for (int i = 0; i < loadedLength; i++) {
+            //loaded again or removed since, its current entry being elsewhere
+            if (stateBySlot[loaded[i]] == LOADED) {
+                stateBySlot[loaded[i]] = ABSENT;
+                sortedLoads[loads++] = loaded[i];
+            }
+        }
+        Arrays.sort(sortedLoads, 0, loads, this::compare);
+        Iterator<Integer> changes = changed.iterator();
+        int[] merged = new int[Math.max(order.length, size)];
+        int head = nextOrdered(0), load = 0;
+        Integer change = changes.hasNext() ? changes.next() : null;
+        for (int i = 0; i < size; i++) {
+            int next = head < orderLength ? order[head] : -1;
+            if (load < loads && (next < 0 || compare(sortedLoads[load], next) < 0)) {
+                next = sortedLoads[load];
+            }
+            if (change != null && (next < 0 || compare(change, next) < 0)) {
+                next = change;
+            }
+            merged[i] = next;
+            if (change != null && next == change) {
+                change = changes.hasNext() ? changes.next() : null;
+            } else if (load < loads && next == sortedLoads[load]) {
+                load++;
+            } else {
+                head = nextOrdered(head + 1);
+            }
+        }
+        //only now, the dead places of the order being told apart by the state of their slots
+        for (int i = 0; i < size; i++) {
+            stateBySlot[merged[i]] = ORDERED;
+        }
+        order = merged;
+        orderLength = size;
+        dead = 0;
+        changed.clear();
+        loadedLength = 0;
+    }
+
+    public void put(int slot, long id, Comparable<?> key) {
+        if (slot < stateBySlot.length && stateBySlot[slot] != ABSENT && idBySlot[slot] == id && compareKeys(keyBySlot[slot], key) == 0) {
+            return;
+        }
+        remove(slot);
+        ensureCapacity(slot);
+        set(slot, id, key, CHANGED);
+        changed.add(slot);
+        if (changed.size() + dead > Math.max(MIN_CHANGES, size / 8)) {
+            seal();
+        }
+    }
+
+    public void remove(int slot) {
+        if (slot >= stateBySlot.length || stateBySlot[slot] == ABSENT) {
+            return;
+        }
+        if (stateBySlot[slot] == ORDERED) {
+            dead++;
+        } else if (stateBySlot[slot] == CHANGED) {
+            changed.remove(slot);
+        }
+        stateBySlot[slot] = ABSENT;
+        keyBySlot[slot] = null;
+        size--;
+    }
+
+    /**
+     * The page of the matching slots in (key, id) order, or in descending key order with ties
+     * still in ascending id order, which is how the search breaks them.
+     * Walks the permutation when the matches are dense enough to fill the page quickly,
+     * otherwise keeps the best of the matches in a heap bounded by the page end.
+     * @param matches the candidate slots, null for all of them
+     * @param limit the number of slots after the offset, 0 for all of them
+     * @return the ids of the slots on the page
+     */
+    public List<Long> page(RoaringBitmap matches, boolean ascending, int offset, int limit) {
+        int count = matches == null ? size : matches.getCardinality();
+        int end = limit > 0 ? (int) Math.min((long) offset + limit, count) : count;
+        if (end <= offset) {
+            return Collections.emptyList();
+        }
+        int[] slots = matches == null || (double) end * size / count <= count
+                ? walk(matches, ascending, end)
+                : heap(matches, ascending, end);
+        List<Long> ids = new ArrayList<>(end - offset);
+        for (int i = offset; i < end; i++) {
+            ids.add(idBySlot[slots[i]]);
+        }
+        return ids;
+    }
+
+    private int[] walk(RoaringBitmap matches, boolean ascending, int end) {
+        int[] slots = new int[end];
+        int found = 0;
+        PrimitiveIterator.OfInt live = new Live(ascending);
+        if (ascending) {
+            while (live.hasNext() && found < end) {
+                int slot = live.nextInt();
+                if (matches == null || matches.contains(slot)) {
+                    slots[found++] = slot;
+                }
+            }
+            return slots;
+        }
+        //ties come from the highest id down, so each run of equal keys is gathered and read backwards
+        int[] tied = new int[16];
+        int ties = 0;
+        Comparable<Object> tiedKey = null;
+        while (found < end && (live.hasNext() || ties > 0)) {
+            int slot = live.hasNext() ? live.nextInt() : -1;
+            if (ties > 0 && (slot < 0 || compareKeys(keyBySlot[slot], tiedKey) != 0)) {
+                for (int i = ties - 1; i >= 0 && found < end; i--) {
+                    slots[found++] = tied[i];
+                }
+                ties = 0;
+            }
+            if (slot >= 0 && (matches == null || matches.contains(slot))) {
+                if (ties == tied.length) {
+                    tied = Arrays.copyOf(tied, ties * 2);
+                }
+                tied[ties++] = slot;
+                tiedKey = keyBySlot[slot];
+            }
+        }
+        return slots;
+    }
+
+    private int[] heap(RoaringBitmap matches, boolean ascending, int end) {
+        Comparator<Integer> pageOrder = (a, b) -> {
+            int byKey = compareKeys(keyBySlot[a], keyBySlot[b]);
+            return byKey != 0 ? (ascending ? byKey : -byKey) : Long.compare(idBySlot[a], idBySlot[b]);
+        };
+        //the worst of the best slots so far on top
+        PriorityQueue<Integer> best = new PriorityQueue<>(end, pageOrder.reversed());
+        matches.forEach((int slot) -> {
+            if (best.size() < end) {
+                best.add(slot);
+            } else if (pageOrder.compare(slot, best.peek()) < 0) {
+                best.poll();
+                best.add(slot);
+            }
+        });
+        int[] slots = new int[best.size()];
+        for (int i = slots.length - 1; i >= 0; i--) {
+            slots[i] = best.poll();
+        }
+        return slots;
+    }
+
+    //the live slots in (key, id) order or its reverse, the order and the changed slots merged as they are read
+    private class Live implements PrimitiveIterator.OfInt {
+        private final boolean ascending;
+        private final Iterator<Integer> changes;
+        private int position;
+        private Integer change;
+
+        Live(boolean ascending) {
+            this.ascending = ascending;
+            this.changes = ascending ? changed.iterator() : changed.descendingIterator();
+            this.position = ascending ? nextOrdered(0) : previousOrdered(orderLength - 1);
+            this.change = changes.hasNext() ? changes.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return change != null || (position >= 0 && position < orderLength);
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            boolean ordered = position >= 0 && position < orderLength;
+            if (change != null && (!ordered || (ascending ? compare(change, order[position]) < 0 : compare(change, order[position]) > 0))) {
+                int slot = change;
+                change = changes.hasNext() ? changes.next() : null;
+                return slot;
+            }
+            int slot = order[position];
+            position = ascending ? nextOrdered(position + 1) : previousOrdered(position - 1);
+            return slot;
+        }
+    }
+
+    //the first live place of the order from the given one
+    private int nextOrdered(int position) {
+        while (position < orderLength && stateBySlot[order[position]] != ORDERED) {
+            position++;
+        }
+        return position;
+    }
+
+    private int previousOrdered(int position) {
+        while (position >= 0 && stateBySlot[order[position]] != ORDERED) {
+            position--;
+        }
+        return position;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void set(int slot, long id, Comparable<?> key, byte state) {
+        keyBySlot[slot] = (Comparable<Object>) key;
+        idBySlot[slot] = id;
+        stateBySlot[slot] = state;
+        size++;
+    }
+
+    private int compare(int a, int b) {
+        int byKey = compareKeys(keyBySlot[a], keyBySlot[b]);
+        return byKey != 0 ? byKey : Long.compare(idBySlot[a], idBySlot[b]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareKeys(Comparable<?> a, Comparable<?> b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    private void ensureCapacity(int slot) {
+        if (slot >= stateBySlot.length) {
+            int length = Math.max(stateBySlot.length * 2, slot + 1);
+            keyBySlot = Arrays.copyOf(keyBySlot, length);
+            idBySlot = Arrays.copyOf(idBySlot, length);
+            stateBySlot = Arrays.copyOf(stateBySlot, length);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Comparable<Object>[] newKeys(int length) {
+        return (Comparable<Object>[]) new Comparable[length];
+    }
+}
@@ -0,0 +1,263 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Primitive range index: a {@code long} key per slot, kept as parallel arrays sorted by
+ * (key, slot). A range lookup is two binary searches and yields a run of slots.
+ * Slots without a key are left out, like rows with a null column never match a range in SQL.
+ * As in {@link SortPermutation}, slots changed one at a time leave their place in the arrays
+ * dead and go to a side buffer by key, read along with the arrays, which take the buffer in once
+ * it outgrows a fraction of the catalog, so that a write does not shift the whole arrays.
+ * Not thread safe, guarded by {@link BookCatalogIndex}.
+ */
+public class SortedLongIndex {
+
+    //changes buffered before they are merged into the arrays, at least, or an eighth of the entries
+    private static final int MIN_CHANGES = 1024;
+
+    private static final byte ABSENT = 0;
+    private static final byte ORDERED = 1;
+    private static final byte CHANGED = 2;
+
+    private long[] keys = new long[1024];
+    private int[] slots = new int[1024];
+    //entries in the arrays, those loaded since the last seal following the sorted ones
+    private int size;
+    private int sorted;
+    //slots whose place in the arrays is dead, changed or removed since the last seal
+    private final RoaringBitmap dead = new RoaringBitmap();
+    private int deadCount;
+    //slots put since the last seal, by key
+    private final TreeMap<Long, RoaringBitmap> changed = new TreeMap<>();
+    private int changes;
+
+    private long[] keyBySlot = new long[1024];
+    private byte[] stateBySlot = new byte[1024];
+
+    //keeps the arrays as grown, a rebuild being about as big as the catalog before it
+    public void clear() {
+        size = 0;
+        sorted = 0;
+        dead.clear();
+        deadCount = 0;
+        changed.clear();
+        changes = 0;
+        Arrays.fill(stateBySlot, ABSENT);
+    }
+
+    /**
+     * Appends without keeping the order, {@link #seal()} must be called once loading is done.
+     * A slot already there, or whose place is dead, is put instead.
+     */
+    public void load(int slot, Long key) {
+        if ((slot < stateBySlot.length && stateBySlot[slot] != ABSENT) || dead.contains(slot)) {
+            put(slot, key);
+            return;
+        }
+        if (key == null) {
+            return;
+        }
+        ensureCapacity(size + 1, slot);
+        keys[size] = key;
+        slots[size] = slot;
+        size++;
+        keyBySlot[slot] = key;
+        stateBySlot[slot] = ORDERED;
+    }
+
+    //sorts the loaded entries and merges them and the changed ones into the arrays in one pass, dropping the dead places
+    public void seal() {
+        quickSort(sorted, size - 1);
+        long[] changedKeys = new long[changes];
+        int[] changedSlots = new int[changes];
+        int buffered = 0;
+        for (Map.Entry<Long, RoaringBitmap> entry : changed.entrySet()) {
+            for (int slot : entry.getValue()) {
+                changedKeys[buffered] = entry.getKey();
+                changedSlots[buffered++] = slot;
+                stateBySlot[slot] = ORDERED;
+            }
+        }
+        int live = size - deadCount + changes;
+        long[] mergedKeys = new long[Math.max(keys.length, live)];
+        int[] mergedSlots = new int[mergedKeys.length];
+        int head = nextLive(0, sorted), load = nextLive(sorted, size), change = 0;
+        for (int i = 0; i < live; i++) {
+            boolean loaded = load < size && (head >= sorted || compare(keys[load], slots[load], keys[head], slots[head]) < 0);
+            int from = loaded ? load : head < sorted ? head : -1;
+            if (change < changes && (from < 0 || compare(changedKeys[change], changedSlots[change], keys[from], slots[from]) < 0)) {
+                mergedKeys[i] = changedKeys[change];
+                mergedSlots[i] = changedSlots[change++];
+                continue;
+            }
+            mergedKeys[i] = keys[from];
+            mergedSlots[i] = slots[from];
+            if (loaded) {
+                load = nextLive(load + 1, size);
+            } else {
+                head = nextLive(head + 1, sorted);
+            }
+        }
+        keys = mergedKeys;
+        slots = mergedSlots;
+        size = live;
+        sorted = live;
+        dead.clear();
+        deadCount = 0;
+        changed.clear();
+        changes = 0;
+    }
+
+    public void put(int slot, Long key) {
+        if (key != null && slot < stateBySlot.length && stateBySlot[slot] != ABSENT && keyBySlot[slot] == key) {
+            return;
+        }
+        remove(slot);
+        if (key == null) {
+            return;
+        }
+        ensureCapacity(size, slot);
+        keyBySlot[slot] = key;
+        stateBySlot[slot] = CHANGED;
+        changed.computeIfAbsent(key, k -> new RoaringBitmap()).add(slot);
+        changes++;
+        if (changes + deadCount > Math.max(MIN_CHANGES, size / 8)) {
+            seal();
+        }
+    }
+
+    public void remove(int slot) {
+        if (slot >= stateBySlot.length || stateBySlot[slot] == ABSENT) {
+            return;
+        }
+        if (stateBySlot[slot] == ORDERED) {
+            dead.add(slot);
+            deadCount++;
+        } else {
+            RoaringBitmap buffered = changed.get(keyBySlot[slot]);
+            buffered.remove(slot);
+            if (buffered.isEmpty()) {
+                changed.remove(keyBySlot[slot]);
+            }
+            changes--;
+        }
+        stateBySlot[slot] = ABSENT;
+    }
+
+    /**
+     * @return the slots with a key between from and to, both inclusive
+     */
+    public RoaringBitmap range(long from, long to) {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        if (from > to) {
+            return bitmap;
+        }
+        int start = lowerBound(from);
+        int end = upperBound(to);
+        if (start < end) {
+            bitmap.addN(slots, start, end - start);
+        }
+        //a slot changed since has lost its dead place here and is taken back from the buffer when in range
+        if (deadCount > 0) {
+            bitmap.andNot(dead);
+        }
+        for (RoaringBitmap buffered : changed.subMap(from, true, to, true).values()) {
+            bitmap.or(buffered);
+        }
+        return bitmap;
+    }
+
+    public int count(long from, long to) {
+        return range(from, to).getCardinality();
+    }
+
+    public Long get(int slot) {
+        return slot < stateBySlot.length && stateBySlot[slot] != ABSENT ? keyBySlot[slot] : null;
+    }
+
+    //the first live place of the arrays from the given one
+    private int nextLive(int position, int end) {
+        while (position < end && dead.contains(slots[position])) {
+            position++;
+        }
+        return position;
+    }
+
+    //first sorted position with a key not less than the given one
+    private int lowerBound(long key) {
+        int low = 0, high = sorted;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < key) low = middle + 1; else high = middle;
+        }
+        return low;
+    }
+
+    //first sorted position with a key greater than the given one
+    private int upperBound(long key) {
+        int low = 0, high = sorted;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] <= key) low = middle + 1; else high = middle;
+        }
+        return low;
+    }
+
+    private static int compare(long key, int slot, long otherKey, int otherSlot) {
+        int compared = Long.compare(key, otherKey);
+        return compared != 0 ? compared : Integer.compare(slot, otherSlot);
+    }
+
+    private void quickSort(int low, int high) {
+        while (high - low > 16) {
+            int middle = (low + high) >>> 1;
+            long pivotKey = keys[middle];
+            int pivotSlot = slots[middle];
+            int i = low, j = high;
+            while (i <= j) {
+                while (compare(keys[i], slots[i], pivotKey, pivotSlot) < 0) i++;
+                while (compare(keys[j], slots[j], pivotKey, pivotSlot) > 0) j--;
+                if (i <= j) swap(i++, j--);
+            }
+            //recurse into the smaller half to bound the stack depth
+            if (j - low < high - i) {
+                quickSort(low, j);
+                low = i;
+            } else {
+                quickSort(i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && compare(keys[j - 1], slots[j - 1], keys[j], slots[j]) > 0; j--) {
+                swap(j - 1, j);
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        int slot = slots[i];
+        slots[i] = slots[j];
+        slots[j] = slot;
+    }
+
+    private void ensureCapacity(int entries, int slot) {
+        if (entries > keys.length) {
+            keys = Arrays.copyOf(keys, keys.length * 2);
+            slots = Arrays.copyOf(slots, slots.length * 2);
+        }
+        if (slot >= keyBySlot.length) {
+            int length = Math.max(slot + 1, keyBySlot.length * 2);
+            keyBySlot = Arrays.copyOf(keyBySlot, length);
+            stateBySlot = Arrays.copyOf(stateBySlot, length);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.*;
+
+/**
+ * Inverted index from case-folded character trigrams to the slots holding them.
+ * Matches are verified against the stored value, so a search returns exactly the
+ * slots whose value contains the pattern, the same as {@code upper(x) like '%P%'}.
+ * Not thread safe, guarded by {@link BookCatalogIndex}.
+ */
+public class TrigramIndex {
+
+    public static final int GRAM_LENGTH = 3;
+
+    private final Map<Long, RoaringBitmap> postings = new HashMap<>();
+
+    private String[] values = new String[1024];
+
+    public void add(int slot, String value) {
+        remove(slot);
+        if (value == null) {
+            return;
+        }
+        String folded = fold(value);
+        ensureCapacity(slot);
+        values[slot] = folded;
+        for (long gram : grams(folded)) {
+            postings.computeIfAbsent(gram, g -> new RoaringBitmap()).add(slot);
+        }
+    }
+
+    public void remove(int slot) {
+        if (slot >= values.length || values[slot] == null) {
+            return;
+        }
+        for (long gram : grams(values[slot])) {
+            RoaringBitmap posting = postings.get(gram);
+            if (posting != null) {
+                posting.remove(slot);
+                if (posting.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+        values[slot] = null;
+    }
+
+    public void clear() {
+        postings.clear();
+        values = new String[1024];
+    }
+
+    /**
+     * @return the slots whose value contains the pattern ignoring case, or null when the
+     * pattern is too short to be served by trigrams
+     */
+    public RoaringBitmap search(String pattern) {
+        String folded = fold(pattern);
+        if (folded.length() < GRAM_LENGTH) {
+            return null;
+        }
+        List<RoaringBitmap> lists = new ArrayList<>();
+        for (long gram : grams(folded)) {
+            RoaringBitmap posting = postings.get(gram);
+            if (posting == null) {
+                return new RoaringBitmap();
+            }
+            lists.add(posting);
+        }
+        lists.sort(Comparator.comparingInt(RoaringBitmap::getCardinality));
+        RoaringBitmap candidates = lists.get(0).clone();
+        for (int i = 1; i < lists.size() && !candidates.isEmpty(); i++) {
+            candidates.and(lists.get(i));
+        }
+        RoaringBitmap matches = new RoaringBitmap();
+        candidates.forEach((int slot) -> {
+            if (values[slot].contains(folded)) {
+                matches.add(slot);
+            }
+        });
+        return matches;
+    }
+
+    public static String fold(String value) {
+        return value.toUpperCase(Locale.ROOT);
+    }
+
+    private static Set<Long> grams(String folded) {
+        Set<Long> grams = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= folded.length(); i++) {
+            grams.add(((long) folded.charAt(i) << 32) | ((long) folded.charAt(i + 1) << 16) | folded.charAt(i + 2));
+        }
+        return grams;
+    }
+
+    private void ensureCapacity(int slot) {
+        if (slot >= values.length) {
+            values = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+        }
+    }
+}
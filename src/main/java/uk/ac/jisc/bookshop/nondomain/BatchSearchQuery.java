@@ -0,0 +1,141 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import uk.ac.jisc.bookshop.domain.Category;
+import uk.ac.jisc.bookshop.domain.Format;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * One search of a batch, with the same names and defaults as the request parameters of /search,
+ * except that it must be paged: the pages of a batch are read together, so their size is bounded.
+ */
+public class BatchSearchQuery {
+
+    public static final int MAX_SIZE = 1000;
+
+    private String title;
+    private String author;
+    @Min(0)
+    private Integer priceStart;
+    @Min(0)
+    private Integer priceEnd;
+    private LocalDate dateStart;
+    private LocalDate dateEnd;
+    private List<Format> format;
+    private List<Category> category;
+    private String isbn;
+    @Min(0)
+    private int page;
+    @Min(1)
+    @Max(MAX_SIZE)
+    private int size = 10;
+    private List<String> sort = List.of("title;desc");
+    private boolean fuzzy;
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public void setAuthor(String author) {
+        this.author = author;
+    }
+
+    public Integer getPriceStart() {
+        return priceStart;
+    }
+
+    public void setPriceStart(Integer priceStart) {
+        this.priceStart = priceStart;
+    }
+
+    public Integer getPriceEnd() {
+        return priceEnd;
+    }
+
+    public void setPriceEnd(Integer priceEnd) {
+        this.priceEnd = priceEnd;
+    }
+
+    public LocalDate getDateStart() {
+        return dateStart;
+    }
+
+    public void setDateStart(LocalDate dateStart) {
+        this.dateStart = dateStart;
+    }
+
+    public LocalDate getDateEnd() {
+        return dateEnd;
+    }
+
+    public void setDateEnd(LocalDate dateEnd) {
+        this.dateEnd = dateEnd;
+    }
+
+    public List<Format> getFormat() {
+        return format;
+    }
+
+    public void setFormat(List<Format> format) {
+        this.format = format;
+    }
+
+    public List<Category> getCategory() {
+        return category;
+    }
+
+    public void setCategory(List<Category> category) {
+        this.category = category;
+    }
+
+    public String getIsbn() {
+        return isbn;
+    }
+
+    public void setIsbn(String isbn) {
+        this.isbn = isbn;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public void setPage(int page) {
+        this.page = page;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public List<String> getSort() {
+        return sort;
+    }
+
+    public void setSort(List<String> sort) {
+        this.sort = sort;
+    }
+
+    public boolean isFuzzy() {
+        return fuzzy;
+    }
+
+    public void setFuzzy(boolean fuzzy) {
+        this.fuzzy = fuzzy;
+    }
+}
@@ -0,0 +1,42 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import java.util.Arrays;
+
+/**
+ * The properties of a book that can be selected with the fields request parameter.
+ */
+public enum BookField {
+    ID("id"),
+    TITLE("title"),
+    AUTHOR("author"),
+    FORMAT("format"),
+    PRICE("price"),
+    CATEGORY("category"),
+    PUBLISHED_DATE("publishedDate"),
+    ISBN("isbn"),
+    STOCK_LEVEL("stockLevel");
+
+    private String value;
+
+    BookField(String value){
+        this.value = value;
+    }
+
+    public static BookField fromValue(String value){
+        for (BookField field : values()){
+            if(field.value.contentEquals(value)){
+                return field;
+            }
+        }
+        throw new IllegalArgumentException("Unknown enum type " + value + ",  Allowed values are " + Arrays.toString(values())) ;
+    }
+
+    public String getValue(){
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
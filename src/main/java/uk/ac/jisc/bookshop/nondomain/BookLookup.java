@@ -0,0 +1,27 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import uk.ac.jisc.bookshop.domain.Book;
+
+import java.util.List;
+
+/**
+ * The books found for a list of ids, in the order the ids were asked for, and the ids of
+ * those that do not exist.
+ */
+public class BookLookup {
+    private final List<Book> books;
+    private final List<Long> missing;
+
+    public BookLookup(List<Book> books, List<Long> missing) {
+        this.books = books;
+        this.missing = missing;
+    }
+
+    public List<Book> getBooks() {
+        return books;
+    }
+
+    public List<Long> getMissing() {
+        return missing;
+    }
+}
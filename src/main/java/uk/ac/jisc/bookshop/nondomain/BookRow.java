@@ -0,0 +1,49 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A book read as a tuple of selected columns rather than as an entity. It may hold more
+ * columns than were asked for, such as the sort keys needed for the next cursor, but only
+ * writes the selected fields, in the same formats as {@link uk.ac.jisc.bookshop.domain.Book}.
+ */
+public class BookRow {
+
+    private final Map<String, Object> values;
+    private final List<BookField> fields;
+
+    public BookRow(Map<String, Object> values, List<BookField> fields) {
+        this.values = values;
+        this.fields = fields;
+    }
+
+    public Object get(String property) {
+        return values.get(property);
+    }
+
+    public Long getId() {
+        return (Long) values.get(BookField.ID.getValue());
+    }
+
+    @JsonValue
+    public Map<String, Object> toJson() {
+        Map<String, Object> json = new LinkedHashMap<>();
+        for (BookField field : fields) {
+            Object value = values.get(field.getValue());
+            if (value instanceof BigDecimal price) {
+                //same format as PriceSerializer
+                value = price.setScale(2, RoundingMode.HALF_UP).toString();
+            } else if (value != null && field == BookField.PUBLISHED_DATE) {
+                value = value.toString();
+            }
+            json.put(field.getValue(), value);
+        }
+        return json;
+    }
+}
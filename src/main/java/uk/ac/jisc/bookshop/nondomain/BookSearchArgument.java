@@ -10,6 +10,9 @@ import java.util.Date;
 import java.util.List;
 
 public class BookSearchArgument {
+    //sort key ranking the books by how well their title and author match, rather than by a column
+    public static final String RELEVANCE = "relevance";
+
     private String title;
     private String author;
     private List<Format> formats;
@@ -29,6 +32,12 @@ public class BookSearchArgument {
 
     private Sort sorts;
 
+    private SearchCursor cursor;
+
+    private List<BookField> fields;
+
+    private boolean fuzzy;
+
     public String getTitle() {
         return title;
     }
@@ -141,4 +150,37 @@ public class BookSearchArgument {
     public void setSorts(Sort sorts) {
         this.sorts = sorts;
     }
+
+    public boolean isRelevanceSorted() {
+        return isRelevance(sorts);
+    }
+
+    //relevance has to come first, any sort after it is ignored
+    public static boolean isRelevance(Sort sorts) {
+        return sorts != null && sorts.stream().findFirst().map(order -> order.getProperty().equals(RELEVANCE)).orElse(false);
+    }
+
+    public SearchCursor getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(SearchCursor cursor) {
+        this.cursor = cursor;
+    }
+
+    public List<BookField> getFields() {
+        return fields;
+    }
+
+    public void setFields(List<BookField> fields) {
+        this.fields = fields;
+    }
+
+    public boolean isFuzzy() {
+        return fuzzy;
+    }
+
+    public void setFuzzy(boolean fuzzy) {
+        this.fuzzy = fuzzy;
+    }
 }
@@ -0,0 +1,52 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of a bulk insert: how many books were saved, and why each of the others was not,
+ * by its position in the request.
+ */
+public class BulkResult {
+    private long saved;
+    private final List<Failure> failures = new ArrayList<>();
+
+    public void addSaved(int count) {
+        saved += count;
+    }
+
+    public void addFailure(long index, Map<String, String> errors) {
+        failures.add(new Failure(index, errors));
+    }
+
+    public long getSaved() {
+        return saved;
+    }
+
+    public int getFailed() {
+        return failures.size();
+    }
+
+    public List<Failure> getFailures() {
+        return failures;
+    }
+
+    public static class Failure {
+        private final long index;
+        private final Map<String, String> errors;
+
+        Failure(long index, Map<String, String> errors) {
+            this.index = index;
+            this.errors = errors;
+        }
+
+        public long getIndex() {
+            return index;
+        }
+
+        public Map<String, String> getErrors() {
+            return errors;
+        }
+    }
+}
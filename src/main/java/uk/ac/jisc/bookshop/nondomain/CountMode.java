@@ -0,0 +1,38 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import java.util.Arrays;
+
+/**
+ * How a paged search reports the number of matching books.
+ */
+public enum CountMode {
+    //only tell whether a next page exists
+    NONE("none"),
+    EXACT("exact"),
+    //exact when cheap, otherwise extrapolated from a sample
+    ESTIMATE("estimate");
+
+    private String value;
+
+    CountMode(String value){
+        this.value = value;
+    }
+
+    public static CountMode fromValue(String value){
+        for (CountMode mode : values()){
+            if(mode.value.contentEquals(value)){
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown enum type " + value + ",  Allowed values are " + Arrays.toString(values())) ;
+    }
+
+    public String getValue(){
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -0,0 +1,55 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.springframework.http.MediaType;
+
+import java.util.Arrays;
+
+/**
+ * The formats the catalog is exported in: csv with a header row, newline delimited json, or a
+ * columnar binary layout with the values of each property stored together.
+ */
+public enum ExportFormat {
+    CSV("csv", "csv", MediaType.parseMediaType("text/csv")),
+    NDJSON("ndjson", "ndjson", MediaType.parseMediaType("application/x-ndjson")),
+    COLUMNAR("columnar", "bkc", MediaType.APPLICATION_OCTET_STREAM);
+
+    private String value;
+    private String extension;
+    private MediaType mediaType;
+
+    ExportFormat(String value, String extension, MediaType mediaType){
+        this.value = value;
+        this.extension = extension;
+        this.mediaType = mediaType;
+    }
+
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public static ExportFormat fromValue(String value){
+        for (ExportFormat format : values()){
+            if(format.value.contentEquals(value)){
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown enum type " + value + ",  Allowed values are " + Arrays.toString(values())) ;
+    }
+
+    @JsonValue
+    public String getValue(){
+        return value;
+    }
+
+    public String getExtension(){
+        return extension;
+    }
+
+    public MediaType getMediaType(){
+        return mediaType;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -0,0 +1,225 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * What an export has written so far: its chunk files in id order, each with its row count, size,
+ * crc32c and id range. Kept next to the chunks and rewritten after each one, so that an export
+ * interrupted at any point resumes after its last complete chunk.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ExportManifest {
+
+    public enum Status {
+        RUNNING, DONE, FAILED;
+
+        @JsonValue
+        public String getValue(){
+            return name().toLowerCase();
+        }
+    }
+
+    private String id;
+    private ExportFormat format;
+    private int chunkRows;
+    private volatile Status status = Status.RUNNING;
+    private volatile String error;
+    private Instant startedAt;
+    private volatile Instant finishedAt;
+    private List<Chunk> chunks = new CopyOnWriteArrayList<>();
+
+    public ExportManifest() {
+    }
+
+    public ExportManifest(String id, ExportFormat format, int chunkRows) {
+        this.id = id;
+        this.format = format;
+        this.chunkRows = chunkRows;
+        this.startedAt = Instant.now();
+    }
+
+    //the id the next chunk starts after
+    public Long lastId() {
+        return chunks.isEmpty() ? null : chunks.get(chunks.size() - 1).getLastId();
+    }
+
+    public void addChunk(Chunk chunk) {
+        chunks.add(chunk);
+    }
+
+    public void restart() {
+        status = Status.RUNNING;
+        error = null;
+        finishedAt = null;
+    }
+
+    public void finish() {
+        finishedAt = Instant.now();
+        status = Status.DONE;
+    }
+
+    public void fail(String error) {
+        this.error = error;
+        finishedAt = Instant.now();
+        status = Status.FAILED;
+    }
+
+    public long getRows() {
+        return chunks.stream().mapToLong(Chunk::getRows).sum();
+    }
+
+    public long getBytes() {
+        return chunks.stream().mapToLong(Chunk::getBytes).sum();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public ExportFormat getFormat() {
+        return format;
+    }
+
+    public void setFormat(ExportFormat format) {
+        this.format = format;
+    }
+
+    public int getChunkRows() {
+        return chunkRows;
+    }
+
+    public void setChunkRows(int chunkRows) {
+        this.chunkRows = chunkRows;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+
+    public void setStartedAt(Instant startedAt) {
+        this.startedAt = startedAt;
+    }
+
+    public Instant getFinishedAt() {
+        return finishedAt;
+    }
+
+    public void setFinishedAt(Instant finishedAt) {
+        this.finishedAt = finishedAt;
+    }
+
+    public List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(List<Chunk> chunks) {
+        this.chunks = new CopyOnWriteArrayList<>(chunks);
+    }
+
+    public static class Chunk {
+        private int index;
+        private String file;
+        private long rows;
+        private long bytes;
+        private String crc32c;
+        private Long firstId;
+        private Long lastId;
+
+        public Chunk() {
+        }
+
+        public Chunk(int index, String file) {
+            this.index = index;
+            this.file = file;
+        }
+
+        public void add(long id) {
+            if (firstId == null) {
+                firstId = id;
+            }
+            lastId = id;
+            rows++;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public void setIndex(int index) {
+            this.index = index;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public void setFile(String file) {
+            this.file = file;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public void setRows(long rows) {
+            this.rows = rows;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public void setBytes(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public String getCrc32c() {
+            return crc32c;
+        }
+
+        public void setCrc32c(String crc32c) {
+            this.crc32c = crc32c;
+        }
+
+        public Long getFirstId() {
+            return firstId;
+        }
+
+        public void setFirstId(Long firstId) {
+            this.firstId = firstId;
+        }
+
+        public Long getLastId() {
+            return lastId;
+        }
+
+        public void setLastId(Long lastId) {
+            this.lastId = lastId;
+        }
+    }
+}
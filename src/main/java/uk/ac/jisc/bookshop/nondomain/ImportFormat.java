@@ -0,0 +1,67 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.springframework.http.MediaType;
+
+import java.util.Arrays;
+
+/**
+ * The formats a catalog import reads, one book per line: csv with a header row naming the
+ * book properties, or newline delimited json in the same form as the json api.
+ */
+public enum ImportFormat {
+    CSV("csv", MediaType.parseMediaType("text/csv")),
+    NDJSON("ndjson", MediaType.parseMediaType("application/x-ndjson"));
+
+    private String value;
+    private MediaType mediaType;
+
+    ImportFormat(String value, MediaType mediaType){
+        this.value = value;
+        this.mediaType = mediaType;
+    }
+
+    public static ImportFormat fromValue(String value){
+        for (ImportFormat format : values()){
+            if(format.value.contentEquals(value)){
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown enum type " + value + ",  Allowed values are " + Arrays.toString(values())) ;
+    }
+
+    public static ImportFormat fromMediaType(MediaType mediaType){
+        for (ImportFormat format : values()){
+            if(format.mediaType.equalsTypeAndSubtype(mediaType)){
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported media type " + mediaType + ",  Allowed values are " + Arrays.toString(values())) ;
+    }
+
+    //.csv, .ndjson or .jsonl
+    public static ImportFormat fromFileName(String fileName){
+        String name = fileName.toLowerCase();
+        if(name.endsWith(".csv")){
+            return CSV;
+        }
+        if(name.endsWith(".ndjson") || name.endsWith(".jsonl")){
+            return NDJSON;
+        }
+        throw new IllegalArgumentException("Cannot tell the format of " + fileName + ",  Allowed values are " + Arrays.toString(values())) ;
+    }
+
+    @JsonValue
+    public String getValue(){
+        return value;
+    }
+
+    public MediaType getMediaType(){
+        return mediaType;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -0,0 +1,9 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import java.beans.PropertyEditorSupport;
+
+public class ImportFormatRequestParamConverter extends PropertyEditorSupport {
+    public void setAsText(final String text) throws IllegalArgumentException {
+        setValue(ImportFormat.fromValue(text));
+    }
+}
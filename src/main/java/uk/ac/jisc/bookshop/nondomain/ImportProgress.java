@@ -0,0 +1,123 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a catalog import, updated by its workers as chunks are saved. Rejected rows are
+ * reported by line number, only the first ones of them being kept with their errors.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ImportProgress {
+
+    public enum Status {
+        RUNNING, DONE, FAILED;
+
+        @JsonValue
+        public String getValue(){
+            return name().toLowerCase();
+        }
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final String source;
+    private final ImportFormat format;
+    private final Instant startedAt = Instant.now();
+    private final int maxReportedFailures;
+    private volatile Instant finishedAt;
+    private volatile Status status = Status.RUNNING;
+    private volatile String error;
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicLong saved = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final List<BulkResult.Failure> failures = new ArrayList<>();
+
+    public ImportProgress(String source, ImportFormat format, int maxReportedFailures) {
+        this.source = source;
+        this.format = format;
+        this.maxReportedFailures = maxReportedFailures;
+    }
+
+    public void addRowsRead(int count) {
+        rowsRead.addAndGet(count);
+    }
+
+    public void add(BulkResult chunk) {
+        saved.addAndGet(chunk.getSaved());
+        failed.addAndGet(chunk.getFailed());
+        synchronized (failures) {
+            chunk.getFailures().stream().limit(Math.max(0, maxReportedFailures - failures.size())).forEach(failures::add);
+        }
+    }
+
+    public void finish() {
+        finishedAt = Instant.now();
+        if (status == Status.RUNNING) {
+            status = Status.DONE;
+        }
+    }
+
+    //the rows already read are still saved, but nothing after them
+    public void fail(String error) {
+        this.error = error;
+        status = Status.FAILED;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public ImportFormat getFormat() {
+        return format;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+
+    public Instant getFinishedAt() {
+        return finishedAt;
+    }
+
+    public long getRowsRead() {
+        return rowsRead.get();
+    }
+
+    public long getSaved() {
+        return saved.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getRowsPerSecond() {
+        long millis = Duration.between(startedAt, finishedAt == null ? Instant.now() : finishedAt).toMillis();
+        return (getSaved() + getFailed()) * 1000 / Math.max(1, millis);
+    }
+
+    public List<BulkResult.Failure> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+}
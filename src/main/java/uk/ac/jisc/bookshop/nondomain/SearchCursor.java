@@ -0,0 +1,118 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.PropertyAccessorFactory;
+import org.springframework.data.domain.Sort;
+import uk.ac.jisc.bookshop.Exception.InvalidCursorException;
+import uk.ac.jisc.bookshop.domain.Book;
+import uk.ac.jisc.bookshop.domain.Category;
+import uk.ac.jisc.bookshop.domain.Format;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Opaque keyset paging token. It carries the sort key values and the id of the last row
+ * of a page, so the next page can seek past that row instead of skipping an offset.
+ */
+public class SearchCursor {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String sort;
+    private final List<String> keys;
+    private final Long id;
+
+    private SearchCursor(String sort, List<String> keys, Long id) {
+        this.sort = sort;
+        this.keys = keys;
+        this.id = id;
+    }
+
+    public static SearchCursor after(Book book, Sort sorts) {
+        BeanWrapper wrapper = PropertyAccessorFactory.forBeanPropertyAccess(book);
+        return after(wrapper::getPropertyValue, book.getId(), sorts);
+    }
+
+    public static SearchCursor after(BookRow row, Sort sorts) {
+        return after(row::get, row.getId(), sorts);
+    }
+
+    private static SearchCursor after(Function<String, Object> properties, Long id, Sort sorts) {
+        List<String> keys = new ArrayList<>();
+        for (Sort.Order order : Optional.ofNullable(sorts).orElse(Sort.unsorted())) {
+            Object value = properties.apply(order.getProperty());
+            keys.add(value == null ? null : value instanceof BigDecimal ? ((BigDecimal) value).toPlainString() : value.toString());
+        }
+        return new SearchCursor(signature(sorts), keys, id);
+    }
+
+    public static SearchCursor decode(String token, Sort sorts) {
+        Map<?, ?> content;
+        try {
+            content = MAPPER.readValue(Base64.getUrlDecoder().decode(token), Map.class);
+        } catch (Exception e) {
+            throw new InvalidCursorException("malformed token");
+        }
+        if (!(content.get("k") instanceof List<?> rawKeys) || !(content.get("i") instanceof Number id)) {
+            throw new InvalidCursorException("malformed token");
+        }
+        if (!signature(sorts).equals(content.get("s"))) {
+            throw new InvalidCursorException("the sort order has changed");
+        }
+        List<String> keys = rawKeys.stream().map(key -> key == null ? null : key.toString()).collect(Collectors.toList());
+        if (keys.size() != Optional.ofNullable(sorts).orElse(Sort.unsorted()).stream().count()) {
+            throw new InvalidCursorException("malformed token");
+        }
+        return new SearchCursor(signature(sorts), keys, id.longValue());
+    }
+
+    public String encode() {
+        Map<String, Object> content = new LinkedHashMap<>();
+        content.put("s", sort);
+        content.put("k", keys);
+        content.put("i", id);
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(MAPPER.writeValueAsString(content).getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    /**
+     * @return the sort key at the given position converted to the type of the sorted attribute
+     */
+    public Object getKey(int index, Class<?> type) {
+        String raw = keys.get(index);
+        if (raw == null) {
+            return null;
+        }
+        try {
+            if (type == String.class) return raw;
+            if (type == BigDecimal.class) return new BigDecimal(raw);
+            if (type == LocalDate.class) return LocalDate.parse(raw);
+            if (type == Integer.class || type == int.class) return Integer.valueOf(raw);
+            if (type == Long.class || type == long.class) return Long.valueOf(raw);
+            if (type == Format.class) return Format.fromValue(raw);
+            if (type == Category.class) return Category.fromValue(raw);
+        } catch (RuntimeException e) {
+            throw new InvalidCursorException("bad sort key " + raw);
+        }
+        throw new InvalidCursorException("unsupported sort type " + type.getSimpleName());
+    }
+
+    private static String signature(Sort sorts) {
+        return Optional.ofNullable(sorts).orElse(Sort.unsorted()).stream()
+                .map(order -> order.getProperty() + ":" + order.getDirection())
+                .collect(Collectors.joining(","));
+    }
+}
@@ -0,0 +1,110 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import uk.ac.jisc.bookshop.domain.Category;
+import uk.ac.jisc.bookshop.domain.Format;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Counts of the books matching a search per format, category, price band and publication year.
+ * Every format, category and band is listed, with zero when nothing matches it, while only the
+ * years holding a match are. Books without a price or a date are left out of those facets.
+ */
+public class SearchFacets {
+    private long total;
+    private final Map<String, Long> formats = new LinkedHashMap<>();
+    private final Map<String, Long> categories = new LinkedHashMap<>();
+    private final List<PriceBand> prices = new ArrayList<>();
+    private final Map<Integer, Long> years = new TreeMap<>();
+
+    /**
+     * @param priceBands the ascending bounds between bands, a price equal to a bound falls in the band above it
+     */
+    public SearchFacets(List<BigDecimal> priceBands) {
+        for (Format format : Format.values()) {
+            formats.put(format.getValue(), 0L);
+        }
+        for (Category category : Category.values()) {
+            categories.put(category.getValue(), 0L);
+        }
+        for (int band = 0; band <= priceBands.size(); band++) {
+            prices.add(new PriceBand(band == 0 ? null : priceBands.get(band - 1), band == priceBands.size() ? null : priceBands.get(band)));
+        }
+    }
+
+    //one group of matching books sharing the same values, any of which may be null
+    public void add(Format format, Category category, Integer priceBand, Integer year, long count) {
+        total += count;
+        if (format != null) addFormat(format, count);
+        if (category != null) addCategory(category, count);
+        if (priceBand != null && priceBand >= 0) addPriceBand(priceBand, count);
+        if (year != null) addYear(year, count);
+    }
+
+    public void addFormat(Format format, long count) {
+        formats.merge(format.getValue(), count, Long::sum);
+    }
+
+    public void addCategory(Category category, long count) {
+        categories.merge(category.getValue(), count, Long::sum);
+    }
+
+    public void addPriceBand(int band, long count) {
+        prices.get(band).count += count;
+    }
+
+    public void addYear(int year, long count) {
+        years.merge(year, count, Long::sum);
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public Map<String, Long> getFormats() {
+        return formats;
+    }
+
+    public Map<String, Long> getCategories() {
+        return categories;
+    }
+
+    public List<PriceBand> getPrices() {
+        return prices;
+    }
+
+    public Map<Integer, Long> getYears() {
+        return years;
+    }
+
+    //from inclusive and to exclusive, left out when the band is open on that side
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class PriceBand {
+        private final BigDecimal from;
+        private final BigDecimal to;
+        private long count;
+
+        PriceBand(BigDecimal from, BigDecimal to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public BigDecimal getFrom() {
+            return from;
+        }
+
+        public BigDecimal getTo() {
+            return to;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
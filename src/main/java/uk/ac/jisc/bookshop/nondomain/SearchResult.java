@@ -0,0 +1,58 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+/**
+ * One page of a search together with what the client needs to decide about the next one.
+ * {@code total} is only present when a count mode other than none was requested.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SearchResult<T> {
+    private final List<T> content;
+    private final int page;
+    private final int size;
+    private final boolean hasNext;
+    private final String nextCursor;
+    private final Long total;
+    private final Boolean totalExact;
+
+    public SearchResult(List<T> content, int page, int size, boolean hasNext, String nextCursor, Long total, Boolean totalExact) {
+        this.content = content;
+        this.page = page;
+        this.size = size;
+        this.hasNext = hasNext;
+        this.nextCursor = nextCursor;
+        this.total = total;
+        this.totalExact = totalExact;
+    }
+
+    public List<T> getContent() {
+        return content;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isHasNext() {
+        return hasNext;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public Long getTotal() {
+        return total;
+    }
+
+    public Boolean getTotalExact() {
+        return totalExact;
+    }
+}
@@ -0,0 +1,49 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import uk.ac.jisc.bookshop.Exception.UnsupportedSortException;
+import uk.ac.jisc.bookshop.domain.Book;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * The book properties searches can sort by, each one with a precomputed order in the catalog index.
+ */
+public enum SortField {
+    ID("id", Book::getId),
+    TITLE("title", Book::getTitle),
+    AUTHOR("author", Book::getAuthor),
+    PRICE("price", Book::getPrice),
+    PUBLISHED_DATE("publishedDate", Book::getPublishedDate),
+    STOCK_LEVEL("stockLevel", Book::getStockLevel);
+
+    private String value;
+    private Function<Book, Comparable<?>> key;
+
+    SortField(String value, Function<Book, Comparable<?>> key){
+        this.value = value;
+        this.key = key;
+    }
+
+    public static SortField fromValue(String value){
+        for (SortField field : values()){
+            if(field.value.contentEquals(value)){
+                return field;
+            }
+        }
+        throw new UnsupportedSortException(value, "allowed values are " + Arrays.toString(values()));
+    }
+
+    public String getValue(){
+        return value;
+    }
+
+    public Comparable<?> keyOf(Book book){
+        return key.apply(book);
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -0,0 +1,36 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import java.time.Instant;
+
+/**
+ * Stock of a book set aside for a checkout until it is confirmed, released or expires.
+ */
+public class StockHold {
+    private final String id;
+    private final Long bookId;
+    private final int quantity;
+    private final Instant expiresAt;
+
+    public StockHold(String id, Long bookId, int quantity, Instant expiresAt) {
+        this.id = id;
+        this.bookId = bookId;
+        this.quantity = quantity;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Long getBookId() {
+        return bookId;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+}
@@ -0,0 +1,22 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+/**
+ * The stock level of a book after a change to it.
+ */
+public class StockLevel {
+    private final Long id;
+    private final int stockLevel;
+
+    public StockLevel(Long id, int stockLevel) {
+        this.id = id;
+        this.stockLevel = stockLevel;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public int getStockLevel() {
+        return stockLevel;
+    }
+}
@@ -0,0 +1,35 @@
+package uk.ac.jisc.bookshop.nondomain;
+
+import java.util.Arrays;
+
+/**
+ * The book properties the suggest endpoint completes.
+ */
+public enum SuggestField {
+    TITLE("title"),
+    AUTHOR("author");
+
+    private String value;
+
+    SuggestField(String value){
+        this.value = value;
+    }
+
+    public static SuggestField fromValue(String value){
+        for (SuggestField field : values()){
+            if(field.value.contentEquals(value)){
+                return field;
+            }
+        }
+        throw new IllegalArgumentException("Unknown enum type " + value + ",  Allowed values are " + Arrays.toString(values())) ;
+    }
+
+    public String getValue(){
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
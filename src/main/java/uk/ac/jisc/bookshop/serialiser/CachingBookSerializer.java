@@ -0,0 +1,86 @@
+package uk.ac.jisc.bookshop.serialiser;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.ser.ContextualSerializer;
+import com.fasterxml.jackson.databind.ser.ResolvableSerializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import uk.ac.jisc.bookshop.cache.BookJsonCache;
+import uk.ac.jisc.bookshop.domain.Book;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Writes a book as the json cached for its version, serialising it with the bean serializer
+ * only when there is none. The json is kept with its utf-8 encoding, so that generators of bytes
+ * and of characters alike copy it as it is. It is cached apart for each contextual serializer,
+ * active view and set of serialization features, any of which can change what a book is written
+ * as. Books without an id to key them on are serialised as usual.
+ */
+public class CachingBookSerializer extends StdSerializer<Book> implements ResolvableSerializer, ContextualSerializer {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final JsonSerializer<Object> serializer;
+    private final BookJsonCache cache;
+
+    public CachingBookSerializer(JsonSerializer<Object> serializer, BookJsonCache cache) {
+        super(Book.class);
+        this.serializer = serializer;
+        this.cache = cache;
+    }
+
+    @Override
+    public void serialize(Book book, JsonGenerator generator, SerializerProvider provider) throws IOException {
+        if (book.getId() == null) {
+            serializer.serialize(book, generator, provider);
+            return;
+        }
+        Variant variant = new Variant(serializer, provider.getActiveView(), provider.getConfig().getSerializationFeatures());
+        SerializedString json = cache.get(book, variant);
+        if (json == null) {
+            StringWriter text = new StringWriter();
+            try (JsonGenerator compact = FACTORY.createGenerator(text)) {
+                serializer.serialize(book, compact, provider);
+            }
+            json = new SerializedString(text.toString());
+            //encoded once here rather than by the first generator of bytes to write it
+            json.asUnquotedUTF8();
+            cache.put(book, variant, json);
+        }
+        generator.writeRawValue(json);
+    }
+
+    @Override
+    public void serializeWithType(Book book, JsonGenerator generator, SerializerProvider provider, TypeSerializer typeSerializer) throws IOException {
+        serializer.serializeWithType(book, generator, provider, typeSerializer);
+    }
+
+    @Override
+    public void resolve(SerializerProvider provider) throws JsonMappingException {
+        if (serializer instanceof ResolvableSerializer) {
+            ((ResolvableSerializer) serializer).resolve(provider);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public JsonSerializer<?> createContextual(SerializerProvider provider, BeanProperty property) throws JsonMappingException {
+        if (!(serializer instanceof ContextualSerializer)) {
+            return this;
+        }
+        JsonSerializer<?> contextual = ((ContextualSerializer) serializer).createContextual(provider, property);
+        return contextual == serializer ? this : new CachingBookSerializer((JsonSerializer<Object>) contextual, cache);
+    }
+
+    //what besides the book decides its json, the serializer being compared by identity
+    private record Variant(JsonSerializer<Object> serializer, Class<?> view, int features) {
+    }
+}
@@ -0,0 +1,154 @@
+package uk.ac.jisc.bookshop.service;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.PersistenceUnit;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.ac.jisc.bookshop.domain.Book;
+import uk.ac.jisc.bookshop.nondomain.BulkResult;
+
+import java.util.*;
+
+/**
+ * Inserts many books at once. Books are validated one by one, then the valid ones are inserted
+ * in chunks, one transaction per chunk, with the inserts of a chunk sent to the database as jdbc
+ * batches. A chunk that fails is rolled back and its books inserted one at a time, so that only
+ * the books the database rejects are reported and the others still saved.
+ */
+@Component
+public class BookBulkService {
+
+    private static final Logger log = LoggerFactory.getLogger(BookBulkService.class);
+
+    @PersistenceUnit
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private Validator validator;
+
+    @Autowired
+    private BookRepositoryService bookRepositoryService;
+
+    @Value("${bookshop.books.bulk.chunk-size:1000}")
+    private int chunkSize = 1000;
+
+    @Value("${bookshop.books.bulk.jdbc-batch-size:50}")
+    private int jdbcBatchSize = 50;
+
+    public BulkResult saveAll(List<Book> books) {
+        BulkResult result = new BulkResult();
+        for (int from = 0; from < books.size(); from += chunkSize) {
+            saveChunk(books.subList(from, Math.min(from + chunkSize, books.size())), from, result);
+        }
+        return result;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @param firstIndex the position of the first book of the chunk in the whole request, which failures are reported by
+     */
+    public void saveChunk(List<Book> books, long firstIndex, BulkResult result) {
+        Map<Long, Book> indexed = new LinkedHashMap<>();
+        for (int i = 0; i < books.size(); i++) {
+            indexed.put(firstIndex + i, books.get(i));
+        }
+        saveChunk(indexed, result);
+    }
+
+    /**
+     * @param books the books of the chunk by the index failures are reported by, in insert order
+     */
+    public void saveChunk(Map<Long, Book> books, BulkResult result) {
+        Map<Long, Book> valid = new LinkedHashMap<>();
+        books.forEach((index, book) -> {
+            if (book == null) {
+                result.addFailure(index, Map.of("book", "must not be null"));
+                return;
+            }
+            Set<ConstraintViolation<Book>> violations = validator.validate(book);
+            if (!violations.isEmpty()) {
+                result.addFailure(index, errors(violations));
+            } else {
+                //a new book whatever id it came with, as for a single insert
+                book.setId(null);
+                valid.put(index, book);
+            }
+        });
+        if (valid.isEmpty()) {
+            return;
+        }
+        try {
+            insert(valid.values());
+            result.addSaved(valid.size());
+            bookRepositoryService.afterSaveAll(valid.values());
+        } catch (RuntimeException e) {
+            log.warn("bulk insert of {} books failed, inserting them one by one: {}", valid.size(), e.getMessage());
+            List<Book> saved = new ArrayList<>();
+            valid.forEach((index, book) -> {
+                book.setId(null);
+                try {
+                    insert(List.of(book));
+                    saved.add(book);
+                } catch (RuntimeException rejected) {
+                    book.setId(null);
+                    result.addFailure(index, Map.of("book", rootMessage(rejected)));
+                }
+            });
+            result.addSaved(saved.size());
+            bookRepositoryService.afterSaveAll(saved);
+        }
+    }
+
+    //its own entity manager, cleared after each jdbc batch so that the chunk does not pile up in it
+    private void insert(Collection<Book> books) {
+        EntityManager em = entityManagerFactory.createEntityManager();
+        try {
+            em.unwrap(Session.class).setJdbcBatchSize(jdbcBatchSize);
+            em.getTransaction().begin();
+            int pending = 0;
+            for (Book book : books) {
+                em.persist(book);
+                if (++pending == jdbcBatchSize) {
+                    em.flush();
+                    em.clear();
+                    pending = 0;
+                }
+            }
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    private static Map<String, String> errors(Set<ConstraintViolation<Book>> violations) {
+        Map<String, String> errors = new TreeMap<>();
+        violations.forEach(violation -> {
+            String path = violation.getPropertyPath().toString();
+            errors.put(path.isEmpty() ? "book" : path, violation.getMessage());
+        });
+        return errors;
+    }
+
+    private static String rootMessage(Throwable e) {
+        Throwable root = e;
+        while (root.getCause() != null && root.getCause() != root) {
+            root = root.getCause();
+        }
+        return root.getMessage();
+    }
+}
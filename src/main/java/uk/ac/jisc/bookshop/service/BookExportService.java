@@ -0,0 +1,215 @@
+package uk.ac.jisc.bookshop.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import uk.ac.jisc.bookshop.Exception.ExportNotFoundException;
+import uk.ac.jisc.bookshop.export.BookEncoder;
+import uk.ac.jisc.bookshop.export.ChunkFileWriter;
+import uk.ac.jisc.bookshop.export.ColumnarBookEncoder;
+import uk.ac.jisc.bookshop.export.CsvBookEncoder;
+import uk.ac.jisc.bookshop.export.NdjsonBookEncoder;
+import uk.ac.jisc.bookshop.nondomain.ExportFormat;
+import uk.ac.jisc.bookshop.nondomain.ExportManifest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Exports the catalog in the background into a directory of chunk files, each one holding the
+ * next books in id order. Every chunk is read through a forward-only cursor in a transaction of
+ * its own, so an export holds one connection at a time and only while it reads a chunk, and is
+ * written through a direct buffer with its crc32c. The manifest is rewritten after each chunk,
+ * which lets an export that failed or was cut short by a restart resume after its last chunk.
+ */
+@Component
+public class BookExportService {
+
+    private static final Logger log = LoggerFactory.getLogger(BookExportService.class);
+
+    static final String MANIFEST = "manifest.json";
+
+    @Autowired
+    private BookRepositoryService bookRepositoryService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${bookshop.export.directory:data/export}")
+    private Path directory = Path.of("data/export");
+
+    @Value("${bookshop.export.chunk-rows:100000}")
+    private int chunkRows = 100000;
+
+    @Value("${bookshop.export.buffer-size:1048576}")
+    private int bufferSize = 1 << 20;
+
+    //exports run one after another, reading the catalog on one connection at most
+    private ExecutorService exports;
+
+    private final Map<String, ExportManifest> running = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void start() {
+        exports = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("book-export-"));
+    }
+
+    @PreDestroy
+    public void stop() {
+        exports.shutdownNow();
+    }
+
+    public ExportManifest startExport(ExportFormat format) {
+        ExportManifest manifest = new ExportManifest(UUID.randomUUID().toString(), format, chunkRows);
+        try {
+            Files.createDirectories(directory.resolve(manifest.getId()));
+            save(manifest);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        submit(manifest);
+        return manifest;
+    }
+
+    //carries on after the last complete chunk, unless the export is running or done already
+    public synchronized ExportManifest resume(String id) {
+        ExportManifest manifest = manifest(id);
+        if (running.containsKey(id) || manifest.getStatus() == ExportManifest.Status.DONE) {
+            return manifest;
+        }
+        manifest.restart();
+        submit(manifest);
+        return manifest;
+    }
+
+    public ExportManifest manifest(String id) {
+        ExportManifest manifest = running.get(id);
+        if (manifest != null) {
+            return manifest;
+        }
+        Path file = exportDirectory(id).resolve(MANIFEST);
+        if (!Files.isRegularFile(file)) {
+            throw new ExportNotFoundException(id);
+        }
+        try {
+            return objectMapper.readValue(file.toFile(), ExportManifest.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Path chunk(String id, int index) {
+        ExportManifest manifest = manifest(id);
+        if (index < 0 || index >= manifest.getChunks().size()) {
+            throw new ExportNotFoundException(id + " chunk " + index);
+        }
+        return exportDirectory(id).resolve(manifest.getChunks().get(index).getFile());
+    }
+
+    private void submit(ExportManifest manifest) {
+        running.put(manifest.getId(), manifest);
+        exports.execute(() -> {
+            try {
+                run(manifest);
+            } finally {
+                running.remove(manifest.getId());
+            }
+        });
+    }
+
+    private void run(ExportManifest manifest) {
+        Path directory = exportDirectory(manifest.getId());
+        ObjectWriter json = objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
+        //one direct buffer for every chunk of the export, direct memory being slow to allocate and only freed by the gc
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        try {
+            while (true) {
+                int index = manifest.getChunks().size();
+                ExportManifest.Chunk chunk = new ExportManifest.Chunk(index, String.format("part-%05d.%s", index, manifest.getFormat().getExtension()));
+                Path file = directory.resolve(chunk.getFile());
+                //a chunk left incomplete by an earlier run is written over
+                try (ChunkFileWriter out = new ChunkFileWriter(file, buffer)) {
+                    BookEncoder encoder = encoder(manifest.getFormat(), out, json);
+                    bookRepositoryService.streamCatalog(manifest.lastId(), manifest.getChunkRows(), book -> {
+                        try {
+                            encoder.write(book);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        chunk.add(book.getId());
+                    });
+                    if (chunk.getRows() > 0) {
+                        encoder.finish();
+                    }
+                    out.close();
+                    chunk.setBytes(out.getBytes());
+                    chunk.setCrc32c(out.getCrc32c());
+                }
+                if (chunk.getRows() == 0) {
+                    Files.deleteIfExists(file);
+                    break;
+                }
+                manifest.addChunk(chunk);
+                save(manifest);
+                if (chunk.getRows() < manifest.getChunkRows()) {
+                    break;
+                }
+            }
+            manifest.finish();
+            save(manifest);
+        } catch (IOException | RuntimeException e) {
+            log.error("export {} failed after {} chunks", manifest.getId(), manifest.getChunks().size(), e);
+            manifest.fail(e.getMessage());
+            try {
+                save(manifest);
+            } catch (IOException saving) {
+                log.error("could not save the manifest of export {}", manifest.getId(), saving);
+            }
+        }
+    }
+
+    private static BookEncoder encoder(ExportFormat format, ChunkFileWriter out, ObjectWriter json) throws IOException {
+        switch (format) {
+            case CSV:
+                return new CsvBookEncoder(out);
+            case NDJSON:
+                return new NdjsonBookEncoder(out, json);
+            default:
+                return new ColumnarBookEncoder(out);
+        }
+    }
+
+    //written aside then moved over the previous one, so that it is never seen half written
+    private void save(ExportManifest manifest) throws IOException {
+        Path directory = exportDirectory(manifest.getId());
+        Path written = directory.resolve(MANIFEST + ".tmp");
+        objectMapper.writeValue(written.toFile(), manifest);
+        Files.move(written, directory.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //ids are uuids, anything else naming no export rather than a path
+    private Path exportDirectory(String id) {
+        try {
+            return directory.resolve(UUID.fromString(id).toString());
+        } catch (IllegalArgumentException e) {
+            throw new ExportNotFoundException(id);
+        }
+    }
+}
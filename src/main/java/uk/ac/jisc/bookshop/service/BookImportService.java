@@ -0,0 +1,293 @@
+package uk.ac.jisc.bookshop.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import uk.ac.jisc.bookshop.Exception.ImportNotFoundException;
+import uk.ac.jisc.bookshop.Exception.InvalidImportException;
+import uk.ac.jisc.bookshop.domain.Book;
+import uk.ac.jisc.bookshop.nondomain.BulkResult;
+import uk.ac.jisc.bookshop.nondomain.ImportFormat;
+import uk.ac.jisc.bookshop.nondomain.ImportProgress;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Streams a catalog into the database line by line, from a request body or from a file of the
+ * import directory. Lines are read in chunks of the bulk insert size, each chunk parsed,
+ * validated and saved by a pool of workers through {@link BookBulkService}. The reader waits
+ * while too many chunks are pending, so memory stays bounded by the chunks in flight whatever
+ * the size of the catalog.
+ */
+@Component
+public class BookImportService {
+
+    private static final Logger log = LoggerFactory.getLogger(BookImportService.class);
+
+    private static final int MAX_KEPT_IMPORTS = 100;
+
+    @Autowired
+    private BookBulkService bookBulkService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${bookshop.import.workers:4}")
+    private int workers = 4;
+
+    @Value("${bookshop.import.max-pending-chunks:8}")
+    private int maxPendingChunks = 8;
+
+    @Value("${bookshop.import.max-reported-failures:1000}")
+    private int maxReportedFailures = 1000;
+
+    @Value("${bookshop.import.directory:data/import}")
+    private Path directory = Path.of("data/import");
+
+    private ExecutorService workerPool;
+
+    //file imports run one after another, each one using the whole worker pool
+    private ExecutorService fileImports;
+
+    private final Map<String, ImportProgress> imports = Collections.synchronizedMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ImportProgress> eldest) {
+            return size() > MAX_KEPT_IMPORTS;
+        }
+    });
+
+    @PostConstruct
+    public void start() {
+        workerPool = Executors.newFixedThreadPool(workers, new CustomizableThreadFactory("book-import-"));
+        fileImports = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("book-import-file-"));
+    }
+
+    @PreDestroy
+    public void stop() {
+        fileImports.shutdownNow();
+        workerPool.shutdown();
+    }
+
+    /**
+     * Imports the stream on the calling thread, returning once every line has been saved or rejected.
+     */
+    public ImportProgress importStream(InputStream in, ImportFormat format) {
+        ImportProgress progress = register(new ImportProgress("request", format, maxReportedFailures));
+        run(progress, new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+        return progress;
+    }
+
+    /**
+     * Starts importing a file of the import directory in the background.
+     * @param format null to tell it from the file extension
+     */
+    public ImportProgress startFileImport(String fileName, ImportFormat format) {
+        Path root = directory.toAbsolutePath().normalize();
+        Path file = root.resolve(fileName).normalize();
+        if (!file.startsWith(root)) {
+            throw new InvalidImportException(fileName + " is outside the import directory");
+        }
+        if (!Files.isRegularFile(file)) {
+            throw new ImportNotFoundException("file " + fileName);
+        }
+        ImportFormat resolved;
+        try {
+            resolved = format != null ? format : ImportFormat.fromFileName(fileName);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidImportException(e.getMessage());
+        }
+        ImportProgress progress = register(new ImportProgress(fileName, resolved, maxReportedFailures));
+        fileImports.execute(() -> {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                run(progress, reader);
+            } catch (IOException | RuntimeException e) {
+                log.error("import of {} failed", fileName, e);
+                progress.fail(e.getMessage());
+                progress.finish();
+            }
+        });
+        return progress;
+    }
+
+    public Optional<ImportProgress> progress(String id) {
+        return Optional.ofNullable(imports.get(id));
+    }
+
+    private ImportProgress register(ImportProgress progress) {
+        imports.put(progress.getId(), progress);
+        return progress;
+    }
+
+    private void run(ImportProgress progress, BufferedReader reader) {
+        Semaphore pending = new Semaphore(maxPendingChunks);
+        int chunkSize = bookBulkService.getChunkSize();
+        try {
+            long line = 0;
+            RowParser parser;
+            if (progress.getFormat() == ImportFormat.CSV) {
+                line++;
+                parser = csv(reader.readLine());
+            } else {
+                parser = text -> objectMapper.readValue(text, Book.class);
+            }
+            Map<Long, String> chunk = new LinkedHashMap<>();
+            String text;
+            while (progress.getStatus() == ImportProgress.Status.RUNNING && (text = reader.readLine()) != null) {
+                line++;
+                if (text.isBlank()) {
+                    continue;
+                }
+                chunk.put(line, text);
+                if (chunk.size() == chunkSize) {
+                    submit(chunk, parser, progress, pending);
+                    chunk = new LinkedHashMap<>();
+                }
+            }
+            if (!chunk.isEmpty() && progress.getStatus() == ImportProgress.Status.RUNNING) {
+                submit(chunk, parser, progress, pending);
+            }
+        } catch (InvalidImportException e) {
+            progress.fail(e.getMessage());
+            throw e;
+        } catch (IOException e) {
+            progress.fail("reading failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            progress.fail("interrupted");
+        } finally {
+            //every chunk done
+            pending.acquireUninterruptibly(maxPendingChunks);
+            progress.finish();
+        }
+    }
+
+    private void submit(Map<Long, String> chunk, RowParser parser, ImportProgress progress, Semaphore pending) throws InterruptedException {
+        pending.acquire();
+        progress.addRowsRead(chunk.size());
+        try {
+            workerPool.execute(() -> {
+                try {
+                    BulkResult result = new BulkResult();
+                    Map<Long, Book> books = new LinkedHashMap<>();
+                    chunk.forEach((line, text) -> {
+                        try {
+                            books.put(line, parser.parse(text));
+                        } catch (IOException | RuntimeException e) {
+                            result.addFailure(line, Map.of("book", parseError(e)));
+                        }
+                    });
+                    bookBulkService.saveChunk(books, result);
+                    progress.add(result);
+                } catch (RuntimeException e) {
+                    log.error("import of lines {} to {} failed", firstOf(chunk), lastOf(chunk), e);
+                    progress.fail("saving lines " + firstOf(chunk) + " to " + lastOf(chunk) + " failed: " + e.getMessage());
+                } finally {
+                    pending.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.release();
+            throw e;
+        }
+    }
+
+    //columns named by the header, empty fields left unset
+    private RowParser csv(String header) throws IOException {
+        if (header == null) {
+            throw new InvalidImportException("a csv import starts with a header row naming the columns");
+        }
+        List<String> columns = new ArrayList<>();
+        for (String column : fields(header.startsWith("\uFEFF") ? header.substring(1) : header)) {
+            columns.add(column.trim());
+        }
+        return text -> {
+            List<String> values = fields(text);
+            if (values.size() > columns.size()) {
+                throw new IOException("expected at most " + columns.size() + " fields but found " + values.size());
+            }
+            Map<String, String> row = new HashMap<>();
+            for (int i = 0; i < values.size(); i++) {
+                if (!values.get(i).isEmpty()) {
+                    row.put(columns.get(i), values.get(i));
+                }
+            }
+            return objectMapper.convertValue(row, Book.class);
+        };
+    }
+
+    //comma separated, fields with commas or quotes in double quotes and their quotes doubled; no line breaks in fields
+    static List<String> fields(String line) throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IOException("unterminated quoted field");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    //the reason without the location jackson appends, the line number being reported already
+    private static String parseError(Exception e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof JsonProcessingException) {
+                return ((JsonProcessingException) cause).getOriginalMessage();
+            }
+        }
+        return e.getMessage();
+    }
+
+    private static long firstOf(Map<Long, String> chunk) {
+        return chunk.keySet().iterator().next();
+    }
+
+    private static long lastOf(Map<Long, String> chunk) {
+        long last = 0;
+        for (long line : chunk.keySet()) {
+            last = line;
+        }
+        return last;
+    }
+
+    private interface RowParser {
+        Book parse(String text) throws IOException;
+    }
+}
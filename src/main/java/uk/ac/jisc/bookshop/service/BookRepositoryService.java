@@ -1,114 +1,705 @@
 package uk.ac.jisc.bookshop.service;
 
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.PersistenceUnit;
+import jakarta.persistence.Tuple;
 import jakarta.persistence.TypedQuery;
 import jakarta.persistence.criteria.*;
-import org.apache.commons.collections4.CollectionUtils;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.jpa.HibernateHints;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Component;
-import org.springframework.util.StringUtils;
+import org.springframework.transaction.annotation.Transactional;
 import uk.ac.jisc.bookshop.BookRepositoryCustom;
+import uk.ac.jisc.bookshop.Exception.BookNotFoundException;
+import uk.ac.jisc.bookshop.Exception.StockConflictException;
+import uk.ac.jisc.bookshop.Exception.UnsupportedSortException;
+import uk.ac.jisc.bookshop.cache.BookJsonCache;
+import uk.ac.jisc.bookshop.cache.BookSearchCache;
 import uk.ac.jisc.bookshop.domain.Book;
 import uk.ac.jisc.bookshop.domain.Category;
 import uk.ac.jisc.bookshop.domain.Format;
+import uk.ac.jisc.bookshop.index.BookCatalogIndex;
+import uk.ac.jisc.bookshop.index.IndexMatch;
+import uk.ac.jisc.bookshop.index.LuceneBookIndex;
+import uk.ac.jisc.bookshop.index.SearchFilter;
+import uk.ac.jisc.bookshop.nondomain.BookField;
+import uk.ac.jisc.bookshop.nondomain.BookLookup;
+import uk.ac.jisc.bookshop.nondomain.BookRow;
 import uk.ac.jisc.bookshop.nondomain.BookSearchArgument;
+import uk.ac.jisc.bookshop.nondomain.CountMode;
+import uk.ac.jisc.bookshop.nondomain.SearchCursor;
+import uk.ac.jisc.bookshop.nondomain.SearchFacets;
+import uk.ac.jisc.bookshop.nondomain.SearchResult;
+import uk.ac.jisc.bookshop.nondomain.StockLevel;
+import uk.ac.jisc.bookshop.nondomain.SuggestField;
+import uk.ac.jisc.bookshop.stock.StockReservationEngine;
 
 import java.math.BigDecimal;
-import java.time.LocalDate;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Component
 public class BookRepositoryService implements BookRepositoryCustom {
 
+    //slices of the id range an estimate samples a run of ids from
+    private static final int ESTIMATE_STRATA = 32;
+
     @PersistenceContext
     private EntityManager entityManager;
+
+    @Autowired
+    private BookCatalogIndex catalogIndex;
+
+    @PersistenceUnit
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    @Qualifier("applicationTaskExecutor")
+    private Executor taskExecutor;
+
+    @Value("${bookshop.search.estimate-sample-size:10000}")
+    private int estimateSampleSize = 10000;
+
+    @Value("${bookshop.books.stream-fetch-size:500}")
+    private int streamFetchSize = 500;
+
+    @Value("${bookshop.books.lookup-batch-size:100}")
+    private int lookupBatchSize = 100;
+
+    //ascending bounds between the price bands of the facets
+    @Value("${bookshop.facets.price-bands:10,20,50,100}")
+    private List<BigDecimal> priceBands = List.of(BigDecimal.valueOf(10), BigDecimal.valueOf(20), BigDecimal.valueOf(50), BigDecimal.valueOf(100));
+
+    @Autowired
+    private BookSearchCache searchCache;
+
+    @Autowired
+    private BookJsonCache jsonCache;
+
+    @Autowired
+    private SearchQueryTemplates queryTemplates;
+
+    //only there when bookshop.lucene.enabled is set
+    @Autowired(required = false)
+    private LuceneBookIndex luceneIndex;
+
+    //only there when bookshop.stock.reservations.enabled is set
+    @Autowired(required = false)
+    private StockReservationEngine stockReservations;
+
+    private final long startedAt = System.currentTimeMillis();
+
     @Override
     public List<Book> findBookBySearchArgument(BookSearchArgument argument) {
-        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
-        CriteriaQuery<Book> query =  cb.createQuery(Book.class);
-        Root<Book> root = query.from(Book.class);
-        List<Predicate> predicates = new ArrayList<>();
-        if(StringUtils.hasText(argument.getTitle())){
-            Path<String> titlePath = root.get("title");
-            predicates.add(cb.like(cb.upper(titlePath),"%"+argument.getTitle().toUpperCase() + "%"));
+        return find(argument, this::search, Book::getId);
+    }
+
+    /**
+     * Reads the books with the given ids in chunks of in queries, taking those already in the
+     * persistence context or the second level cache from there.
+     * @return the distinct books in the order of their first id, and the ids without a book
+     */
+    public BookLookup findBooksByIds(List<Long> ids) {
+        List<Long> distinct = ids.stream().distinct().collect(Collectors.toList());
+        List<Book> loaded = entityManager.unwrap(Session.class).byMultipleIds(Book.class)
+                .withBatchSize(lookupBatchSize)
+                .enableOrderedReturn(true)
+                .multiLoad(distinct);
+        List<Book> books = new ArrayList<>(distinct.size());
+        List<Long> missing = new ArrayList<>();
+        for (int i = 0; i < distinct.size(); i++) {
+            if(loaded.get(i) == null){
+                missing.add(distinct.get(i));
+            } else {
+                books.add(loaded.get(i));
+            }
+        }
+        return new BookLookup(books, missing);
+    }
+
+    /**
+     * Runs several searches at once. Equal searches run once, the pages the catalog index can
+     * filter and order are resolved under a single lock sharing the lookups of equal filters, and
+     * their books are read together by id in batches, while the other searches run in parallel.
+     * @return the books found by each argument, in the order of the arguments
+     */
+    public List<List<Book>> findBooksBySearchArguments(List<BookSearchArgument> arguments) {
+        Map<BookSearchCache.SearchKey, Integer> positions = new HashMap<>();
+        List<BookSearchArgument> distinct = new ArrayList<>();
+        int[] positionOf = new int[arguments.size()];
+        for (int i = 0; i < arguments.size(); i++) {
+            BookSearchArgument argument = arguments.get(i);
+            positionOf[i] = positions.computeIfAbsent(BookSearchCache.SearchKey.of(argument), key -> {
+                distinct.add(argument);
+                return distinct.size() - 1;
+            });
+        }
+
+        List<Optional<List<Long>>> pages = catalogIndex.pages(distinct, distinct.stream()
+                .map(argument -> argument.isRelevanceSorted() ? Collections.<Sort.Order>emptyList() : effectiveOrders(argument.getSorts()))
+                .collect(Collectors.toList()));
+        Set<Long> ids = new HashSet<>();
+        pages.forEach(page -> page.ifPresent(ids::addAll));
+        Map<Long, Book> books = new HashMap<>();
+        if(!ids.isEmpty()){
+            findBooksByIds(new ArrayList<>(ids)).getBooks().forEach(book -> books.put(book.getId(), book));
+        }
+
+        List<List<Book>> results = new ArrayList<>(distinct.size());
+        List<Integer> remaining = new ArrayList<>();
+        for (int i = 0; i < distinct.size(); i++) {
+            //a book deleted since the index was read is left out, as a search by id would
+            results.add(pages.get(i).map(page -> page.stream().map(books::get).filter(Objects::nonNull).collect(Collectors.toList())).orElse(null));
+            if(results.get(i) == null){
+                remaining.add(i);
+            }
+        }
+        if(remaining.size() == 1){
+            results.set(remaining.get(0), findBookBySearchArgument(distinct.get(remaining.get(0))));
+        } else if(remaining.size() > 1){
+            Map<Integer, CompletableFuture<List<Book>>> searches = new LinkedHashMap<>();
+            remaining.forEach(i -> searches.put(i, CompletableFuture.supplyAsync(() -> findBookBySearchArgument(distinct.get(i)), taskExecutor)));
+            searches.forEach((i, search) -> results.set(i, joined(search)));
+        }
+
+        List<List<Book>> found = new ArrayList<>(arguments.size());
+        for (int position : positionOf) {
+            found.add(results.get(position));
+        }
+        return found;
+    }
+
+    //rethrows what failed the search itself, rather than the wrapper of the future
+    private static <T> T joined(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof RuntimeException cause){
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Same search, reading only the selected fields of the argument as tuples.
+     */
+    public List<BookRow> findBookRowsBySearchArgument(BookSearchArgument argument) {
+        return find(argument, this::searchRows, BookRow::getId);
+    }
+
+    public SearchResult<Book> searchSlice(BookSearchArgument argument, CountMode countMode) {
+        return slice(argument, countMode, this::search, Book::getId, book -> SearchCursor.after(book, argument.getSorts()));
+    }
+
+    public SearchResult<BookRow> searchRowSlice(BookSearchArgument argument, CountMode countMode) {
+        return slice(argument, countMode, this::searchRows, BookRow::getId, row -> SearchCursor.after(row, argument.getSorts()));
+    }
+
+    private <T> List<T> find(BookSearchArgument argument, PageQuery<T> pageQuery, Function<T, Long> idOf) {
+        return searchCache.get(argument, () -> {
+            if(argument.isRelevanceSorted()){
+                return ranked(argument, pageQuery, idOf, argument.getSize());
+            }
+            //the index may filter and order the whole page, leaving only the books to read
+            Optional<List<Long>> ordered = catalogIndex.page(argument, effectiveOrders(argument.getSorts()), argument.getPage() * argument.getSize(), argument.getSize());
+            if(ordered.isPresent()){
+                return byIdsInOrder(argument, pageQuery, idOf, ordered.get());
+            }
+            //resolve what the in-memory index can answer before building any sql
+            Optional<IndexMatch> match = catalogIndex.match(argument);
+            if(match.isPresent() && match.get().getCount() == 0){
+                return Collections.<T>emptyList();
+            }
+            return pageQuery.fetch(argument, match.filter(IndexMatch::hasIds).orElse(null), argument.getSize());
+        });
+    }
+
+    /**
+     * Reads one more row than the page size to tell whether there is a next page. A total is only
+     * computed when asked for, concurrently with the page query and without the index when it can.
+     */
+    private <T> SearchResult<T> slice(BookSearchArgument argument, CountMode countMode, PageQuery<T> pageQuery, Function<T, Long> idOf, Function<T, SearchCursor> cursorAfter) {
+        if(argument.isRelevanceSorted()){
+            int size = argument.getSize();
+            List<T> rows = ranked(argument, pageQuery, idOf, size > 0 ? size + 1 : 0);
+            boolean hasNext = size > 0 && rows.size() > size;
+            Long total = countMode == CountMode.NONE ? null : (long) relevanceIndex().count(argument);
+            return new SearchResult<>(hasNext ? rows.subList(0, size) : rows, argument.getPage(), size, hasNext, null, total, total == null ? null : true);
+        }
+        Optional<IndexMatch> match = catalogIndex.match(argument);
+        if(match.isPresent() && match.get().getCount() == 0){
+            return new SearchResult<>(Collections.emptyList(), argument.getPage(), argument.getSize(), false, null,
+                    countMode == CountMode.NONE ? null : 0L, countMode == CountMode.NONE ? null : true);
+        }
+        IndexMatch indexMatch = match.filter(IndexMatch::hasIds).orElse(null);
+        Long indexedTotal = indexedTotal(argument, match.orElse(null));
+
+        CompletableFuture<Total> total = null;
+        if(countMode != CountMode.NONE && indexedTotal == null){
+            total = CompletableFuture.supplyAsync(() -> countMode == CountMode.EXACT
+                    ? new Total(countInDatabase(argument, indexMatch, null), true)
+                    : estimateInDatabase(argument, indexMatch), taskExecutor);
         }
 
-        if(StringUtils.hasText(argument.getAuthor())){
-            Path<String> authorPath = root.get("author");
-            predicates.add(cb.like(cb.upper(authorPath),"%"+argument.getAuthor().toUpperCase() + "%"));
+        int size = argument.getSize();
+        Optional<List<Long>> ordered = catalogIndex.page(argument, effectiveOrders(argument.getSorts()), argument.getPage() * size, size > 0 ? size + 1 : 0);
+        List<T> rows = ordered.isPresent() ? byIdsInOrder(argument, pageQuery, idOf, ordered.get())
+                : pageQuery.fetch(argument, indexMatch, size > 0 ? size + 1 : 0);
+        boolean hasNext = size > 0 && rows.size() > size;
+        List<T> content = hasNext ? rows.subList(0, size) : rows;
+        String nextCursor = hasNext ? cursorAfter.apply(content.get(size - 1)).encode() : null;
+
+        if(countMode == CountMode.NONE){
+            return new SearchResult<>(content, argument.getPage(), size, hasNext, nextCursor, null, null);
+        }
+        if(indexedTotal != null){
+            return new SearchResult<>(content, argument.getPage(), size, hasNext, nextCursor, indexedTotal, true);
         }
+        Total counted = total.join();
+        return new SearchResult<>(content, argument.getPage(), size, hasNext, nextCursor, counted.value(), counted.exact());
+    }
+
+    //the full-text index ranks the page, then the books are read by id
+    private <T> List<T> ranked(BookSearchArgument argument, PageQuery<T> pageQuery, Function<T, Long> idOf, int limit) {
+        return byIdsInOrder(argument, pageQuery, idOf, relevanceIndex().search(argument, argument.getPage() * argument.getSize(), limit));
+    }
 
-        if(argument.getPriceFrom()!=null && argument.getPriceFrom().compareTo(BigDecimal.ZERO)> 0 ){
-            Path<BigDecimal> pricePath = root.get("price");
-            Predicate predicate = cb.greaterThanOrEqualTo(pricePath, argument.getPriceFrom());
-            predicates.add(predicate);
+    /*
+     reads the books of a page an index has filtered and ordered as if the index had answered every filter, and puts them back in its order.
+     the ids are bound max-resolved-ids at a time, so that a long page does not make a single unbounded in list
+     */
+    private <T> List<T> byIdsInOrder(BookSearchArgument argument, PageQuery<T> pageQuery, Function<T, Long> idOf, List<Long> ids) {
+        if(ids.isEmpty()){
+            return Collections.emptyList();
         }
+        Map<Long, Integer> ranks = new HashMap<>(ids.size() * 2);
+        for (int i = 0; i < ids.size(); i++) {
+            ranks.put(ids.get(i), i);
+        }
+        BookSearchArgument byIds = new BookSearchArgument();
+        byIds.setFields(argument.getFields());
+        //rows carry the sort keys, which the next cursor is made of
+        byIds.setSorts(argument.isRelevanceSorted() ? null : argument.getSorts());
+        List<T> rows = new ArrayList<>(ids.size());
+        int chunk = Math.max(1, catalogIndex.getMaxResolvedIds());
+        for (int from = 0; from < ids.size(); from += chunk) {
+            List<Long> chunkIds = ids.subList(from, Math.min(from + chunk, ids.size()));
+            rows.addAll(pageQuery.fetch(byIds, new IndexMatch(EnumSet.allOf(SearchFilter.class), chunkIds.size(), chunkIds), 0));
+        }
+        rows.sort(Comparator.comparing(row -> ranks.get(idOf.apply(row))));
+        return rows;
+    }
 
-        if (argument.getPriceTo() != null && argument.getPriceTo().compareTo(BigDecimal.ZERO)> 0 ){
-            Path<BigDecimal> pricePath = root.get("price");
-            Predicate predicate = cb.lessThanOrEqualTo(pricePath, argument.getPriceTo());
-            predicates.add(predicate);
+    private LuceneBookIndex relevanceIndex() {
+        if(luceneIndex == null){
+            throw new UnsupportedSortException(BookSearchArgument.RELEVANCE, "the full-text index is disabled, set bookshop.lucene.enabled=true");
         }
+        return luceneIndex;
+    }
+
+    @FunctionalInterface
+    private interface PageQuery<T> {
+        List<T> fetch(BookSearchArgument argument, IndexMatch indexMatch, int limit);
+    }
+
+    private List<Book> search(BookSearchArgument argument, IndexMatch indexMatch, int limit) {
+        return page(queryTemplates.books(entityManager, argument, indexMatch, effectiveOrders(argument.getSorts())), argument, limit);
+    }
+
+    //the sort keys and the id are read along with the selected fields, the next cursor is made of them
+    private List<BookRow> searchRows(BookSearchArgument argument, IndexMatch indexMatch, int limit) {
+        List<Sort.Order> orders = effectiveOrders(argument.getSorts());
+        Set<String> columns = new LinkedHashSet<>();
+        argument.getFields().forEach(field -> columns.add(field.getValue()));
+        orders.forEach(order -> columns.add(order.getProperty()));
+        return page(queryTemplates.rows(entityManager, argument, indexMatch, orders, columns), argument, limit).stream()
+                .map(tuple -> toRow(tuple, argument.getFields()))
+                .collect(Collectors.toList());
+    }
+
+    private <T> List<T> page(TypedQuery<T> typedQuery, BookSearchArgument argument, int limit) {
+        if(argument.getCursor() == null) typedQuery.setFirstResult((argument.getPage()) * argument.getSize());
+        if(limit>0) typedQuery.setMaxResults(limit);
+
+        return typedQuery.getResultList();
+    }
+
+    private BookRow toRow(Tuple tuple, List<BookField> fields) {
+        Map<String, Object> values = new HashMap<>();
+        tuple.getElements().forEach(element -> values.put(element.getAlias(), tuple.get(element)));
+        return new BookRow(values, fields);
+    }
 
-        if(argument.getPublicationDateStart() != null) {
-            Path<LocalDate> publishedDatePath = root.get("publishedDate");
-            Predicate predicate = cb.greaterThanOrEqualTo(publishedDatePath, argument.getPublicationDateStart());
-            predicates.add(predicate);
+    //the total is free when every requested filter was answered by the index
+    private Long indexedTotal(BookSearchArgument argument, IndexMatch match) {
+        Set<SearchFilter> requested = SearchFilter.requestedBy(argument);
+        if(requested.isEmpty() && catalogIndex.isReady()){
+            return (long) catalogIndex.size();
         }
+        if(match != null && match.getCovered().containsAll(requested)){
+            return (long) match.getCount();
+        }
+        return null;
+    }
 
-        if(argument.getPublicationDateEnd() != null) {
-            Path<LocalDate> publishedDatePath = root.get("publishedDate");
-            Predicate predicate = cb.lessThanOrEqualTo(publishedDatePath, argument.getPublicationDateEnd());
-            predicates.add(predicate);
+    //runs on a worker thread, so it must not share the request's entity manager
+    private long countInDatabase(BookSearchArgument argument, IndexMatch indexMatch, List<SearchQueryTemplates.IdRange> idRanges) {
+        EntityManager em = entityManagerFactory.createEntityManager();
+        try {
+            return queryTemplates.count(em, argument, indexMatch, idRanges).getSingleResult();
+        } finally {
+            em.close();
         }
+    }
 
-        if(CollectionUtils.isNotEmpty(argument.getFormats())){
-            List<Predicate>formatPredicates = new ArrayList<>();
-            Path<Format> formatPath = root.get("format");
-            for(Format format: argument.getFormats()){
-                Predicate predicate =  cb.equal(formatPath, format);
-                formatPredicates.add(predicate);
+    /*
+     counts the matches among a sample of books spread evenly over the id range and scales their
+     share of the sampled books by the catalog size, falling back to an exact count when the
+     catalog is no bigger than the sample. The sample is a run of ids in the middle of each of
+     ESTIMATE_STRATA equal slices of the range, each run a range scan of the primary key, so that
+     old and new books weigh the same whatever the filter. With n books sampled the standard
+     error is at most 0.5 / sqrt(n) of the catalog size, about 1% at 95% confidence for the
+     default 10000, wider when the matches cluster within runs of ids.
+     */
+    private Total estimateInDatabase(BookSearchArgument argument, IndexMatch indexMatch) {
+        long rows;
+        Object[] bounds;
+        EntityManager em = entityManagerFactory.createEntityManager();
+        try {
+            rows = catalogIndex.isReady() ? catalogIndex.size()
+                    : em.createQuery("select count(b) from Book b", Long.class).getSingleResult();
+            if(rows <= estimateSampleSize){
+                return new Total(countInDatabase(argument, indexMatch, null), true);
             }
+            bounds = em.createQuery("select min(b.id), max(b.id) from Book b", Object[].class).getSingleResult();
+        } finally {
+            em.close();
+        }
+        List<SearchQueryTemplates.IdRange> sample = sampleRanges((Long) bounds[0], (Long) bounds[1], rows);
+        long sampled = countInDatabase(new BookSearchArgument(), null, sample);
+        if(sampled == 0){
+            return new Total(countInDatabase(argument, indexMatch, null), true);
+        }
+        long matched = countInDatabase(argument, indexMatch, sample);
+        return new Total(Math.round(matched * (double) rows / sampled), false);
+    }
+
+    //runs of ids holding about estimateSampleSize books between them, assuming the ids are about as dense everywhere
+    private List<SearchQueryTemplates.IdRange> sampleRanges(long minId, long maxId, long rows) {
+        int strata = Math.min(ESTIMATE_STRATA, estimateSampleSize);
+        double span = (double) maxId - minId + 1;
+        double stratum = span / strata;
+        long width = Math.max(1, Math.min((long) stratum, Math.round(span * estimateSampleSize / rows / strata)));
+        List<SearchQueryTemplates.IdRange> ranges = new ArrayList<>(strata);
+        for (int i = 0; i < strata; i++) {
+            long from = minId + (long) (i * stratum) + (long) ((stratum - width) / 2);
+            ranges.add(new SearchQueryTemplates.IdRange(from, from + width - 1));
+        }
+        return ranges;
+    }
+
+    private record Total(long value, boolean exact) {
+    }
+
+    //the requested sort plus the id as tie breaker, so that pages and cursors see a total order
+    private List<Sort.Order> effectiveOrders(Sort sorts) {
+        List<Sort.Order> orders = new ArrayList<>(Optional.ofNullable(sorts).orElse(Sort.by(Collections.singletonList(new Sort.Order(Sort.Direction.DESC,"id")))).toList());
+        if(orders.isEmpty() || !orders.get(orders.size() - 1).getProperty().equals("id")){
+            orders.add(new Sort.Order(Sort.Direction.ASC, "id"));
+        }
+        return orders;
+    }
 
-            predicates.add(cb.or(formatPredicates.toArray(Predicate[]::new)));
+    /**
+     * Completes a title or author prefix from the catalog index, or from the database while
+     * the index is being built.
+     */
+    public List<String> suggest(SuggestField field, String prefix, int limit) {
+        if(catalogIndex.isReady()){
+            return catalogIndex.suggest(field, prefix, limit);
         }
+        String escaped = prefix.toUpperCase(Locale.ROOT).replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+        //a prefix match on the upper case column can range scan its index
+        return entityManager.createQuery("select b." + field.getValue() + " from Book b where b." + field.getValue() + "Upper like :prefix escape '\\'"
+                        + " group by b." + field.getValue() + " order by count(b) desc, upper(b." + field.getValue() + ")", String.class)
+                .setParameter("prefix", escaped + "%")
+                .setMaxResults(Math.min(limit, BookCatalogIndex.MAX_SUGGESTIONS))
+                .getResultList();
+    }
 
-        if(CollectionUtils.isNotEmpty(argument.getCategories())){
-            List<Predicate>categoryPredicates = new ArrayList<>();
-            Path<Format> categoryPath = root.get("category");
-            for(Category category:argument.getCategories()){
-                Predicate predicate = cb.equal(categoryPath, category);
-                categoryPredicates.add(predicate);
+    /**
+     * Counts the matches of the argument's filters per format, category, price band and year,
+     * ignoring its paging and sort. The catalog index answers it when it covers every filter,
+     * otherwise a single grouped query does, restricted to the ids the index resolved if any.
+     */
+    public SearchFacets facets(BookSearchArgument argument) {
+        List<BigDecimal> bands = priceBands.stream().distinct().sorted().collect(Collectors.toList());
+        Optional<SearchFacets> indexed = catalogIndex.facets(argument, bands);
+        if(indexed.isPresent()){
+            return indexed.get();
+        }
+        SearchFacets facets = new SearchFacets(bands);
+        Optional<IndexMatch> match = catalogIndex.match(argument);
+        if(match.isPresent() && match.get().getCount() == 0){
+            return facets;
+        }
+        for (Object[] row : queryTemplates.facets(entityManager, argument, match.filter(IndexMatch::hasIds).orElse(null), bands).getResultList()) {
+            facets.add((Format) row[0], (Category) row[1], (Integer) row[2], (Integer) row[3], (Long) row[4]);
+        }
+        return facets;
+    }
+
+    /**
+     * Hands every book to the consumer in id order through a forward-only cursor. The persistence
+     * context is cleared after each fetch so that memory does not grow with the catalog.
+     * Uses its own entity manager, as the caller may be writing the response on another thread.
+     */
+    public void streamCatalog(Consumer<Book> consumer) {
+        streamCatalog(null, 0, consumer);
+    }
+
+    /**
+     * Same as {@link #streamCatalog(Consumer)} for the books after an id, at most maxRows of them
+     * (0 for all), so that a long export can go through the catalog one short transaction at a time.
+     */
+    public void streamCatalog(Long afterId, int maxRows, Consumer<Book> consumer) {
+        EntityManager em = entityManagerFactory.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            TypedQuery<Book> query = em.createQuery("select b from Book b where b.id > :afterId order by b.id", Book.class)
+                    .setParameter("afterId", afterId == null ? Long.MIN_VALUE : afterId);
+            if (maxRows > 0) {
+                query.setMaxResults(maxRows);
+            }
+            Stream<Book> books = query
+                    .setHint(HibernateHints.HINT_FETCH_SIZE, streamFetchSize)
+                    .setHint(HibernateHints.HINT_READ_ONLY, true)
+                    .getResultStream();
+            try (books) {
+                Iterator<Book> iterator = books.iterator();
+                for (int row = 1; iterator.hasNext(); row++) {
+                    consumer.accept(iterator.next());
+                    if (row % streamFetchSize == 0) {
+                        em.clear();
+                    }
+                }
             }
-            predicates.add(cb.or(categoryPredicates.toArray(Predicate[]::new)));
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+    }
+
+    /**
+     * Same as {@link #streamCatalog(Consumer)}, reading only the given fields as tuples.
+     */
+    public void streamCatalog(List<BookField> fields, Consumer<BookRow> consumer) {
+        EntityManager em = entityManagerFactory.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            CriteriaBuilder cb = em.getCriteriaBuilder();
+            CriteriaQuery<Tuple> query = cb.createTupleQuery();
+            Root<Book> root = query.from(Book.class);
+            Set<String> columns = new LinkedHashSet<>();
+            fields.forEach(field -> columns.add(field.getValue()));
+            columns.add("id");
+            query.multiselect(columns.stream().map(column -> root.get(column).alias(column)).collect(Collectors.toList()))
+                    .orderBy(cb.asc(root.get("id")));
+            Stream<Tuple> rows = em.createQuery(query)
+                    .setHint(HibernateHints.HINT_FETCH_SIZE, streamFetchSize)
+                    .getResultStream();
+            try (rows) {
+                rows.forEach(tuple -> consumer.accept(toRow(tuple, fields)));
+            }
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
         }
+    }
 
-        if(argument.getIsbn() != null){
-            Path<String> isbnPath = root.get("isbn");
-            predicates.add(cb.like(isbnPath,"%"+argument.getIsbn() + "%"));
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional(readOnly = true)
+    public void rebuildCatalogIndex() {
+        try (Stream<Book> books = readCatalog()) {
+            catalogIndex.rebuild(books);
+        }
+        if(luceneIndex != null){
+            try (Stream<Book> books = readCatalog()) {
+                luceneIndex.rebuild(books);
+            }
         }
+    }
 
-        query.select(root).where(predicates.toArray(Predicate[]::new));
-        query.orderBy(covertSortToOrder(cb, root, argument.getSorts()));
+    private Stream<Book> readCatalog() {
+        return entityManager.createQuery("select b from Book b", Book.class)
+                .setHint(HibernateHints.HINT_FETCH_SIZE, 500)
+                .setHint(HibernateHints.HINT_READ_ONLY, true)
+                .getResultStream()
+                .peek(entityManager::detach);
+    }
 
-        TypedQuery<Book> typedQuery = entityManager.createQuery(query);
-        typedQuery.setFirstResult((argument.getPage()) * argument.getSize());
-        if(argument.getSize()>0) typedQuery.setMaxResults(argument.getSize());
+    /**
+     * Takes stock away in a single conditional update, so that concurrent sales neither overwrite
+     * each other nor take the level below zero. The new level is read back before the row is unlocked.
+     * @return the new stock level of the book
+     * @throws StockConflictException when there is less stock than asked for
+     */
+    @Transactional
+    public StockLevel decrementStock(Long id, int by) {
+        return updateStock(id, -by, column("stockLevel") + " >= ?", by).orElseThrow(() -> {
+            Book book = find(id);
+            return new StockConflictException("insufficient stock for book " + id + ": " + by + " requested, " + book.getStockLevel() + " available");
+        });
+    }
 
-        List<Book> book = typedQuery.getResultList();
-        return book;
+    /**
+     * Adds stock in a single conditional update, books without a price or published date having
+     * to stay out of stock.
+     * @return the new stock level of the book
+     * @throws StockConflictException when the book cannot hold the stock
+     */
+    @Transactional
+    public StockLevel incrementStock(Long id, int by) {
+        return updateStock(id, by, column("stockLevel") + " <= ? and " + column("price") + " is not null and "
+                + column("publishedDate") + " is not null", Integer.MAX_VALUE - by).orElseThrow(() -> {
+            Book book = find(id);
+            return new StockConflictException(book.getPrice() == null || book.getPublishedDate() == null
+                    ? "book " + id + " cannot be stocked without a price and a published date"
+                    : "stock level of book " + id + " cannot go above " + Integer.MAX_VALUE);
+        });
     }
 
-    private List<Order> covertSortToOrder(CriteriaBuilder cb,Root<Book> root, Sort sorts) {
-        List<Order> orderList = new ArrayList();
-        Optional.ofNullable(sorts).orElse(Sort.by(Collections.singletonList(new Sort.Order(Sort.Direction.DESC,"id")))).forEach(order->{
-            if(order.isAscending()){
-                orderList.add(cb.asc(root.get(order.getProperty())));
-            } else{
-                orderList.add(cb.desc(root.get(order.getProperty())));
+    //the level the update left is read back by id in the same transaction, the row lock the update took keeping any other
+    //change of it out in between. A copy of the book already in the persistence context is older than the row, and only it is detached
+    private Optional<StockLevel> updateStock(Long id, int by, String condition, int bound) {
+        entityManager.flush();
+        entityManager.detach(entityManager.getReference(Book.class, id));
+        AbstractEntityPersister persister = persister();
+        String stockLevel = column("stockLevel");
+        String version = persister.getVersionColumnName();
+        String idColumn = persister.getIdentifierColumnNames()[0];
+        String update = "update " + persister.getTableName() + " set " + stockLevel + " = " + stockLevel + " + ?, " + version + " = " + version + " + 1"
+                + " where " + idColumn + " = ? and " + condition;
+        String select = "select " + stockLevel + " from " + persister.getTableName() + " where " + idColumn + " = ?";
+        return entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement updated = connection.prepareStatement(update)) {
+                updated.setInt(1, by);
+                updated.setLong(2, id);
+                updated.setInt(3, bound);
+                if (updated.executeUpdate() == 0) {
+                    return Optional.empty();
+                }
+            }
+            try (PreparedStatement selected = connection.prepareStatement(select)) {
+                selected.setLong(1, id);
+                try (ResultSet level = selected.executeQuery()) {
+                    if (!level.next()) {
+                        throw new BookNotFoundException(id);
+                    }
+                    return Optional.of(new StockLevel(id, level.getInt(1)));
+                }
             }
         });
-        return orderList;
+    }
+
+    private Book find(Long id) {
+        Book book = entityManager.find(Book.class, id);
+        if (book == null) {
+            throw new BookNotFoundException(id);
+        }
+        return book;
+    }
+
+    //the column names follow the naming strategy of the persistence unit
+    private String column(String property) {
+        return persister().getPropertyColumnNames(property)[0];
+    }
+
+    private AbstractEntityPersister persister() {
+        return (AbstractEntityPersister) entityManager.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class)
+                .getMappingMetamodel().getEntityDescriptor(Book.class);
+    }
+
+    /**
+     * A weak etag for any listing of the catalog, changing with every write to it. The start time
+     * tells apart the write counts of successive runs of the application.
+     */
+    public String catalogETag() {
+        return "W/\"" + startedAt + "-" + searchCache.getGeneration() + "\"";
+    }
+
+    public void afterStockChange(StockLevel level) {
+        catalogIndex.updateStockLevel(level.getId(), level.getStockLevel());
+        searchCache.invalidateStock(level.getId());
+        jsonCache.invalidate(level.getId());
+    }
+
+    public void afterSave(Book book) {
+        afterSave(null, book, false);
+    }
+
+    /**
+     * @param before a copy of the book taken before it was changed, null for a new book
+     * @param stockSet whether the write set the stock level, even to the one it had
+     */
+    public void afterSave(Book before, Book book, boolean stockSet) {
+        catalogIndex.index(book);
+        if(luceneIndex != null){
+            luceneIndex.index(book);
+        }
+        searchCache.invalidate(before, book);
+        jsonCache.invalidate(book.getId());
+        //a stock level set outright replaces the one counted in memory, which the database may be behind
+        if(stockReservations != null && before != null && (stockSet
+                || (before.getPrice() == null) != (book.getPrice() == null) || (before.getPublishedDate() == null) != (book.getPublishedDate() == null))){
+            stockReservations.reset(book);
+        }
+    }
+
+    //many new books at once, which drops every cached search rather than checking each book against them
+    public void afterSaveAll(Collection<Book> books) {
+        if(books.isEmpty()){
+            return;
+        }
+        catalogIndex.indexAll(books);
+        if(luceneIndex != null){
+            luceneIndex.indexAll(books);
+        }
+        searchCache.invalidateAll();
+    }
+
+    public void afterDelete(Long id, Book deleted) {
+        catalogIndex.remove(id);
+        if(luceneIndex != null){
+            luceneIndex.remove(id);
+        }
+        searchCache.invalidate(deleted, null);
+        jsonCache.invalidate(id);
+        if(stockReservations != null){
+            stockReservations.forget(id);
+        }
     }
 }
@@ -0,0 +1,254 @@
+package uk.ac.jisc.bookshop.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Tuple;
+import jakarta.persistence.TypedQuery;
+import jakarta.persistence.metamodel.EntityType;
+import org.apache.commons.collections4.CollectionUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import uk.ac.jisc.bookshop.domain.Book;
+import uk.ac.jisc.bookshop.domain.Isbn;
+import uk.ac.jisc.bookshop.index.IndexMatch;
+import uk.ac.jisc.bookshop.index.SearchFilter;
+import uk.ac.jisc.bookshop.nondomain.BookSearchArgument;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Search queries as jpql templates, one per shape: the selection and grouping, which filters are set, how many
+ * formats and categories, the sort and which cursor keys are null. Values are bound as parameters,
+ * so a shape always yields the same text and Hibernate parses and translates it once, keeping the
+ * plan in its own query plan cache. Typed queries belong to an entity manager, so the text is
+ * what is shared between requests.
+ */
+@Component
+public class SearchQueryTemplates {
+
+    public static final String NAME = "books.search.templates";
+
+    private final Cache<Shape, String> templates;
+
+    @Autowired
+    public SearchQueryTemplates(MeterRegistry meterRegistry,
+                                @Value("${bookshop.search.templates.max-size:500}") long maxSize) {
+        templates = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, templates, NAME);
+        Gauge.builder(NAME + ".hit.ratio", templates, c -> c.stats().hitRate()).register(meterRegistry);
+    }
+
+    public TypedQuery<Book> books(EntityManager em, BookSearchArgument argument, IndexMatch indexMatch, List<Sort.Order> orders) {
+        return query(em, Book.class, "b", null, argument, indexMatch, orders, null);
+    }
+
+    //every column is aliased by its name, which is how rows are read back
+    public TypedQuery<Tuple> rows(EntityManager em, BookSearchArgument argument, IndexMatch indexMatch, List<Sort.Order> orders, Collection<String> columns) {
+        String selection = columns.stream().map(column -> "b." + attribute(em, column) + " as " + column).collect(Collectors.joining(", "));
+        return query(em, Tuple.class, selection, null, argument, indexMatch, orders, null);
+    }
+
+    /**
+     * @param idRanges only count the books with an id in one of these ranges, null for all of them
+     */
+    public TypedQuery<Long> count(EntityManager em, BookSearchArgument argument, IndexMatch indexMatch, List<IdRange> idRanges) {
+        return query(em, Long.class, "count(b)", null, argument, indexMatch, Collections.emptyList(), idRanges);
+    }
+
+    /**
+     * One row per format, category, price band and year holding matches, with their count.
+     * The band is the number of bounds at or below the price, -1 without a price.
+     */
+    public TypedQuery<Object[]> facets(EntityManager em, BookSearchArgument argument, IndexMatch indexMatch, List<BigDecimal> priceBands) {
+        StringBuilder band = new StringBuilder("case when b.price is null then -1");
+        for (int i = 0; i < priceBands.size(); i++) {
+            band.append(" when b.price < ").append(priceBands.get(i).toPlainString()).append("bd then ").append(i);
+        }
+        band.append(" else ").append(priceBands.size()).append(" end");
+        String groups = "b.format, b.category, " + band + ", year(b.publishedDate)";
+        return query(em, Object[].class, groups + ", count(b)", groups, argument, indexMatch, Collections.emptyList(), null);
+    }
+
+    public double hitRate() {
+        return templates.stats().hitRate();
+    }
+
+    private <T> TypedQuery<T> query(EntityManager em, Class<T> type, String selection, String groupBy, BookSearchArgument argument,
+                                    IndexMatch indexMatch, List<Sort.Order> orders, List<IdRange> idRanges) {
+        orders.forEach(order -> attribute(em, order.getProperty()));
+        List<Object> cursorKeys = cursorKeys(em, argument, orders);
+        Shape shape = Shape.of(selection, groupBy, argument, indexMatch, orders, cursorKeys, idRanges == null ? 0 : idRanges.size());
+        TypedQuery<T> query = em.createQuery(templates.get(shape, Shape::jpql), type);
+        shape.bind(query, argument, indexMatch, cursorKeys, idRanges);
+        return query;
+    }
+
+    //the cursor values typed after the sort attributes, the last one being the id
+    private static List<Object> cursorKeys(EntityManager em, BookSearchArgument argument, List<Sort.Order> orders) {
+        if (argument.getCursor() == null || orders.isEmpty()) {
+            return null;
+        }
+        List<Object> keys = new ArrayList<>(orders.size());
+        EntityType<Book> book = em.getMetamodel().entity(Book.class);
+        for (int i = 0; i < orders.size(); i++) {
+            String property = orders.get(i).getProperty();
+            keys.add(i == orders.size() - 1 && property.equals("id")
+                    ? argument.getCursor().getId()
+                    : argument.getCursor().getKey(i, book.getAttribute(property).getJavaType()));
+        }
+        return keys;
+    }
+
+    //names from requests go into the jpql, so they must be attributes of the entity
+    private static String attribute(EntityManager em, String name) {
+        return em.getMetamodel().entity(Book.class).getAttribute(name).getName();
+    }
+
+    //ids from and to, both inclusive
+    public record IdRange(long from, long to) {
+    }
+
+    private enum IsbnMatch {NONE, EXACT, PARTIAL}
+
+    record Shape(String selection, String groupBy, boolean ids, boolean title, boolean author, boolean priceFrom, boolean priceTo,
+                 boolean dateStart, boolean dateEnd, int formats, int categories, IsbnMatch isbn, int idRanges,
+                 List<String> orders, List<Boolean> nullCursorKeys) {
+
+        //filters answered by the index are left out, as the ids already satisfy them
+        static Shape of(String selection, String groupBy, BookSearchArgument argument, IndexMatch indexMatch, List<Sort.Order> orders,
+                        List<Object> cursorKeys, int idRanges) {
+            return new Shape(selection, groupBy,
+                    indexMatch != null,
+                    StringUtils.hasText(argument.getTitle()) && !covers(indexMatch, SearchFilter.TITLE),
+                    StringUtils.hasText(argument.getAuthor()) && !covers(indexMatch, SearchFilter.AUTHOR),
+                    isPositive(argument.getPriceFrom()) && !covers(indexMatch, SearchFilter.PRICE),
+                    isPositive(argument.getPriceTo()) && !covers(indexMatch, SearchFilter.PRICE),
+                    argument.getPublicationDateStart() != null && !covers(indexMatch, SearchFilter.PUBLISHED_DATE),
+                    argument.getPublicationDateEnd() != null && !covers(indexMatch, SearchFilter.PUBLISHED_DATE),
+                    CollectionUtils.isNotEmpty(argument.getFormats()) && !covers(indexMatch, SearchFilter.FORMAT) ? argument.getFormats().size() : 0,
+                    CollectionUtils.isNotEmpty(argument.getCategories()) && !covers(indexMatch, SearchFilter.CATEGORY) ? argument.getCategories().size() : 0,
+                    argument.getIsbn() == null || covers(indexMatch, SearchFilter.ISBN) ? IsbnMatch.NONE
+                            : Isbn.toIsbn13(argument.getIsbn()) != null ? IsbnMatch.EXACT : IsbnMatch.PARTIAL,
+                    idRanges,
+                    orders.stream().map(order -> order.getProperty() + (order.isAscending() ? " asc" : " desc")).collect(Collectors.toList()),
+                    cursorKeys == null ? null : cursorKeys.stream().map(Objects::isNull).collect(Collectors.toList()));
+        }
+
+        String jpql() {
+            List<String> where = new ArrayList<>();
+            if (ids) where.add("b.id in :ids");
+            if (title) where.add("b.titleUpper like :title");
+            if (author) where.add("b.authorUpper like :author");
+            if (priceFrom) where.add("b.price >= :priceFrom");
+            if (priceTo) where.add("b.price <= :priceTo");
+            if (dateStart) where.add("b.publishedDate >= :dateStart");
+            if (dateEnd) where.add("b.publishedDate <= :dateEnd");
+            if (formats > 0) where.add(in("b.format", "format", formats));
+            if (categories > 0) where.add(in("b.category", "category", categories));
+            if (isbn == IsbnMatch.EXACT) where.add("b.isbn13 = :isbn13");
+            if (isbn == IsbnMatch.PARTIAL) where.add("b.isbn like :isbn");
+            if (idRanges > 0) where.add(anyIdRange());
+            if (nullCursorKeys != null) where.add(seek());
+
+            StringBuilder jpql = new StringBuilder("select ").append(selection).append(" from Book b");
+            if (!where.isEmpty()) {
+                jpql.append(" where ").append(String.join(" and ", where));
+            }
+            if (groupBy != null) {
+                jpql.append(" group by ").append(groupBy);
+            }
+            if (!orders.isEmpty()) {
+                jpql.append(" order by ").append(orders.stream().map(order -> "b." + order).collect(Collectors.joining(", ")));
+            }
+            return jpql.toString();
+        }
+
+        void bind(TypedQuery<?> query, BookSearchArgument argument, IndexMatch indexMatch, List<Object> cursorKeys, List<IdRange> idRangeValues) {
+            if (ids) query.setParameter("ids", indexMatch.getIds());
+            if (title) query.setParameter("title", "%" + argument.getTitle().toUpperCase(Locale.ROOT) + "%");
+            if (author) query.setParameter("author", "%" + argument.getAuthor().toUpperCase(Locale.ROOT) + "%");
+            if (priceFrom) query.setParameter("priceFrom", argument.getPriceFrom());
+            if (priceTo) query.setParameter("priceTo", argument.getPriceTo());
+            if (dateStart) query.setParameter("dateStart", argument.getPublicationDateStart());
+            if (dateEnd) query.setParameter("dateEnd", argument.getPublicationDateEnd());
+            for (int i = 0; i < formats; i++) query.setParameter("format" + i, argument.getFormats().get(i));
+            for (int i = 0; i < categories; i++) query.setParameter("category" + i, argument.getCategories().get(i));
+            if (isbn == IsbnMatch.EXACT) query.setParameter("isbn13", Isbn.toIsbn13(argument.getIsbn()));
+            if (isbn == IsbnMatch.PARTIAL) query.setParameter("isbn", "%" + argument.getIsbn() + "%");
+            for (int i = 0; i < idRanges; i++) {
+                query.setParameter("idFrom" + i, idRangeValues.get(i).from());
+                query.setParameter("idTo" + i, idRangeValues.get(i).to());
+            }
+            if (nullCursorKeys != null) {
+                for (int i = 0; i < cursorKeys.size(); i++) {
+                    if (cursorKeys.get(i) != null) query.setParameter("k" + i, cursorKeys.get(i));
+                }
+            }
+        }
+
+        /*
+         (k1,k2,id) after (v1,v2,i) expands to
+         k1 after v1 or (k1 = v1 and k2 after v2) or (k1 = v1 and k2 = v2 and id after i)
+         nulls sort lowest, which is the default null ordering of H2
+         */
+        private String seek() {
+            List<String> alternatives = new ArrayList<>();
+            List<String> equalPrefix = new ArrayList<>();
+            for (int i = 0; i < orders.size(); i++) {
+                String[] order = orders.get(i).split(" ");
+                String path = "b." + order[0];
+                boolean ascending = order[1].equals("asc");
+                String after;
+                if (nullCursorKeys.get(i)) {
+                    //nothing sorts before null in descending order
+                    after = ascending ? path + " is not null" : null;
+                } else {
+                    after = ascending ? path + " > :k" + i : "(" + path + " < :k" + i + " or " + path + " is null)";
+                }
+                if (after != null) {
+                    List<String> alternative = new ArrayList<>(equalPrefix);
+                    alternative.add(after);
+                    alternatives.add("(" + String.join(" and ", alternative) + ")");
+                }
+                equalPrefix.add(nullCursorKeys.get(i) ? path + " is null" : path + " = :k" + i);
+            }
+            return "(" + String.join(" or ", alternatives) + ")";
+        }
+
+        private String anyIdRange() {
+            List<String> ranges = new ArrayList<>(idRanges);
+            for (int i = 0; i < idRanges; i++) {
+                ranges.add("b.id between :idFrom" + i + " and :idTo" + i);
+            }
+            return "(" + String.join(" or ", ranges) + ")";
+        }
+
+        private static String in(String path, String parameter, int count) {
+            List<String> parameters = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                parameters.add(":" + parameter + i);
+            }
+            return path + " in (" + String.join(", ", parameters) + ")";
+        }
+
+        private static boolean covers(IndexMatch indexMatch, SearchFilter filter) {
+            return indexMatch != null && indexMatch.covers(filter);
+        }
+
+        private static boolean isPositive(BigDecimal value) {
+            return value != null && value.compareTo(BigDecimal.ZERO) > 0;
+        }
+    }
+}
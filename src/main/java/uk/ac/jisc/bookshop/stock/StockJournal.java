@@ -0,0 +1,185 @@
+package uk.ac.jisc.bookshop.stock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.jisc.bookshop.nondomain.StockHold;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of the stock reservation engine, one line per change, each one numbered:
+ * <pre>
+ * J journalId base      header, the sequence the file starts from
+ * H seq hold book quantity expiresAtMillis
+ * C seq hold            hold confirmed, its quantity sold
+ * X seq hold            hold released or expired
+ * D seq book delta      stock sold or added without a hold
+ * Z seq book            stock level set outright, earlier deltas of the book dropped
+ * E base                end of the state the file starts with
+ * </pre>
+ * Each file starts with the whole state of the engine when it was opened, its holds and the
+ * deltas not yet in the database, so recovery reads the newest complete file only and older
+ * ones are deleted once the database has everything they hold. Records are written straight
+ * to the file channel, surviving a crash of the process, and forced to disk on each flush or,
+ * with fsync, on each record.
+ */
+public class StockJournal implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(StockJournal.class);
+
+    private static final Pattern FILE_NAME = Pattern.compile("journal-(\\d+)\\.log");
+
+    private final Path directory;
+    private final String journalId;
+    private final boolean fsync;
+    private long sequence;
+    private long generation;
+    private FileChannel channel;
+    private long size;
+
+    public StockJournal(Path directory, String journalId, long sequence, boolean fsync) throws IOException {
+        this.directory = directory;
+        this.journalId = journalId;
+        this.sequence = sequence;
+        this.fsync = fsync;
+        try (Stream<Path> files = Files.list(directory)) {
+            generation = files.mapToLong(StockJournal::generation).max().orElse(0);
+        }
+    }
+
+    /**
+     * @return the newest file whose starting state was written whole, if any
+     */
+    public static Optional<Path> latest(Path directory) throws IOException {
+        List<Path> files;
+        try (Stream<Path> listed = Files.list(directory)) {
+            files = listed.filter(file -> generation(file) > 0)
+                    .sorted(Comparator.comparingLong(StockJournal::generation).reversed())
+                    .toList();
+        }
+        for (Path file : files) {
+            boolean[] complete = {false};
+            read(file, record -> complete[0] |= record[0].equals("E"));
+            if (complete[0]) {
+                return Optional.of(file);
+            }
+            log.warn("ignoring stock journal {}, its starting state is incomplete", file);
+        }
+        return Optional.empty();
+    }
+
+    //a last line cut short by a crash is skipped
+    public static void read(Path file, Consumer<String[]> records) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] record = line.split(" ");
+                if (record.length >= 2 && record[0].length() == 1) {
+                    records.accept(record);
+                }
+            }
+        }
+    }
+
+    public String getJournalId() {
+        return journalId;
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return the sequence number of the record
+     */
+    public synchronized long append(String type, Object... fields) throws IOException {
+        long next = sequence + 1;
+        Object[] record = new Object[fields.length + 1];
+        record[0] = next;
+        System.arraycopy(fields, 0, record, 1, fields.length);
+        write(type, record);
+        if (fsync) {
+            channel.force(false);
+        }
+        sequence = next;
+        return next;
+    }
+
+    /**
+     * Starts a new file with the given state, every later record going to it. The files before
+     * it stay until {@link #deleteOlderFiles()} is called.
+     * @param deltas the stock changes by book not yet in the database, recorded at the current sequence
+     */
+    public synchronized void rotate(Collection<StockHold> holds, Map<Long, Integer> deltas) throws IOException {
+        FileChannel previous = channel;
+        channel = FileChannel.open(directory.resolve(String.format("journal-%06d.log", ++generation)),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        size = 0;
+        write("J", journalId, sequence);
+        for (StockHold hold : holds) {
+            write("H", sequence, hold.getId(), hold.getBookId(), hold.getQuantity(), hold.getExpiresAt().toEpochMilli());
+        }
+        for (Map.Entry<Long, Integer> delta : deltas.entrySet()) {
+            write("D", sequence, delta.getKey(), delta.getValue());
+        }
+        write("E", sequence);
+        channel.force(true);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    public synchronized void deleteOlderFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.filter(file -> generation(file) > 0 && generation(file) < generation).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    public synchronized void force() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void write(String type, Object... fields) throws IOException {
+        StringBuilder line = new StringBuilder(64).append(type);
+        for (Object field : fields) {
+            line.append(' ').append(field);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            size += channel.write(bytes);
+        }
+    }
+
+    private static long generation(Path file) {
+        Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : 0;
+    }
+}
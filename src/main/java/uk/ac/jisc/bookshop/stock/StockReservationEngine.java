@@ -0,0 +1,556 @@
+package uk.ac.jisc.bookshop.stock;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.EntityTransaction;
+import jakarta.persistence.PersistenceUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import uk.ac.jisc.bookshop.Exception.BookNotFoundException;
+import uk.ac.jisc.bookshop.Exception.HoldNotFoundException;
+import uk.ac.jisc.bookshop.Exception.StockConflictException;
+import uk.ac.jisc.bookshop.cache.BookSearchCache;
+import uk.ac.jisc.bookshop.domain.Book;
+import uk.ac.jisc.bookshop.domain.StockJournalCheckpoint;
+import uk.ac.jisc.bookshop.index.BookCatalogIndex;
+import uk.ac.jisc.bookshop.nondomain.StockHold;
+import uk.ac.jisc.bookshop.nondomain.StockLevel;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the stock of the books being sold in memory, so that reserving, confirming and releasing
+ * stock takes a compare-and-set on the book's counter and a line in the journal rather than a
+ * row lock in the database. The changes of each book are summed up and written behind, every
+ * flush applying the net change of each book and the checkpoint of the journal in one transaction.
+ * <p>
+ * A book's counter is loaded on its first change: what is available is its stock level plus the
+ * changes not yet flushed, less the quantity held. Holds expire after their ttl, their stock going
+ * back on sale. On start the newest journal file is replayed, its changes after the checkpoint
+ * being the ones the database misses, and flushed; a journal belonging to another database, or
+ * to none as the in-memory one after a restart, is set aside with a warning.
+ * <p>
+ * Changes take the read side of a lock and a flush the write side just long enough to take the
+ * changes to write, so that those and the journal sequence they run up to always go together.
+ * Only there when bookshop.stock.reservations.enabled is set.
+ */
+@Component
+@ConditionalOnProperty(name = "bookshop.stock.reservations.enabled", havingValue = "true")
+public class StockReservationEngine {
+
+    private static final Logger log = LoggerFactory.getLogger(StockReservationEngine.class);
+
+    @PersistenceUnit
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private BookCatalogIndex catalogIndex;
+
+    @Autowired
+    private BookSearchCache searchCache;
+
+    @Value("${bookshop.stock.reservations.directory:data/stock}")
+    private Path directory = Path.of("data/stock");
+
+    @Value("${bookshop.stock.reservations.hold-ttl:10m}")
+    private Duration holdTtl = Duration.ofMinutes(10);
+
+    @Value("${bookshop.stock.reservations.max-hold-ttl:1h}")
+    private Duration maxHoldTtl = Duration.ofHours(1);
+
+    @Value("${bookshop.stock.reservations.flush-interval:200ms}")
+    private Duration flushInterval = Duration.ofMillis(200);
+
+    @Value("${bookshop.stock.reservations.journal.max-size:67108864}")
+    private long maxJournalSize = 64 << 20;
+
+    //forces each record to disk rather than on each flush, surviving a power cut as well as a crash
+    @Value("${bookshop.stock.reservations.journal.fsync:false}")
+    private boolean fsync = false;
+
+    private final Map<Long, Counter> counters = new ConcurrentHashMap<>();
+
+    private final Map<String, StockHold> holds = new ConcurrentHashMap<>();
+
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+    //bumped by every reset or deletion, telling a counter being loaded that the book may have changed under it
+    private final AtomicLong resets = new AtomicLong();
+
+    private StockJournal journal;
+
+    //journal files left behind by a rotation until a flush has put their changes in the database
+    private boolean staleFiles;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() throws IOException {
+        Files.createDirectories(directory);
+        recover();
+        flush(true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("stock-reservations-"));
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::expireHolds, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        scheduler.shutdownNow();
+        flush(false);
+        journal.close();
+    }
+
+    /**
+     * Sets stock aside until the hold is confirmed or released, or its ttl runs out.
+     * @param ttl how long the hold lasts, the default one when null, at most the max-hold-ttl
+     * @throws StockConflictException when there is less stock available than asked for
+     */
+    public StockHold reserve(Long bookId, int quantity, Duration ttl) {
+        Duration lasting = ttl == null ? holdTtl : ttl.compareTo(maxHoldTtl) > 0 ? maxHoldTtl : ttl;
+        StockHold hold = new StockHold(UUID.randomUUID().toString(), bookId, quantity, Instant.now().plus(lasting));
+        change(bookId, counter -> {
+            take(counter, bookId, quantity);
+            try {
+                journal.append("H", hold.getId(), bookId, quantity, hold.getExpiresAt().toEpochMilli());
+            } catch (IOException e) {
+                counter.available.addAndGet(quantity);
+                throw new UncheckedIOException(e);
+            }
+            counter.held.addAndGet(quantity);
+            holds.put(hold.getId(), hold);
+            return null;
+        });
+        return hold;
+    }
+
+    //the held stock is sold, reaching the database with the next flush
+    public StockHold confirm(String holdId) {
+        return end(holdId, "C", (counter, quantity) -> counter.pending.addAndGet(-quantity));
+    }
+
+    //the held stock goes back on sale
+    public StockHold release(String holdId) {
+        return end(holdId, "X", (counter, quantity) -> counter.available.addAndGet(quantity));
+    }
+
+    /**
+     * Sells stock without a hold.
+     * @return the stock level left available
+     * @throws StockConflictException when there is less stock available than asked for
+     */
+    public StockLevel sell(Long bookId, int quantity) {
+        return change(bookId, counter -> {
+            int left = take(counter, bookId, quantity);
+            record(counter, bookId, -quantity, () -> counter.available.addAndGet(quantity));
+            return new StockLevel(bookId, left);
+        });
+    }
+
+    /**
+     * Adds stock, books without a price or published date having to stay out of stock.
+     * @return the stock level available
+     * @throws StockConflictException when the book cannot hold the stock
+     */
+    public StockLevel restock(Long bookId, int quantity) {
+        return change(bookId, counter -> {
+            if (!counter.stockable) {
+                throw new StockConflictException("book " + bookId + " cannot be stocked without a price and a published date");
+            }
+            //the level the book reaches once flushed, holds included
+            if ((long) counter.available.get() + counter.held.get() + quantity > Integer.MAX_VALUE) {
+                throw new StockConflictException("stock level of book " + bookId + " cannot go above " + Integer.MAX_VALUE);
+            }
+            record(counter, bookId, quantity, () -> {});
+            return new StockLevel(bookId, counter.available.addAndGet(quantity));
+        });
+    }
+
+    public StockLevel available(Long bookId) {
+        return new StockLevel(bookId, counter(bookId).available.get());
+    }
+
+    public Optional<StockHold> hold(String holdId) {
+        return Optional.ofNullable(holds.get(holdId));
+    }
+
+    /**
+     * Takes the stock level of a book saved outright as the new one, the changes of it not yet
+     * flushed being dropped and its holds kept. Waits for a flush under way, which may add its
+     * change of the book after the save, and reads the level back from the database once it is
+     * done, so that what is on sale and what the next flushes add to always agree.
+     */
+    public synchronized void reset(Book book) {
+        Counter saved = null;
+        if (counters.containsKey(book.getId())) {
+            try {
+                saved = load(book.getId());
+            } catch (BookNotFoundException e) {
+                //deleted meanwhile, its counter going with it
+                return;
+            }
+        }
+        snapshotLock.writeLock().lock();
+        try {
+            resets.incrementAndGet();
+            Counter counter = counters.get(book.getId());
+            if (counter == null) {
+                return;
+            }
+            journal.append("Z", book.getId());
+            counter.pending.set(0);
+            //loaded by a change meanwhile, so no flush had a change of it under way and the saved level stands
+            if (saved == null) {
+                saved = new Counter(book.getStockLevel(), stockable(book));
+            }
+            counter.available.set(saved.available.get() - counter.held.get());
+            counter.stockable = saved.stockable;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    //a deleted book loses its holds and the changes of it not yet flushed
+    public void forget(Long bookId) {
+        snapshotLock.writeLock().lock();
+        try {
+            resets.incrementAndGet();
+            Counter counter = counters.remove(bookId);
+            if (counter == null) {
+                return;
+            }
+            counter.deleted = true;
+            for (StockHold hold : holds.values()) {
+                if (hold.getBookId().equals(bookId)) {
+                    holds.remove(hold.getId());
+                    journal.append("X", hold.getId());
+                }
+            }
+            journal.append("Z", bookId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    public void expireHolds() {
+        Instant now = Instant.now();
+        for (StockHold hold : holds.values()) {
+            if (hold.getExpiresAt().isBefore(now)) {
+                try {
+                    release(hold.getId());
+                } catch (HoldNotFoundException e) {
+                    //confirmed or released meanwhile
+                } catch (RuntimeException e) {
+                    log.error("could not expire stock hold {}", hold.getId(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the net change of each book since the last flush to its stock level, together with the
+     * journal sequence it runs up to. Changes that could not be written are kept for the next flush,
+     * the journal still holding them should the process stop first.
+     * @param rotate whether to start a new journal file, which happens anyway once it grows too big
+     */
+    public synchronized void flush(boolean rotate) throws IOException {
+        Map<Long, Integer> deltas = new HashMap<>();
+        long sequence;
+        snapshotLock.writeLock().lock();
+        try {
+            sequence = journal.getSequence();
+            counters.forEach((id, counter) -> {
+                int delta = counter.pending.getAndSet(0);
+                if (delta != 0) {
+                    deltas.put(id, delta);
+                }
+            });
+            if (rotate || journal.size() > maxJournalSize) {
+                journal.rotate(holds.values(), deltas);
+                staleFiles = true;
+            }
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+        if (deltas.isEmpty() && !staleFiles) {
+            return;
+        }
+        journal.force();
+        List<Book> books;
+        try {
+            books = write(deltas, sequence);
+        } catch (RuntimeException e) {
+            deltas.forEach((id, delta) -> {
+                Counter counter = counters.get(id);
+                if (counter != null) {
+                    counter.pending.addAndGet(delta);
+                }
+            });
+            throw e;
+        }
+        if (staleFiles) {
+            journal.deleteOlderFiles();
+            staleFiles = false;
+        }
+        for (Book book : books) {
+            catalogIndex.updateStockLevel(book.getId(), book.getStockLevel());
+            searchCache.invalidate(book, book);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush(false);
+        } catch (IOException | RuntimeException e) {
+            log.error("could not flush the stock changes, retrying with the next flush", e);
+        }
+    }
+
+    private List<Book> write(Map<Long, Integer> deltas, long sequence) {
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        EntityTransaction transaction = entityManager.getTransaction();
+        try {
+            transaction.begin();
+            for (Map.Entry<Long, Integer> delta : deltas.entrySet()) {
+                entityManager.createQuery("update Book b set b.stockLevel = b.stockLevel + :delta, b.version = b.version + 1 where b.id = :id")
+                        .setParameter("delta", delta.getValue())
+                        .setParameter("id", delta.getKey())
+                        .executeUpdate();
+            }
+            entityManager.merge(new StockJournalCheckpoint(journal.getJournalId(), sequence));
+            List<Book> books = deltas.isEmpty() ? List.of() : entityManager.createQuery("select b from Book b where b.id in :ids", Book.class)
+                    .setParameter("ids", deltas.keySet())
+                    .getResultList();
+            transaction.commit();
+            return books;
+        } finally {
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            entityManager.close();
+        }
+    }
+
+    //replays the newest journal file when it belongs to the database, leaving the changes it has over it to flush
+    private void recover() throws IOException {
+        StockJournalCheckpoint checkpoint;
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            checkpoint = entityManager.find(StockJournalCheckpoint.class, StockJournalCheckpoint.ID);
+        } finally {
+            entityManager.close();
+        }
+        Optional<Path> latest = StockJournal.latest(directory);
+        if (latest.isEmpty()) {
+            journal = new StockJournal(directory, UUID.randomUUID().toString(), 0, fsync);
+            return;
+        }
+        String[] journalId = {null};
+        long[] sequence = {0};
+        Map<Long, Integer> pending = new HashMap<>();
+        long after = checkpoint == null ? Long.MAX_VALUE : checkpoint.getSequence();
+        StockJournal.read(latest.get(), record -> {
+            try {
+                replay(record, after, journalId, sequence, pending);
+            } catch (RuntimeException e) {
+                log.warn("skipping the unreadable stock journal record {}", String.join(" ", record));
+            }
+        });
+        if (checkpoint == null || !checkpoint.getJournalId().equals(journalId[0])) {
+            log.warn("the stock journal {} does not belong to this database, setting it aside and starting a new one", journalId[0]);
+            holds.clear();
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : files.filter(file -> file.getFileName().toString().endsWith(".log")).toList()) {
+                    Files.move(file, file.resolveSibling(file.getFileName() + ".orphaned"));
+                }
+            }
+            journal = new StockJournal(directory, UUID.randomUUID().toString(), 0, fsync);
+            return;
+        }
+        Map<Long, Integer> held = new HashMap<>();
+        holds.values().forEach(hold -> held.merge(hold.getBookId(), hold.getQuantity(), Integer::sum));
+        Set<Long> ids = new HashSet<>(pending.keySet());
+        ids.addAll(held.keySet());
+        for (Long id : ids) {
+            try {
+                Counter counter = load(id);
+                counter.held.set(held.getOrDefault(id, 0));
+                counter.pending.set(pending.getOrDefault(id, 0));
+                counter.available.addAndGet(counter.pending.get() - counter.held.get());
+                counters.put(id, counter);
+            } catch (BookNotFoundException e) {
+                holds.values().removeIf(hold -> hold.getBookId().equals(id));
+            }
+        }
+        journal = new StockJournal(directory, journalId[0], sequence[0], fsync);
+        log.info("recovered {} stock holds and the unflushed stock changes of {} books from {}", holds.size(), pending.size(), latest.get());
+    }
+
+    private void replay(String[] record, long after, String[] journalId, long[] sequence, Map<Long, Integer> pending) {
+        if (record[0].equals("J")) {
+            journalId[0] = record[1];
+            return;
+        }
+        long seq = Long.parseLong(record[1]);
+        sequence[0] = Math.max(sequence[0], seq);
+        switch (record[0]) {
+            case "H":
+                holds.put(record[2], new StockHold(record[2], Long.valueOf(record[3]), Integer.parseInt(record[4]), Instant.ofEpochMilli(Long.parseLong(record[5]))));
+                break;
+            case "C":
+                StockHold hold = holds.remove(record[2]);
+                if (hold != null && seq > after) {
+                    pending.merge(hold.getBookId(), -hold.getQuantity(), Integer::sum);
+                }
+                break;
+            case "X":
+                holds.remove(record[2]);
+                break;
+            case "D":
+                if (seq > after) {
+                    pending.merge(Long.valueOf(record[2]), Integer.parseInt(record[3]), Integer::sum);
+                }
+                break;
+            case "Z":
+                pending.remove(Long.valueOf(record[2]));
+                break;
+            default:
+        }
+    }
+
+    private StockHold end(String holdId, String type, ObjIntConsumer<Counter> apply) {
+        snapshotLock.readLock().lock();
+        try {
+            StockHold hold = holds.remove(holdId);
+            if (hold == null) {
+                throw new HoldNotFoundException(holdId);
+            }
+            Counter counter = counters.get(hold.getBookId());
+            try {
+                journal.append(type, holdId);
+            } catch (IOException e) {
+                holds.put(holdId, hold);
+                throw new UncheckedIOException(e);
+            }
+            if (counter != null) {
+                counter.held.addAndGet(-hold.getQuantity());
+                apply.accept(counter, hold.getQuantity());
+            }
+            return hold;
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    private <T> T change(Long bookId, Function<Counter, T> change) {
+        Counter counter = counter(bookId);
+        snapshotLock.readLock().lock();
+        try {
+            //deleted while it was being loaded
+            if (counter.deleted) {
+                throw new BookNotFoundException(bookId);
+            }
+            return change.apply(counter);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    //compare-and-set, so that concurrent sales of a book never take more than there is
+    private static int take(Counter counter, Long bookId, int quantity) {
+        while (true) {
+            int available = counter.available.get();
+            if (available < quantity) {
+                throw new StockConflictException("insufficient stock for book " + bookId + ": " + quantity + " requested, " + available + " available");
+            }
+            if (counter.available.compareAndSet(available, available - quantity)) {
+                return available - quantity;
+            }
+        }
+    }
+
+    private void record(Counter counter, Long bookId, int delta, Runnable undo) {
+        try {
+            journal.append("D", bookId, delta);
+        } catch (IOException e) {
+            undo.run();
+            throw new UncheckedIOException(e);
+        }
+        counter.pending.addAndGet(delta);
+    }
+
+    //read outside the map, so that no bin of it stays locked during the read, and only added when no
+    //reset or deletion came in meanwhile, one that found no counter leaving the read possibly stale
+    private Counter counter(Long bookId) {
+        Counter counter = counters.get(bookId);
+        while (counter == null) {
+            long seen = resets.get();
+            Counter loaded = load(bookId);
+            snapshotLock.readLock().lock();
+            try {
+                counter = resets.get() == seen ? Objects.requireNonNullElse(counters.putIfAbsent(bookId, loaded), loaded) : counters.get(bookId);
+            } finally {
+                snapshotLock.readLock().unlock();
+            }
+        }
+        return counter;
+    }
+
+    private Counter load(Long bookId) {
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            Book book = entityManager.find(Book.class, bookId);
+            if (book == null) {
+                throw new BookNotFoundException(bookId);
+            }
+            return new Counter(book.getStockLevel(), stockable(book));
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    private static boolean stockable(Book book) {
+        return book.getPrice() != null && book.getPublishedDate() != null;
+    }
+
+    private static class Counter {
+        final AtomicInteger available;
+        final AtomicInteger held = new AtomicInteger();
+        //the change not yet flushed
+        final AtomicInteger pending = new AtomicInteger();
+        volatile boolean stockable;
+        volatile boolean deleted;
+
+        Counter(int stockLevel, boolean stockable) {
+            this.available = new AtomicInteger(stockLevel);
+            this.stockable = stockable;
+        }
+    }
+}
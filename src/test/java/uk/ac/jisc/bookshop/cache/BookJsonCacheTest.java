@@ -0,0 +1,100 @@
+package uk.ac.jisc.bookshop.cache;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import uk.ac.jisc.bookshop.domain.Book;
+import uk.ac.jisc.bookshop.domain.Category;
+import uk.ac.jisc.bookshop.domain.Format;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.Month;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+public class BookJsonCacheTest {
+
+    private BookJsonCache cache;
+    private ObjectMapper plain;
+    private ObjectMapper cached;
+
+    @BeforeEach
+    public void setup() {
+        cache = new BookJsonCache(new SimpleMeterRegistry(), 1 << 20);
+        plain = Jackson2ObjectMapperBuilder.json().build();
+        Jackson2ObjectMapperBuilder builder = Jackson2ObjectMapperBuilder.json();
+        cache.customize(builder);
+        cached = builder.build();
+    }
+
+    @Test
+    public void testCachedJsonIsTheSameAsSerialisedJson() throws Exception {
+        //GIVEN a book and a list holding it
+        Book book = book(1L, "coreJava");
+        List<Book> books = List.of(book, book(2L, "coreJava2"));
+        //WHEN both are written twice through the cache
+        byte[] first = cached.writeValueAsBytes(books);
+        byte[] second = cached.writeValueAsBytes(books);
+        //THEN the json is the one written without it
+        assertThat(new String(first, StandardCharsets.UTF_8), is(plain.writeValueAsString(books)));
+        assertThat(new String(second, StandardCharsets.UTF_8), is(plain.writeValueAsString(books)));
+        assertThat(new String(cached.writeValueAsBytes(book), StandardCharsets.UTF_8), is(plain.writeValueAsString(book)));
+        //AND each book is cached
+        assertThat(cache.size(), is(2L));
+        assertThat(cache.contains(book), is(true));
+    }
+
+    @Test
+    public void testAnEntryOnlyServesItsVersion() throws Exception {
+        //GIVEN a cached book
+        Book book = book(1L, "coreJava");
+        cached.writeValueAsBytes(book);
+        //WHEN it is written at its next version
+        book.setTitle("coreJava 2nd edition");
+        book.setVersion(1);
+        //THEN the cached json is not used
+        assertThat(cache.contains(book), is(false));
+        assertThat(new String(cached.writeValueAsBytes(book), StandardCharsets.UTF_8), is(plain.writeValueAsString(book)));
+        //AND invalidating drops it
+        cache.invalidate(book.getId());
+        assertThat(cache.contains(book), is(false));
+        //AND a book without id is never cached
+        cached.writeValueAsBytes(book(null, "draft"));
+        assertThat(cache.size(), is(0L));
+    }
+
+    @Test
+    public void testEachWayOfSerialisingABookIsCachedApart() throws Exception {
+        //GIVEN a cached book
+        Book book = book(1L, "coreJava");
+        cached.writeValueAsBytes(book);
+        //WHEN it is written through a property leaving out its title, and as characters
+        String shelved = cached.writeValueAsString(new Shelf(book));
+        String text = cached.writeValueAsString(book);
+        //THEN the property gets the json it asks for rather than the cached one
+        assertThat(shelved, is(plain.writeValueAsString(new Shelf(book))));
+        assertThat(shelved, not(containsString("coreJava")));
+        //AND the characters are the cached json
+        assertThat(text, is(plain.writeValueAsString(book)));
+        assertThat(cache.size(), is(1L));
+    }
+
+    public record Shelf(@JsonIgnoreProperties("title") Book book) {
+    }
+
+    private static Book book(Long id, String title) {
+        Book book = new Book(title, "Cay S. Horstmann", Format.PAPER, BigDecimal.valueOf(50.5),
+                Category.NON_FICTION, LocalDate.of(2000, Month.NOVEMBER, 12), "978-0-596-52068-7", 3);
+        book.setId(id);
+        return book;
+    }
+}
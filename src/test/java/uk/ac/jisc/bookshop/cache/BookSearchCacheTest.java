@@ -0,0 +1,155 @@
+package uk.ac.jisc.bookshop.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Sort;
+import uk.ac.jisc.bookshop.domain.Book;
+import uk.ac.jisc.bookshop.domain.Category;
+import uk.ac.jisc.bookshop.domain.Format;
+import uk.ac.jisc.bookshop.nondomain.BookSearchArgument;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.Month;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class BookSearchCacheTest {
+
+    private SimpleMeterRegistry registry;
+    private BookSearchCache cache;
+    private AtomicInteger searches;
+
+    @BeforeEach
+    public void setup() {
+        registry = new SimpleMeterRegistry();
+        cache = new BookSearchCache(registry, 100, Duration.ofMinutes(1));
+        searches = new AtomicInteger();
+    }
+
+    @Test
+    public void testEquivalentArgumentsShareAnEntry() {
+        //GIVEN two searches differing only in case and in the order of the selected formats
+        BookSearchArgument first = argument("java", List.of(Format.PAPER, Format.KINDLE));
+        BookSearchArgument second = argument("JAVA", List.of(Format.KINDLE, Format.PAPER));
+        //WHEN both go through the cache
+        cache.get(first, this::search);
+        cache.get(second, this::search);
+        //THEN the database is searched once and the hit is recorded
+        assertThat(searches.get(), is(1));
+        assertThat(registry.get(BookSearchCache.NAME + ".hit.ratio").gauge().value(), is(0.5));
+    }
+
+    @Test
+    public void testTrailingIdOrderAsBuiltByTheControllerSharesAnEntry() {
+        //GIVEN a search sorted by sort=title;desc and the same one sorted by sort=title;desc&sort=id;asc,
+        //both orders ignoring case as the controller builds them
+        BookSearchArgument first = argument("java", null);
+        BookSearchArgument second = argument("java", null);
+        second.setSorts(Sort.by(Sort.Order.desc("title").ignoreCase(), Sort.Order.asc("id").ignoreCase()));
+        //WHEN both go through the cache
+        cache.get(first, this::search);
+        cache.get(second, this::search);
+        //THEN the database is searched once
+        assertThat(searches.get(), is(1));
+        assertThat(cache.size(), is(1L));
+    }
+
+    @Test
+    public void testWriteOnlyInvalidatesMatchingSearches() {
+        //GIVEN a cached search on java books and another on python books
+        cache.get(argument("java", null), this::search);
+        cache.get(argument("python", null), this::search);
+        Book before = book("coreJava");
+        Book after = book("coreJava");
+        after.setStockLevel(0);
+        //WHEN a java book is updated
+        cache.invalidate(before, after);
+        cache.get(argument("java", null), this::search);
+        cache.get(argument("python", null), this::search);
+        //THEN only the java search is run again
+        assertThat(searches.get(), is(3));
+        assertThat(cache.size(), is(2L));
+    }
+
+    @Test
+    public void testRenameInvalidatesTheSearchTheBookMovesInto() {
+        //GIVEN a cached search on python books
+        cache.get(argument("python", null), this::search);
+        //WHEN a java book is renamed to a python one
+        cache.invalidate(book("coreJava"), book("corePython"));
+        cache.get(argument("python", null), this::search);
+        //THEN the python search is run again
+        assertThat(searches.get(), is(2));
+    }
+
+    @Test
+    public void testSearchRacingWithAWriteIsCheckedAgainstIt() {
+        //GIVEN a java search during which a java book is updated
+        cache.get(argument("java", null), () -> {
+            cache.invalidate(book("coreJava"), book("coreJava"));
+            return search();
+        });
+        //WHEN the search is read again
+        cache.get(argument("java", null), this::search);
+        //THEN it is run again, as what it stored may predate the write
+        assertThat(searches.get(), is(2));
+    }
+
+    @Test
+    public void testEntryOlderThanTheLoggedWritesMisses() {
+        //GIVEN a cached java search followed by more unrelated writes than are logged
+        cache.get(argument("java", null), this::search);
+        for (int i = 0; i < 300; i++) {
+            cache.invalidate(book("corePython"), book("corePython"));
+        }
+        //WHEN the search is read again
+        cache.get(argument("java", null), this::search);
+        //THEN it is run again and the catalog generation counts every write
+        assertThat(searches.get(), is(2));
+        assertThat(cache.getGeneration(), is(300L));
+    }
+
+    @Test
+    public void testStockChangeOnlyInvalidatesSearchesShowingTheBookOrOrderedByStock() {
+        //GIVEN a cached java search showing book 1, a python search without it and a search ordered by stock level
+        cache.get(argument("java", null), () -> List.of(book("coreJava")));
+        cache.get(argument("python", null), this::search);
+        BookSearchArgument byStock = argument("python", List.of(Format.PAPER));
+        byStock.setSorts(Sort.by(Sort.Order.asc("stockLevel")));
+        cache.get(byStock, this::search);
+        //WHEN the stock level of book 1 changes
+        cache.invalidateStock(1L);
+        cache.get(argument("java", null), this::search);
+        cache.get(argument("python", null), this::search);
+        cache.get(byStock, this::search);
+        //THEN the java search and the one ordered by stock are run again
+        assertThat(searches.get(), is(4));
+    }
+
+    private List<Book> search() {
+        searches.incrementAndGet();
+        return List.of();
+    }
+
+    private static BookSearchArgument argument(String title, List<Format> formats) {
+        BookSearchArgument argument = new BookSearchArgument();
+        argument.setTitle(title);
+        argument.setFormats(formats);
+        argument.setSize(10);
+        argument.setSorts(Sort.by(Sort.Order.desc("title").ignoreCase()));
+        return argument;
+    }
+
+    private static Book book(String title) {
+        Book book = new Book(title, "Cay S. Horstmann", Format.PAPER, new BigDecimal("50.00"), Category.NON_FICTION,
+                LocalDate.of(2000, Month.NOVEMBER, 12), "978-0-596-52068-7", 5);
+        book.setId(1L);
+        return book;
+    }
+}
@@ -413,6 +413,61 @@ public class BookStoreControllerAnnotationValidationTest {
                 andExpect(MockMvcResultMatchers.jsonPath("$.['getBooks.priceEnd']", is("must be greater than or equal to 0")));
     }
 
+    @Test
+    public void testAnnotationValidationWithNegativePriceForSearchBatch() throws Exception {
+        //WHEN a restful call to the batch search method whose second search has a negative priceStart
+        //THEN the response status is 400
+        //AND response body contains error message for the priceStart of that search
+        mockMvc.perform(MockMvcRequestBuilders.post("/search/batch")
+                        .content("[{\"title\": \"java\"}, {\"priceStart\": -1}]")
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.['searchBatch.queries[1].priceStart']", is("must be greater than or equal to 0")));
+    }
+
+    @Test
+    public void testAnnotationValidationWithUnpagedAndOversizedSearchBatch() throws Exception {
+        //WHEN a restful call to the batch search method whose searches ask for no page size and a page too big
+        //THEN the response status is 400
+        //AND response body contains error message for the size of each search
+        mockMvc.perform(MockMvcRequestBuilders.post("/search/batch")
+                        .content("[{\"title\": \"java\", \"size\": 0}, {\"size\": 1001}]")
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.['searchBatch.queries[0].size']", is("must be greater than or equal to 1")))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.['searchBatch.queries[1].size']", is("must be less than or equal to 1000")));
+    }
+
+    @Test
+    public void testAnnotationValidationWithNullIdForBooksByIds() throws Exception {
+        //WHEN a restful call to the lookup by ids with a null id in the body
+        //THEN the response status is 400
+        mockMvc.perform(MockMvcRequestBuilders.post("/books/ids")
+                        .content("[1, null]")
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+    @Test
+    public void testAnnotationValidationWithEmptySearchBatch() throws Exception {
+        //WHEN a restful call to the batch search method without any search
+        //THEN the response status is 400
+        mockMvc.perform(MockMvcRequestBuilders.post("/search/batch")
+                        .content("[]")
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+    @Test
+    public void testAnnotationValidationWithZeroStockDecrement() throws Exception {
+        //WHEN a restful call to the stock decrement method taking nothing away
+        //THEN the response status is 400
+        //AND response body contains error message
+        mockMvc.perform(MockMvcRequestBuilders.post("/book/1/stock/decrement").param("by", "0"))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.['decrementStock.by']", is("must be greater than or equal to 1")));
+    }
+
 
 
 }
@@ -11,23 +11,53 @@ import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMock
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+import org.springframework.test.util.ReflectionTestUtils;
+import uk.ac.jisc.bookshop.Exception.ExportNotFoundException;
+import uk.ac.jisc.bookshop.Exception.HoldNotFoundException;
+import uk.ac.jisc.bookshop.Exception.StockConflictException;
 import uk.ac.jisc.bookshop.dao.BookRepository;
 import uk.ac.jisc.bookshop.domain.Book;
 import uk.ac.jisc.bookshop.domain.Category;
 import uk.ac.jisc.bookshop.domain.Format;
+import uk.ac.jisc.bookshop.nondomain.BookField;
+import uk.ac.jisc.bookshop.nondomain.BookLookup;
+import uk.ac.jisc.bookshop.nondomain.BookRow;
 import uk.ac.jisc.bookshop.nondomain.BookSearchArgument;
+import uk.ac.jisc.bookshop.nondomain.BulkResult;
+import uk.ac.jisc.bookshop.nondomain.ExportFormat;
+import uk.ac.jisc.bookshop.nondomain.ExportManifest;
+import uk.ac.jisc.bookshop.nondomain.ImportFormat;
+import uk.ac.jisc.bookshop.nondomain.ImportProgress;
+import uk.ac.jisc.bookshop.nondomain.CountMode;
+import uk.ac.jisc.bookshop.nondomain.SearchCursor;
+import uk.ac.jisc.bookshop.nondomain.SearchFacets;
+import uk.ac.jisc.bookshop.nondomain.SearchResult;
+import uk.ac.jisc.bookshop.nondomain.StockHold;
+import uk.ac.jisc.bookshop.nondomain.StockLevel;
+import uk.ac.jisc.bookshop.nondomain.SuggestField;
+import uk.ac.jisc.bookshop.service.BookBulkService;
+import uk.ac.jisc.bookshop.service.BookExportService;
+import uk.ac.jisc.bookshop.service.BookImportService;
 import uk.ac.jisc.bookshop.service.BookRepositoryService;
+import uk.ac.jisc.bookshop.stock.StockReservationEngine;
 
 import java.math.BigDecimal;
 import java.nio.charset.Charset;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.Month;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
@@ -49,6 +79,15 @@ public class BookStoreControllerTest {
     @MockBean
     private BookRepositoryService bookRepositoryService;
 
+    @MockBean
+    private BookBulkService bookBulkService;
+
+    @MockBean
+    private BookImportService bookImportService;
+
+    @MockBean
+    private BookExportService bookExportService;
+
     @Autowired
     private BookStoreController bookStoreController;
 
@@ -57,6 +96,8 @@ public class BookStoreControllerTest {
 
     @Captor
     ArgumentCaptor<BookSearchArgument> bookSearchArgumentCaptor;
+    @Captor
+    ArgumentCaptor<List<BookSearchArgument>> bookSearchArgumentsCaptor;
     /*
     test post method
      */
@@ -451,6 +492,22 @@ public class BookStoreControllerTest {
         ));
     }
 
+    @Test
+    public void testSearchBookWithFuzzy() throws Exception {
+        //GIVEN there are some books in database
+        Mockito.when(bookRepositoryService.findBookBySearchArgument(any(BookSearchArgument.class))).thenReturn(List.of());
+        //WHEN there is a restful request to call the search method with fuzzy=true
+        mockMvc.perform(MockMvcRequestBuilders.get("/search")
+                .param("title","harry poter")
+                .param("fuzzy","true"))
+                .andExpect(MockMvcResultMatchers.status().isOk());
+        //THEN the search argument asks for typo tolerant matching
+        verify(bookRepositoryService).findBookBySearchArgument(bookSearchArgumentCaptor.capture());
+        BookSearchArgument value = bookSearchArgumentCaptor.getValue();
+        assertThat(value.getTitle(),is("harry poter"));
+        assertThat(value.isFuzzy(),is(true));
+    }
+
     @Test
     public void testSearchBookWithDefaultParameters() throws Exception {
         //GIVEN  there are some books in database
@@ -478,4 +535,466 @@ public class BookStoreControllerTest {
                 new Sort.Order(Sort.Direction.DESC,"title").ignoreCase()
         ));
     }
+
+    @Test
+    public void testSearchBookReturnsNextCursorForFullPage() throws Exception {
+        //GIVEN  the first page of a search is full
+        Book book = new Book("coreJava17", "G.Cornell",Format.KINDLE, BigDecimal.valueOf( 100.00).setScale(2),
+                Category.NON_FICTION,LocalDate.of(2023,Month.JANUARY,31), "978-0-195-10519-3",10);
+        book.setId(3L);
+        Mockito.when(bookRepositoryService.findBookBySearchArgument(any(BookSearchArgument.class))).thenReturn(List.of(book));
+        //WHEN the client searches with page size 1
+        String cursor = mockMvc.perform(MockMvcRequestBuilders.get("/search").param("size","1"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().exists(BookStoreController.NEXT_CURSOR_HEADER))
+                .andReturn().getResponse().getHeader(BookStoreController.NEXT_CURSOR_HEADER);
+        //AND follows the returned cursor
+        mockMvc.perform(MockMvcRequestBuilders.get("/search").param("size","1").param("cursor",cursor))
+                .andExpect(MockMvcResultMatchers.status().isOk());
+        //THEN the second search seeks after the last book of the first page
+        verify(bookRepositoryService, Mockito.times(2)).findBookBySearchArgument(bookSearchArgumentCaptor.capture());
+        assertThat(bookSearchArgumentCaptor.getValue().getCursor().getId(), is(3L));
+    }
+
+    @Test
+    public void testSearchBookWithCursorOfAnotherSortFailed() throws Exception {
+        //GIVEN a cursor issued for a search sorted by title
+        Book book = new Book("coreJava17", "G.Cornell",Format.KINDLE, BigDecimal.valueOf( 100.00).setScale(2),
+                Category.NON_FICTION,LocalDate.of(2023,Month.JANUARY,31), "978-0-195-10519-3",10);
+        book.setId(3L);
+        String cursor = SearchCursor.after(book, Sort.by(Sort.Direction.DESC, "title")).encode();
+        //WHEN the cursor is used with a search sorted by price
+        //THEN the response status is 400 bad request
+        mockMvc.perform(MockMvcRequestBuilders.get("/search").param("sort","price;asc").param("cursor",cursor))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+    @Test
+    public void testSearchBookSortedByRelevanceIsPagedWithoutCursor() throws Exception {
+        //GIVEN  the first page of a search sorted by relevance is full
+        Book book = new Book("coreJava17", "G.Cornell",Format.KINDLE, BigDecimal.valueOf( 100.00).setScale(2),
+                Category.NON_FICTION,LocalDate.of(2023,Month.JANUARY,31), "978-0-195-10519-3",10);
+        book.setId(3L);
+        Mockito.when(bookRepositoryService.findBookBySearchArgument(any(BookSearchArgument.class))).thenReturn(List.of(book));
+        //WHEN the client searches by relevance without a direction
+        //THEN no cursor is returned
+        mockMvc.perform(MockMvcRequestBuilders.get("/search").param("title","java").param("sort","relevance").param("size","1"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().doesNotExist(BookStoreController.NEXT_CURSOR_HEADER));
+        verify(bookRepositoryService).findBookBySearchArgument(bookSearchArgumentCaptor.capture());
+        assertThat(bookSearchArgumentCaptor.getValue().isRelevanceSorted(), is(true));
+        //AND a cursor sent along with a relevance sort is rejected with 400 bad request
+        String cursor = SearchCursor.after(book, Sort.by(Sort.Direction.DESC, "title")).encode();
+        mockMvc.perform(MockMvcRequestBuilders.get("/search").param("sort","relevance").param("cursor",cursor))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+    @Test
+    public void testSearchBookWithCountReturnsEnvelope() throws Exception {
+        //GIVEN  a search page with a next page and an exact total
+        Book book = new Book("coreJava17", "G.Cornell",Format.KINDLE, BigDecimal.valueOf( 100.00).setScale(2),
+                Category.NON_FICTION,LocalDate.of(2023,Month.JANUARY,31), "978-0-195-10519-3",10);
+        Mockito.when(bookRepositoryService.searchSlice(any(BookSearchArgument.class), eq(CountMode.EXACT)))
+                .thenReturn(new SearchResult<>(List.of(book), 0, 1, true, "next", 7L, true));
+        //WHEN the client searches with an exact count
+        //THEN the response wraps the page with the paging information
+        mockMvc.perform(MockMvcRequestBuilders.get("/search").param("size","1").param("count","exact"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.content[0].title", is(book.getTitle())))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.hasNext", is(true)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.nextCursor", is("next")))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.total", is(7)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.totalExact", is(true)));
+        //AND the plain list search has not been used
+        verify(bookRepositoryService, Mockito.never()).findBookBySearchArgument(any(BookSearchArgument.class));
+    }
+
+    @Test
+    public void testStreamBooksAsNdjson() throws Exception {
+        //GIVEN a catalog of two books
+        mockStreamedCatalog();
+        //WHEN the client asks for newline delimited json
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/books").accept(BookStoreController.APPLICATION_NDJSON))
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+        //THEN each book is written on its own line
+        String body = mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.content().contentType(BookStoreController.APPLICATION_NDJSON))
+                .andReturn().getResponse().getContentAsString();
+        String[] lines = body.split("\n");
+        assertThat(lines.length, is(2));
+        assertThat(new ObjectMapper().readTree(lines[1]).get("title").asText(), is("corePython"));
+    }
+
+    @Test
+    public void testStreamBooksAsJsonArray() throws Exception {
+        //GIVEN a catalog of two books
+        mockStreamedCatalog();
+        //WHEN the client asks for json
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/books").accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+        //THEN the books are written as one json array
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.length()", is(2)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0].title", is("coreJava")));
+    }
+
+    @Test
+    public void testStreamBooksIsCutShortAfterGoingIdle() throws Exception {
+        //GIVEN a catalog of two books, the second coming long after the first
+        mockStreamedCatalog(Duration.ofMillis(500));
+        //AND a stream idle timeout shorter than that pause
+        ReflectionTestUtils.setField(bookStoreController, "streamIdleTimeout", Duration.ofMillis(200));
+        try {
+            //WHEN the client asks for json
+            MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/books").accept(MediaType.APPLICATION_JSON))
+                    .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                    .andReturn();
+            //THEN the async request timeout is left off for the stream
+            assertThat(result.getRequest().getAsyncContext().getTimeout(), is(-1L));
+            //AND the stream stops after the first book and its array is left open
+            String body = mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result))
+                    .andReturn().getResponse().getContentAsString();
+            assertThat(body.contains("coreJava"), is(true));
+            assertThat(body.contains("corePython"), is(false));
+            assertThat(body.contains("]"), is(false));
+        } finally {
+            ReflectionTestUtils.setField(bookStoreController, "streamIdleTimeout", Duration.ofMinutes(1));
+        }
+    }
+
+    @Test
+    public void testStreamBooksWithAMalformedAcceptHeaderIsWrittenAsJson() throws Exception {
+        //GIVEN a catalog of two books
+        mockStreamedCatalog();
+        //WHEN the client sends an Accept header that is not a media type
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/books").header(HttpHeaders.ACCEPT, "not a media type"))
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+        //THEN the books are written as one json array rather than failing the request
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.length()", is(2)));
+    }
+
+    private void mockStreamedCatalog() {
+        mockStreamedCatalog(Duration.ZERO);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void mockStreamedCatalog(Duration pause) {
+        Book book1 = new Book("coreJava", "Cay S. Horstmann", Format.PAPER, BigDecimal.valueOf( 50.00).setScale(2),
+                Category.NON_FICTION, LocalDate.of(2000, Month.NOVEMBER,12), "978-0-596-52068-7",3);
+        Book book2 = new Book("corePython", "Wesley J Chun",Format.AUDIO, BigDecimal.valueOf( 100.00).setScale(2),
+                Category.NON_FICTION,LocalDate.of(2015,Month.DECEMBER,30), "978-0-132-26993-3",5);
+        Mockito.doAnswer(invocation -> {
+            Consumer<Book> consumer = invocation.getArgument(0);
+            consumer.accept(book1);
+            Thread.sleep(pause.toMillis());
+            consumer.accept(book2);
+            return null;
+        }).when(bookRepositoryService).streamCatalog(any(Consumer.class));
+    }
+
+    @Test
+    public void testSearchBookWithFieldsReturnsOnlyThoseFields() throws Exception {
+        //GIVEN a search page read as rows of id, title and price
+        Map<String, Object> values = new HashMap<>();
+        values.put("id", 3L);
+        values.put("title", "coreJava17");
+        values.put("price", new BigDecimal("100"));
+        values.put("author", "G.Cornell");
+        Mockito.when(bookRepositoryService.findBookRowsBySearchArgument(any(BookSearchArgument.class)))
+                .thenReturn(List.of(new BookRow(values, List.of(BookField.TITLE, BookField.PRICE))));
+        //WHEN the client searches with fields=title,price
+        //THEN only those fields are written, in the book formats
+        mockMvc.perform(MockMvcRequestBuilders.get("/search").param("fields","title,price"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0].title", is("coreJava17")))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0].price", is("100.00")))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0].author").doesNotExist());
+        //AND the projection is passed down with the argument
+        verify(bookRepositoryService).findBookRowsBySearchArgument(bookSearchArgumentCaptor.capture());
+        assertThat(bookSearchArgumentCaptor.getValue().getFields(), is(List.of(BookField.TITLE, BookField.PRICE)));
+    }
+
+    @Test
+    public void testSearchBookWithUnknownFieldFailed() throws Exception {
+        //WHEN the client asks for a field a book does not have
+        //THEN the response status is 400 bad request
+        mockMvc.perform(MockMvcRequestBuilders.get("/search2").param("fields","title,password"))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+    @Test
+    public void testSuggestAuthors() throws Exception {
+        //GIVEN authors starting with "g"
+        Mockito.when(bookRepositoryService.suggest(SuggestField.AUTHOR, "g", 5)).thenReturn(List.of("Gary Cornell", "G.Cornell"));
+        //WHEN the client asks for 5 author suggestions
+        //THEN the completions are returned in order
+        mockMvc.perform(MockMvcRequestBuilders.get("/suggest").param("prefix","g").param("field","author").param("limit","5"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0]", is("Gary Cornell")))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[1]", is("G.Cornell")));
+    }
+
+    @Test
+    public void testSuggestWithUnknownFieldFailed() throws Exception {
+        //WHEN the client asks for suggestions on a field that is not completed
+        //THEN the response status is 400 bad request
+        mockMvc.perform(MockMvcRequestBuilders.get("/suggest").param("prefix","g").param("field","isbn"))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+    @Test
+    public void testSearchFacets() throws Exception {
+        //GIVEN one fiction paper book of 15 from 2011 matching the filters
+        SearchFacets facets = new SearchFacets(List.of(BigDecimal.TEN, BigDecimal.valueOf(20)));
+        facets.add(Format.PAPER, Category.FICTION, 1, 2011, 1);
+        Mockito.when(bookRepositoryService.facets(any())).thenReturn(facets);
+        //WHEN the client asks for the facets of fiction books
+        //THEN every value and band is counted, with open bands left unbounded
+        mockMvc.perform(MockMvcRequestBuilders.get("/search/facets").param("category","fiction").param("fuzzy","true"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.total", is(1)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.formats.paper", is(1)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.formats.kindle", is(0)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.categories.fiction", is(1)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.prices[0].from").doesNotExist())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.prices[1].from", is(10)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.prices[1].count", is(1)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.prices[2].to").doesNotExist())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.years.2011", is(1)));
+        //AND the filters are passed on without paging
+        verify(bookRepositoryService).facets(bookSearchArgumentCaptor.capture());
+        assertThat(bookSearchArgumentCaptor.getValue().getCategories(), is(List.of(Category.FICTION)));
+        assertThat(bookSearchArgumentCaptor.getValue().isFuzzy(), is(true));
+    }
+
+    @Test
+    public void testSearchBookSortedByUnsortablePropertyFailed() throws Exception {
+        //WHEN the client sorts by a property without a precomputed order
+        //THEN the response status is 400 bad request
+        mockMvc.perform(MockMvcRequestBuilders.get("/search").param("sort","isbn;asc"))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest())
+                .andExpect(MockMvcResultMatchers.content().string(Matchers.containsString("cannot sort by isbn")));
+    }
+
+    @Test
+    public void testSearchBatch() throws Exception {
+        //GIVEN the books of two shelves
+        Book audio = new Book("corePython", "Wesley J Chun", Format.AUDIO, BigDecimal.valueOf(9), Category.NON_FICTION, LocalDate.of(2015, Month.DECEMBER, 30), "978-0-132-26993-3", 5);
+        Book fiction = new Book("harryPotter", "J.K.Rowling", Format.PAPER, BigDecimal.valueOf(20), Category.FICTION, LocalDate.of(2011, Month.DECEMBER, 30), "978-140-889-076-9", 5);
+        Mockito.when(bookRepositoryService.findBooksBySearchArguments(any())).thenReturn(List.of(List.of(audio), List.of(fiction)));
+        //WHEN the client asks for audio books under 10 and the newest fiction in one request
+        //THEN the books of each search are returned in turn
+        mockMvc.perform(MockMvcRequestBuilders.post("/search/batch")
+                        .content("[{\"format\": [\"audio\"], \"priceEnd\": 10, \"size\": 8},"
+                                + " {\"category\": [\"fiction\"], \"sort\": [\"publishedDate;desc\"]}]")
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0][0].title", is("corePython")))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[1][0].title", is("harryPotter")));
+        //AND each search gets the parameters and defaults of /search
+        verify(bookRepositoryService).findBooksBySearchArguments(bookSearchArgumentsCaptor.capture());
+        BookSearchArgument shelf = bookSearchArgumentsCaptor.getValue().get(0);
+        assertThat(shelf.getFormats(), is(List.of(Format.AUDIO)));
+        assertThat(shelf.getPriceTo(), is(BigDecimal.TEN));
+        assertThat(shelf.getSize(), is(8));
+        assertThat(shelf.getSorts(), is(Sort.by(new Sort.Order(Sort.Direction.DESC, "title").ignoreCase())));
+        BookSearchArgument newest = bookSearchArgumentsCaptor.getValue().get(1);
+        assertThat(newest.getCategories(), is(List.of(Category.FICTION)));
+        assertThat(newest.getSize(), is(10));
+        assertThat(newest.getSorts(), is(Sort.by(new Sort.Order(Sort.Direction.DESC, "publishedDate").ignoreCase())));
+    }
+
+    @Test
+    public void testSearchBatchSortedByUnsortablePropertyFailed() throws Exception {
+        //WHEN one search of the batch sorts by a property without a precomputed order
+        //THEN the response status is 400 bad request
+        mockMvc.perform(MockMvcRequestBuilders.post("/search/batch")
+                        .content("[{\"title\": \"java\"}, {\"sort\": [\"isbn;asc\"]}]")
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+    @Test
+    public void testGetBooksByIds() throws Exception {
+        //GIVEN book 2 exists and book 7 does not
+        Book book = new Book("coreJava2", "Gary Cornell", Format.HARDBACK, BigDecimal.valueOf(1000), Category.NON_FICTION, LocalDate.of(2021, Month.JANUARY, 31), "506-3-089-12512-0", 23);
+        book.setId(2L);
+        Mockito.when(bookRepositoryService.findBooksByIds(List.of(7L, 2L))).thenReturn(new BookLookup(List.of(book), List.of(7L)));
+        //WHEN the client asks for both ids, in the url or in the body
+        //THEN the book is returned and the missing id reported, without a not found status
+        mockMvc.perform(MockMvcRequestBuilders.get("/books").param("ids","7,2"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.books[0].id", is(2)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.missing[0]", is(7)));
+        mockMvc.perform(MockMvcRequestBuilders.post("/books/ids").content("[7, 2]").contentType(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.books[0].title", is("coreJava2")))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.missing[0]", is(7)));
+    }
+
+    @Test
+    public void testAddBooksInBulk() throws Exception {
+        //GIVEN the second of two books is rejected
+        BulkResult result = new BulkResult();
+        result.addSaved(1);
+        result.addFailure(1, Map.of("title", "title is mandatory"));
+        Mockito.when(bookBulkService.saveAll(Mockito.anyList())).thenReturn(result);
+        //WHEN the client posts both
+        //THEN the request succeeds, counting the saved book and telling why the other was not
+        mockMvc.perform(MockMvcRequestBuilders.post("/books/bulk")
+                        .content("[{\"title\":\"coreJava\",\"author\":\"Cay S. Horstmann\"},{\"author\":\"Gary Cornell\"}]")
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.saved", is(1)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.failed", is(1)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.failures[0].index", is(1)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.failures[0].errors.title", is("title is mandatory")));
+        //AND an empty request is refused before reaching the service
+        mockMvc.perform(MockMvcRequestBuilders.post("/books/bulk").content("[]").contentType(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+        Mockito.verify(bookBulkService, Mockito.times(1)).saveAll(Mockito.anyList());
+    }
+
+    @Test
+    public void testImportBooksFromRequestBody() throws Exception {
+        //GIVEN a csv import that saves one book and rejects line 3
+        ImportProgress progress = new ImportProgress("request", ImportFormat.CSV, 10);
+        progress.addRowsRead(2);
+        BulkResult chunk = new BulkResult();
+        chunk.addSaved(1);
+        chunk.addFailure(3, Map.of("book", "Unknown enum type vinyl"));
+        progress.add(chunk);
+        progress.finish();
+        Mockito.when(bookImportService.importStream(Mockito.any(), Mockito.eq(ImportFormat.CSV))).thenReturn(progress);
+        //WHEN the client posts a csv body
+        //THEN the import is read as csv and its outcome returned
+        mockMvc.perform(MockMvcRequestBuilders.post("/books/import").content("title,author\ncoreJava,Cay S. Horstmann\n")
+                        .contentType("text/csv"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.format", is("csv")))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.status", is("done")))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.saved", is(1)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.failures[0].index", is(3)));
+        //AND the progress of an unknown import is not found
+        Mockito.when(bookImportService.progress("unknown")).thenReturn(Optional.empty());
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/import/unknown"))
+                .andExpect(MockMvcResultMatchers.status().isNotFound());
+    }
+
+    @Test
+    public void testExportBooks() throws Exception {
+        //GIVEN a csv export started
+        ExportManifest manifest = new ExportManifest("2f1c3f0e-2b0e-4f0e-9a55-3c2b7d1a0c11", ExportFormat.CSV, 100000);
+        Mockito.when(bookExportService.startExport(ExportFormat.CSV)).thenReturn(manifest);
+        Mockito.when(bookExportService.manifest("unknown")).thenThrow(new ExportNotFoundException("unknown"));
+        //WHEN the client asks for a csv export
+        //THEN it is accepted, pointing at its manifest
+        mockMvc.perform(MockMvcRequestBuilders.post("/books/export").param("format", "csv"))
+                .andExpect(MockMvcResultMatchers.status().isAccepted())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.LOCATION, "/books/export/" + manifest.getId()))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.format", is("csv")))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.status", is("running")));
+        //AND an unknown export is not found
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/export/unknown/chunks/0"))
+                .andExpect(MockMvcResultMatchers.status().isNotFound());
+    }
+
+    @Test
+    public void testDecrementStock() throws Exception {
+        //GIVEN book 2 is left with 20 in stock after selling 3
+        StockLevel level = new StockLevel(2L, 20);
+        Mockito.when(bookRepositoryService.decrementStock(2L, 3)).thenReturn(level);
+        Mockito.when(bookRepositoryService.decrementStock(2L, 30)).thenThrow(new StockConflictException("insufficient stock for book 2: 30 requested, 20 available"));
+        //WHEN the client sells 3 of it
+        //THEN the new level is returned and the index told about it
+        mockMvc.perform(MockMvcRequestBuilders.post("/book/2/stock/decrement").param("by", "3"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.id", is(2)))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.stockLevel", is(20)));
+        Mockito.verify(bookRepositoryService, Mockito.times(1)).afterStockChange(level);
+        //AND selling more than is left conflicts
+        mockMvc.perform(MockMvcRequestBuilders.post("/book/2/stock/decrement").param("by", "30"))
+                .andExpect(MockMvcResultMatchers.status().isConflict())
+                .andExpect(MockMvcResultMatchers.content().string("insufficient stock for book 2: 30 requested, 20 available"));
+    }
+
+    @Test
+    public void testHoldStock() throws Exception {
+        //GIVEN reservations are disabled
+        //WHEN the client holds stock
+        //THEN it is told how to enable them
+        mockMvc.perform(MockMvcRequestBuilders.post("/book/2/stock/holds"))
+                .andExpect(MockMvcResultMatchers.status().isNotImplemented())
+                .andExpect(MockMvcResultMatchers.content().string("stock reservations are disabled, set bookshop.stock.reservations.enabled=true"));
+        //GIVEN reservations are enabled
+        StockReservationEngine stockReservations = Mockito.mock(StockReservationEngine.class);
+        StockHold hold = new StockHold("6f0e7a9c-8e3b-4c56-a1f5-3b0c2d9e4f11", 2L, 3, Instant.parse("2026-10-18T10:15:30Z"));
+        Mockito.when(stockReservations.reserve(2L, 3, Duration.ofSeconds(60))).thenReturn(hold);
+        Mockito.when(stockReservations.confirm(hold.getId())).thenReturn(hold);
+        Mockito.when(stockReservations.sell(2L, 1)).thenReturn(new StockLevel(2L, 19));
+        bookStoreController.setStockReservations(stockReservations);
+        try {
+            //WHEN the client holds 3 for a minute
+            //THEN the hold is created with its location
+            mockMvc.perform(MockMvcRequestBuilders.post("/book/2/stock/holds").param("quantity", "3").param("ttl", "60"))
+                    .andExpect(MockMvcResultMatchers.status().isCreated())
+                    .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.LOCATION, "/stock/holds/" + hold.getId()))
+                    .andExpect(MockMvcResultMatchers.jsonPath("$.bookId", is(2)))
+                    .andExpect(MockMvcResultMatchers.jsonPath("$.quantity", is(3)))
+                    .andExpect(MockMvcResultMatchers.jsonPath("$.expiresAt", is("2026-10-18T10:15:30Z")));
+            //AND confirming it answers the hold
+            mockMvc.perform(MockMvcRequestBuilders.post("/stock/holds/" + hold.getId() + "/confirm"))
+                    .andExpect(MockMvcResultMatchers.status().isOk())
+                    .andExpect(MockMvcResultMatchers.jsonPath("$.id", is(hold.getId())));
+            //AND selling goes through the engine rather than the database
+            mockMvc.perform(MockMvcRequestBuilders.post("/book/2/stock/decrement"))
+                    .andExpect(MockMvcResultMatchers.status().isOk())
+                    .andExpect(MockMvcResultMatchers.jsonPath("$.stockLevel", is(19)));
+            Mockito.verify(bookRepositoryService, Mockito.never()).decrementStock(Mockito.anyLong(), Mockito.anyInt());
+            //AND releasing a hold that is gone is not found
+            Mockito.doThrow(new HoldNotFoundException("gone")).when(stockReservations).release("gone");
+            mockMvc.perform(MockMvcRequestBuilders.delete("/stock/holds/gone"))
+                    .andExpect(MockMvcResultMatchers.status().isNotFound());
+        } finally {
+            bookStoreController.setStockReservations(null);
+        }
+    }
+
+    @Test
+    public void testETags() throws Exception {
+        //GIVEN book 2 at version 3
+        Book book = new Book("coreJava2", "Gary Cornell", Format.HARDBACK, BigDecimal.valueOf(1000), Category.NON_FICTION, LocalDate.of(2021, Month.JANUARY, 31), "506-3-089-12512-0", 20);
+        book.setId(2L);
+        book.setVersion(3);
+        when(repository.findById(2L)).thenReturn(Optional.of(book));
+        //WHEN the client reads it
+        //THEN its version is its etag
+        mockMvc.perform(MockMvcRequestBuilders.get("/book/2"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, "\"3\""))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.version").doesNotExist());
+        //AND reading it again with that etag answers 304 without a body
+        mockMvc.perform(MockMvcRequestBuilders.get("/book/2").header(HttpHeaders.IF_NONE_MATCH, "\"3\""))
+                .andExpect(MockMvcResultMatchers.status().isNotModified())
+                .andExpect(MockMvcResultMatchers.content().string(""));
+        //AND replacing it from an older version fails the precondition without saving
+        String requestBody = "{\"title\": \"coreJava2\", \"author\": \"Gary Cornell\", \"stockLevel\": 0}";
+        mockMvc.perform(MockMvcRequestBuilders.put("/book/2").header(HttpHeaders.IF_MATCH, "\"2\"")
+                        .content(requestBody).contentType(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isPreconditionFailed())
+                .andExpect(MockMvcResultMatchers.content().string("book 2 has changed, its etag is now \"3\""));
+        Mockito.verify(repository, Mockito.never()).saveAndFlush(any(Book.class));
+        //AND a listing of the catalog unchanged since the client's copy answers 304 without searching
+        when(bookRepositoryService.catalogETag()).thenReturn("W/\"1700000000000-5\"");
+        mockMvc.perform(MockMvcRequestBuilders.get("/search/facets").header(HttpHeaders.IF_NONE_MATCH, "W/\"1700000000000-5\""))
+                .andExpect(MockMvcResultMatchers.status().isNotModified());
+        Mockito.verify(bookRepositoryService, Mockito.never()).facets(any(BookSearchArgument.class));
+    }
 }
@@ -0,0 +1,37 @@
+package uk.ac.jisc.bookshop.domain;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class IsbnTest {
+
+    @Test
+    public void testHyphenationIsIgnored() {
+        //WHEN the same isbn-13 is written with and without hyphens
+        //THEN both give the same number
+        assertThat(Isbn.toIsbn13("978-161-729-045-9"), is(9781617290459L));
+        assertThat(Isbn.toIsbn13("9781617290459"), is(9781617290459L));
+    }
+
+    @Test
+    public void testIsbn10IsConvertedToIsbn13() {
+        //WHEN an isbn-10 is normalised, including one with an X check digit
+        //THEN it is prefixed with 978 and gets the isbn-13 check digit
+        assertThat(Isbn.toIsbn13("1-61729-045-9"), is(9781617290459L));
+        assertThat(Isbn.toIsbn13("0-8044-2957-x"), is(9780804429573L));
+        assertThat(Isbn.toIsbn13("0-596-52068-9"), is(9780596520687L));
+    }
+
+    @Test
+    public void testIncompleteIsbnIsNotNormalised() {
+        //WHEN the value is partial, has a wrong isbn-10 check digit or is not an isbn
+        //THEN there is no canonical form
+        assertThat(Isbn.toIsbn13("978-0-195"), is(nullValue()));
+        assertThat(Isbn.toIsbn13("1617290451"), is(nullValue()));
+        assertThat(Isbn.toIsbn13("not an isbn"), is(nullValue()));
+        assertThat(Isbn.toIsbn13(null), is(nullValue()));
+    }
+}
@@ -0,0 +1,192 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import uk.ac.jisc.bookshop.domain.Book;
+import uk.ac.jisc.bookshop.domain.Category;
+import uk.ac.jisc.bookshop.domain.Format;
+import uk.ac.jisc.bookshop.nondomain.BookSearchArgument;
+import uk.ac.jisc.bookshop.nondomain.SearchFacets;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.Month;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+
+public class BookCatalogIndexTest {
+
+    private BookCatalogIndex index;
+
+    @BeforeEach
+    public void setup() {
+        index = new BookCatalogIndex();
+        index.rebuild(Stream.of(
+                book(1L, "coreJava", "Cay S. Horstmann", Format.PAPER, "50.00", Category.NON_FICTION, LocalDate.of(2000, Month.NOVEMBER, 12), "978-0-596-52068-7"),
+                book(2L, "coreJava2", "Gary Cornell", Format.HARDBACK, "1000.00", Category.NON_FICTION, LocalDate.of(2021, Month.JANUARY, 31), "506-3-089-12512-0"),
+                book(3L, "coreJava17", "G.Cornell", Format.KINDLE, "100.00", Category.NON_FICTION, LocalDate.of(2023, Month.JANUARY, 31), "978-0-195-10519-3"),
+                book(4L, "corePython", "Wesley J Chun", Format.AUDIO, "100.00", Category.NON_FICTION, LocalDate.of(2015, Month.DECEMBER, 30), "978-0-132-26993-3"),
+                book(5L, "harryPotter", "J.K.Rowling", Format.PAPER, "1000.00", Category.FICTION, LocalDate.of(2011, Month.DECEMBER, 30), "978-140-889-076-9")));
+    }
+
+    @Test
+    public void testMatchUnionsValuesAndIntersectsFilters() {
+        //GIVEN a search for paper or kindle books that are non-fiction and have java in the title
+        BookSearchArgument argument = new BookSearchArgument();
+        argument.setTitle("java");
+        argument.setFormats(List.of(Format.PAPER, Format.KINDLE));
+        argument.setCategories(List.of(Category.NON_FICTION));
+        //WHEN the index resolves the search
+        IndexMatch match = index.match(argument).orElseThrow();
+        //THEN all three filters are answered by the index
+        assertThat(match.covers(SearchFilter.TITLE), is(true));
+        assertThat(match.covers(SearchFilter.FORMAT), is(true));
+        assertThat(match.covers(SearchFilter.CATEGORY), is(true));
+        //AND only the matching books are returned
+        assertThat(match.getIds(), containsInAnyOrder(1L, 3L));
+    }
+
+    @Test
+    public void testMatchFollowsUpdatesAndDeletes() {
+        //GIVEN a paper book turned into an audio book and another paper book deleted
+        index.index(book(1L, "coreJava", "Cay S. Horstmann", Format.AUDIO, "50.00", Category.NON_FICTION, LocalDate.of(2000, Month.NOVEMBER, 12), "978-0-596-52068-7"));
+        index.remove(5L);
+        BookSearchArgument paper = new BookSearchArgument();
+        paper.setFormats(List.of(Format.PAPER));
+        BookSearchArgument audio = new BookSearchArgument();
+        audio.setFormats(List.of(Format.AUDIO));
+        //WHEN the index resolves searches on both formats
+        //THEN the bitmaps reflect the latest state of the catalog
+        assertThat(index.match(paper).orElseThrow().getCount(), is(0));
+        assertThat(index.match(audio).orElseThrow().getIds(), containsInAnyOrder(1L, 4L));
+    }
+
+    @Test
+    public void testMatchResolvesPriceAndDateRanges() {
+        //GIVEN a search for books from 100 up to 1000 published since 2012, then one of them repriced
+        index.index(book(4L, "corePython", "Wesley J Chun", Format.AUDIO, "99.99", Category.NON_FICTION, LocalDate.of(2015, Month.DECEMBER, 30), "978-0-132-26993-3"));
+        BookSearchArgument argument = new BookSearchArgument();
+        argument.setPriceFrom(new BigDecimal("100"));
+        argument.setPriceTo(new BigDecimal("1000"));
+        argument.setPublicationDateStart(LocalDate.of(2012, Month.JANUARY, 1));
+        //WHEN the index resolves the search
+        IndexMatch match = index.match(argument).orElseThrow();
+        //THEN both ranges are answered by the index with inclusive bounds
+        assertThat(match.covers(SearchFilter.PRICE), is(true));
+        assertThat(match.covers(SearchFilter.PUBLISHED_DATE), is(true));
+        assertThat(match.getIds(), containsInAnyOrder(2L, 3L));
+    }
+
+    @Test
+    public void testMatchResolvesCompleteIsbnWhateverTheHyphenation() {
+        //GIVEN a search on an unhyphenated isbn and another on a partial isbn
+        BookSearchArgument complete = new BookSearchArgument();
+        complete.setIsbn("9780195105193");
+        BookSearchArgument partial = new BookSearchArgument();
+        partial.setIsbn("978-0-195");
+        //WHEN the index resolves the searches
+        //THEN the complete isbn is answered by the index and the partial one is left to the database
+        assertThat(index.match(complete).orElseThrow().getIds(), containsInAnyOrder(3L));
+        assertThat(index.match(partial).isPresent(), is(false));
+    }
+
+    @Test
+    public void testFuzzyMatchAddsSimilarWordsToSubstringMatches() {
+        //GIVEN a misspelled title, and the same misspelling without fuzzy matching
+        BookSearchArgument fuzzy = new BookSearchArgument();
+        fuzzy.setTitle("hary poter");
+        fuzzy.setFuzzy(true);
+        BookSearchArgument exact = new BookSearchArgument();
+        exact.setTitle("hary poter");
+        BookSearchArgument java = new BookSearchArgument();
+        java.setTitle("java");
+        java.setFuzzy(true);
+        //WHEN the index resolves the searches
+        //THEN only the fuzzy search finds the book
+        assertThat(index.match(fuzzy).orElseThrow().getIds(), containsInAnyOrder(5L));
+        assertThat(index.match(exact).orElseThrow().getCount(), is(0));
+        //AND substring matches are still returned in fuzzy mode
+        assertThat(index.match(java).orElseThrow().getIds(), containsInAnyOrder(1L, 2L, 3L));
+    }
+
+    @Test
+    public void testFuzzyMatchOverTheResolvedIdCapFallsBackToSubstrings() {
+        //GIVEN an index resolving at most 2 ids
+        ReflectionTestUtils.setField(index, "maxResolvedIds", 2);
+        //AND a fuzzy search matching only through a typo, and another matching 3 books by substring
+        BookSearchArgument misspelled = new BookSearchArgument();
+        misspelled.setTitle("hary poter");
+        misspelled.setFuzzy(true);
+        BookSearchArgument java = new BookSearchArgument();
+        java.setTitle("java");
+        java.setFuzzy(true);
+        //WHEN the index resolves the searches
+        IndexMatch match = index.match(java).orElseThrow();
+        //THEN the substring matches are too many to resolve to ids and are left to the database
+        assertThat(match.covers(SearchFilter.TITLE), is(true));
+        assertThat(match.getCount(), is(3));
+        assertThat(match.hasIds(), is(false));
+        //AND the typo tolerant match still resolves as it is under the cap
+        assertThat(index.match(misspelled).orElseThrow().getIds(), containsInAnyOrder(5L));
+        //AND once over the cap, it drops the typo tolerant words and finds nothing as a substring search would
+        ReflectionTestUtils.setField(index, "maxResolvedIds", 0);
+        assertThat(index.match(misspelled).orElseThrow().getCount(), is(0));
+    }
+
+    @Test
+    public void testFacetsCountTheMatchesPerValueBandAndYear() {
+        //GIVEN a search for non-fiction books and price bands split at 100 and 1000
+        BookSearchArgument argument = new BookSearchArgument();
+        argument.setCategories(List.of(Category.NON_FICTION));
+        //WHEN the index counts the facets
+        SearchFacets facets = index.facets(argument, List.of(new BigDecimal("100"), new BigDecimal("1000"))).orElseThrow();
+        //THEN every format and category is counted, including those without matches
+        assertThat(facets.getTotal(), is(4L));
+        assertThat(facets.getFormats(), is(Map.of("paper", 1L, "hardback", 1L, "kindle", 1L, "audio", 1L)));
+        assertThat(facets.getCategories(), is(Map.of("fiction", 0L, "non-fiction", 4L)));
+        //AND a price equal to a bound falls in the band above it
+        assertThat(facets.getPrices().stream().map(SearchFacets.PriceBand::getCount).collect(Collectors.toList()), contains(1L, 2L, 1L));
+        //AND only the years with matches are listed
+        assertThat(facets.getYears(), is(Map.of(2000, 1L, 2015, 1L, 2021, 1L, 2023, 1L)));
+    }
+
+    @Test
+    public void testFacetsAreLeftToTheDatabaseForPartialIsbns() {
+        //GIVEN a search on a partial isbn the index cannot answer
+        BookSearchArgument argument = new BookSearchArgument();
+        argument.setIsbn("978-0");
+        //WHEN the index counts the facets
+        //THEN it declines
+        assertThat(index.facets(argument, List.of(BigDecimal.TEN)).isPresent(), is(false));
+    }
+
+    @Test
+    public void testRebuildAfterGrowingPastTheInitialCapacity() {
+        //GIVEN a catalog of more books than the initial capacity of the slot arrays, indexed twice
+        for (int rebuild = 0; rebuild < 2; rebuild++) {
+            index.rebuild(LongStream.rangeClosed(1, 3000).mapToObj(id -> book(id, "book" + id, "author", Format.PAPER, "50.00",
+                    Category.FICTION, LocalDate.of(2000, Month.NOVEMBER, 12), "978-0-596-52068-7")));
+        }
+        BookSearchArgument argument = new BookSearchArgument();
+        argument.setIsbn("9780596520687");
+        argument.setPriceFrom(new BigDecimal("50"));
+        //WHEN the index resolves a search on the isbn and the price
+        //THEN every book of the second rebuild matches
+        assertThat(index.match(argument).orElseThrow().getCount(), is(3000));
+    }
+
+    static Book book(Long id, String title, String author, Format format, String price, Category category, LocalDate publishedDate, String isbn) {
+        Book book = new Book(title, author, format, new BigDecimal(price), category, publishedDate, isbn, 5);
+        book.setId(id);
+        return book;
+    }
+}
@@ -0,0 +1,58 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class FuzzyTermIndexTest {
+
+    private FuzzyTermIndex index;
+
+    @BeforeEach
+    public void setup() {
+        index = new FuzzyTermIndex();
+        index.add(0, "coreJava");
+        index.add(1, "coreJava17");
+        index.add(2, "harryPotter");
+        index.add(3, "The Hobbit");
+    }
+
+    @Test
+    public void testTokenizeSplitsCamelCaseAndDigits() {
+        assertThat(FuzzyTermIndex.tokenize("harryPotter"), contains("HARRY", "POTTER"));
+        assertThat(FuzzyTermIndex.tokenize("coreJava17"), contains("CORE", "JAVA", "17"));
+        assertThat(FuzzyTermIndex.tokenize("J.K. Rowling"), contains("J", "K", "ROWLING"));
+    }
+
+    @Test
+    public void testSearchToleratesTyposWithinTheEditBudget() {
+        //WHEN searching with a missing letter, a transposition and a substitution
+        //THEN the books are found
+        assertThat(index.search("harry poter").toArray(), is(new int[]{2}));
+        assertThat(index.search("hobibt").toArray(), is(new int[]{3}));
+        assertThat(index.search("cor jave").toArray(), is(new int[]{0, 1}));
+        //AND words too far from any indexed word, or too short to allow a typo, match nothing
+        assertThat(index.search("hermit").isEmpty(), is(true));
+        assertThat(index.search("17").toArray(), is(new int[]{1}));
+        assertThat(index.search("18").isEmpty(), is(true));
+        assertThat(index.search(" - "), is(nullValue()));
+    }
+
+    @Test
+    public void testSearchFollowsUpdatesAndRemovals() {
+        //GIVEN a book renamed and another removed
+        index.add(2, "Harry Plotter");
+        index.remove(0);
+        //WHEN searching again
+        //THEN the old values are no longer found
+        assertThat(index.search("harry potter").toArray(), is(new int[]{2}));
+        assertThat(index.search("harry poter").isEmpty(), is(true));
+        assertThat(index.search("corejava").isEmpty(), is(true));
+        index.remove(2);
+        assertThat(index.search("harry").isEmpty(), is(true));
+    }
+}
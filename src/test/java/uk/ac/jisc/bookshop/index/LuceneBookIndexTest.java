@@ -0,0 +1,100 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.jisc.bookshop.domain.Category;
+import uk.ac.jisc.bookshop.domain.Format;
+import uk.ac.jisc.bookshop.nondomain.BookSearchArgument;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.Month;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static uk.ac.jisc.bookshop.index.BookCatalogIndexTest.book;
+
+public class LuceneBookIndexTest {
+
+    @TempDir
+    Path directory;
+
+    private LuceneBookIndex index;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        index = new LuceneBookIndex(directory, Duration.ofSeconds(1), Duration.ofMillis(20));
+        index.rebuild(Stream.of(
+                book(1L, "coreJava", "Cay S. Horstmann", Format.PAPER, "50.00", Category.NON_FICTION, LocalDate.of(2000, Month.NOVEMBER, 12), "978-0-596-52068-7"),
+                book(2L, "coreJava2", "Gary Cornell", Format.HARDBACK, "1000.00", Category.NON_FICTION, LocalDate.of(2021, Month.JANUARY, 31), "506-3-089-12512-0"),
+                book(3L, "coreJava17", "G.Cornell", Format.KINDLE, "100.00", Category.NON_FICTION, LocalDate.of(2023, Month.JANUARY, 31), "978-0-195-10519-3"),
+                book(4L, "corePython", "Wesley J Chun", Format.AUDIO, "100.00", Category.NON_FICTION, LocalDate.of(2015, Month.DECEMBER, 30), "978-0-132-26993-3"),
+                book(5L, "harryPotter", "J.K.Rowling", Format.PAPER, "1000.00", Category.FICTION, LocalDate.of(2011, Month.DECEMBER, 30), "978-140-889-076-9")));
+    }
+
+    @AfterEach
+    public void shutdown() throws IOException {
+        index.close();
+    }
+
+    @Test
+    public void testSearchRanksShorterMatchesFirst() {
+        //GIVEN a search on a word of several titles
+        BookSearchArgument argument = new BookSearchArgument();
+        argument.setTitle("core");
+        //WHEN the index ranks the books
+        //THEN the titles made of fewer words come first, equal scores in id order
+        assertThat(index.search(argument, 0, 10), contains(1L, 4L, 2L, 3L));
+        assertThat(index.search(argument, 1, 2), contains(4L, 2L));
+        assertThat(index.search(argument, 4, 0), is(empty()));
+        assertThat(index.count(argument), is(4));
+        //AND every word has to match, whatever the case
+        argument.setTitle("Harry potter");
+        assertThat(index.search(argument, 0, 10), contains(5L));
+        argument.setTitle("harry java");
+        assertThat(index.search(argument, 0, 10), is(empty()));
+    }
+
+    @Test
+    public void testSearchAppliesFiltersWithoutScoringThem() {
+        //GIVEN non-fiction books from 100 up to 1000, published since 2016, in hardback or kindle
+        BookSearchArgument argument = new BookSearchArgument();
+        argument.setAuthor("cornell");
+        argument.setPriceFrom(new BigDecimal("100"));
+        argument.setPriceTo(new BigDecimal("1000"));
+        argument.setPublicationDateStart(LocalDate.of(2016, Month.JANUARY, 1));
+        argument.setFormats(List.of(Format.HARDBACK, Format.KINDLE));
+        argument.setCategories(List.of(Category.NON_FICTION));
+        //WHEN the index resolves the search
+        //THEN both books match, in id order as the filters do not change their scores
+        assertThat(index.search(argument, 0, 0), contains(2L, 3L));
+        //AND complete and partial isbns are matched as by the criteria search
+        argument.setIsbn("9780195105193");
+        assertThat(index.search(argument, 0, 0), contains(3L));
+        argument.setIsbn("3-089");
+        assertThat(index.search(argument, 0, 0), contains(2L));
+    }
+
+    @Test
+    public void testWritesAreSearchableAtOnce() {
+        //GIVEN a book renamed and another deleted
+        index.index(book(4L, "coreKotlin", "Wesley J Chun", Format.AUDIO, "100.00", Category.NON_FICTION, LocalDate.of(2015, Month.DECEMBER, 30), "978-0-132-26993-3"));
+        index.remove(1L);
+        BookSearchArgument argument = new BookSearchArgument();
+        argument.setTitle("core");
+        //WHEN searching right after the writes
+        //THEN the changes are seen without a commit
+        assertThat(index.search(argument, 0, 10), contains(4L, 2L, 3L));
+        argument.setTitle("python");
+        assertThat(index.count(argument), is(0));
+    }
+}
@@ -0,0 +1,50 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+public class PrefixTrieTest {
+
+    private PrefixTrie trie;
+
+    @BeforeEach
+    public void setup() {
+        trie = new PrefixTrie(3);
+        trie.load(0, "coreJava");
+        trie.load(1, "coreJava2");
+        trie.load(2, "coreJava17");
+        trie.load(3, "corePython");
+        trie.load(4, "corePython");
+        trie.load(5, "harryPotter");
+        trie.seal();
+    }
+
+    @Test
+    public void testCompleteRanksByFrequencyIgnoringCase() {
+        //WHEN completing a prefix in a different case
+        //THEN the most common value comes first, then the others alphabetically, up to k
+        assertThat(trie.complete("CORE", 10), contains("corePython", "coreJava", "coreJava17"));
+        //AND a prefix ending inside an edge of the trie is completed as well
+        assertThat(trie.complete("corej", 2), contains("coreJava", "coreJava17"));
+        assertThat(trie.complete("python", 10), is(empty()));
+    }
+
+    @Test
+    public void testCompleteFollowsUpdatesAndRemovals() {
+        //GIVEN a book renamed and the two python books removed
+        trie.set(5, "coreKotlin");
+        trie.remove(3);
+        trie.remove(4);
+        //WHEN completing the prefixes again
+        //THEN the top completions reflect the changes
+        assertThat(trie.complete("core", 10), contains("coreJava", "coreJava17", "coreJava2"));
+        assertThat(trie.complete("coreK", 10), contains("coreKotlin"));
+        assertThat(trie.complete("coreP", 10), is(empty()));
+        assertThat(trie.complete("h", 10), is(empty()));
+    }
+}
@@ -0,0 +1,145 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+public class SortPermutationTest {
+
+    @Test
+    public void testDescendingKeepsTiesInIdOrderAndNullsLast() {
+        //GIVEN titles with a tie, a null and a lower case one sorting after the upper case ones
+        SortPermutation permutation = new SortPermutation();
+        permutation.put(0, 10L, "coreJava");
+        permutation.put(1, 11L, "Western Lane");
+        permutation.put(2, 12L, null);
+        permutation.put(3, 13L, "coreJava");
+        permutation.put(4, 14L, "harryPotter");
+        //WHEN reading pages in both directions
+        //THEN keys compare by code unit with nulls lowest, and ties stay in ascending id order
+        assertThat(permutation.page(null, true, 0, 0), contains(12L, 11L, 10L, 13L, 14L));
+        assertThat(permutation.page(null, false, 0, 0), contains(14L, 10L, 13L, 11L, 12L));
+        //AND offsets and limits cut the page out of that order
+        assertThat(permutation.page(null, false, 1, 2), contains(10L, 13L));
+        assertThat(permutation.page(RoaringBitmap.bitmapOf(0, 2, 3), false, 0, 2), contains(10L, 13L));
+    }
+
+    @Test
+    public void testWalkAndHeapAgreeWithFullSortAfterUpdates() {
+        //GIVEN a permutation bulk loaded with random keys then randomly updated and removed
+        Random random = new Random(42);
+        SortPermutation permutation = new SortPermutation();
+        Integer[] keys = new Integer[5000];
+        boolean[] removed = new boolean[keys.length];
+        for (int slot = 0; slot < keys.length; slot++) {
+            keys[slot] = random.nextInt(100);
+            permutation.load(slot, slot, keys[slot]);
+        }
+        permutation.seal();
+        for (int i = 0; i < 2000; i++) {
+            int slot = random.nextInt(keys.length);
+            removed[slot] = random.nextInt(4) == 0;
+            if (removed[slot]) {
+                permutation.remove(slot);
+            } else {
+                keys[slot] = random.nextBoolean() ? random.nextInt(100) : null;
+                permutation.put(slot, slot, keys[slot]);
+            }
+        }
+        //WHEN reading a page among dense live matches, walking the permutation, and sparse ones, through the heap
+        RoaringBitmap dense = new RoaringBitmap();
+        RoaringBitmap sparse = new RoaringBitmap();
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (removed[slot]) continue;
+            if (random.nextInt(2) == 0) dense.add(slot);
+            if (random.nextInt(100) == 0) sparse.add(slot);
+        }
+        //THEN both are the same as fully sorting the live slots
+        for (RoaringBitmap matches : List.of(dense, sparse)) {
+            for (boolean ascending : new boolean[]{true, false}) {
+                assertThat(permutation.page(matches, ascending, 5, 20), is(sorted(keys, matches, ascending, 5, 20)));
+            }
+        }
+    }
+
+    @Test
+    public void testLoadingAfterSealMergesIntoTheOrder() {
+        //GIVEN a sealed permutation
+        Random random = new Random(7);
+        SortPermutation permutation = new SortPermutation();
+        Integer[] keys = new Integer[3000];
+        RoaringBitmap live = new RoaringBitmap();
+        for (int slot = 0; slot < 1000; slot++) {
+            keys[slot] = random.nextInt(50);
+            permutation.load(slot, slot, keys[slot]);
+            live.add(slot);
+        }
+        permutation.seal();
+        //WHEN loading a batch of new slots and of slots already there, some of them twice, then sealing again
+        for (int i = 0; i < 2500; i++) {
+            int slot = random.nextInt(keys.length);
+            keys[slot] = random.nextInt(10) == 0 ? null : random.nextInt(50);
+            permutation.load(slot, slot, keys[slot]);
+            live.add(slot);
+        }
+        permutation.seal();
+        //THEN the order is the same as fully sorting the live slots
+        for (boolean ascending : new boolean[]{true, false}) {
+            assertThat(permutation.page(null, ascending, 0, 0), is(sorted(keys, live, ascending, 0, Integer.MAX_VALUE)));
+        }
+        //AND single puts keep working on the merged order
+        keys[5] = 25;
+        permutation.put(5, 5, 25);
+        assertThat(permutation.page(null, false, 0, 0), is(sorted(keys, live, false, 0, Integer.MAX_VALUE)));
+    }
+
+    @Test
+    public void testBufferedChangesReadTheSameBeforeAndAfterTheyAreMerged() {
+        //GIVEN a sealed permutation with many ties
+        Random random = new Random(11);
+        SortPermutation permutation = new SortPermutation();
+        Integer[] keys = new Integer[4000];
+        RoaringBitmap live = new RoaringBitmap();
+        for (int slot = 0; slot < 2000; slot++) {
+            keys[slot] = random.nextInt(10);
+            permutation.load(slot, slot, keys[slot]);
+            live.add(slot);
+        }
+        permutation.seal();
+        //WHEN slots are put and removed one at a time, enough of them for the buffer to be merged more than once
+        for (int i = 1; i <= 3000; i++) {
+            int slot = random.nextInt(keys.length);
+            if (random.nextInt(5) == 0) {
+                permutation.remove(slot);
+                live.remove(slot);
+            } else {
+                keys[slot] = random.nextInt(10) == 0 ? null : random.nextInt(10);
+                permutation.put(slot, slot, keys[slot]);
+                live.add(slot);
+            }
+            //THEN every page read along the way is the same as fully sorting the live slots
+            if (i % 250 == 0) {
+                for (boolean ascending : new boolean[]{true, false}) {
+                    assertThat(permutation.page(null, ascending, 0, 0), is(sorted(keys, live, ascending, 0, Integer.MAX_VALUE)));
+                    assertThat(permutation.page(live, ascending, 100, 30), is(sorted(keys, live, ascending, 100, 30)));
+                }
+            }
+        }
+    }
+
+    //ids are the slots
+    private static List<Long> sorted(Integer[] keys, RoaringBitmap matches, boolean ascending, int offset, int limit) {
+        Comparator<Integer> byKey = Comparator.nullsFirst(Comparator.<Integer>naturalOrder());
+        Comparator<Integer> order = Comparator.comparing((Integer slot) -> keys[slot], ascending ? byKey : byKey.reversed())
+                .thenComparing(Comparator.naturalOrder());
+        List<Integer> live = new ArrayList<>();
+        matches.forEach((int slot) -> live.add(slot));
+        return live.stream().sorted(order).skip(offset).limit(limit).map(Long::valueOf).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,122 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class SortedLongIndexTest {
+
+    @Test
+    public void testRangeIsInclusiveAndSkipsMissingKeys() {
+        //GIVEN slots with duplicated keys and one slot without a key
+        SortedLongIndex index = new SortedLongIndex();
+        index.put(0, 500L);
+        index.put(1, 100L);
+        index.put(2, 500L);
+        index.put(3, null);
+        index.put(4, 1000L);
+        //WHEN looking up ranges
+        //THEN both bounds are included and the slot without a key never matches
+        assertThat(index.range(100, 500), is(RoaringBitmap.bitmapOf(0, 1, 2)));
+        assertThat(index.range(501, Long.MAX_VALUE), is(RoaringBitmap.bitmapOf(4)));
+        assertThat(index.range(Long.MIN_VALUE, Long.MAX_VALUE).getCardinality(), is(4));
+        assertThat(index.count(101, 499), is(0));
+    }
+
+    @Test
+    public void testBulkLoadAndUpdatesAgreeWithSortedMap() {
+        //GIVEN an index bulk loaded with random keys then randomly updated and removed
+        Random random = new Random(42);
+        SortedLongIndex index = new SortedLongIndex();
+        Long[] expected = new Long[5000];
+        for (int slot = 0; slot < expected.length; slot++) {
+            expected[slot] = (long) random.nextInt(1000);
+            index.load(slot, expected[slot]);
+        }
+        index.seal();
+        for (int i = 0; i < 2000; i++) {
+            int slot = random.nextInt(expected.length);
+            expected[slot] = random.nextBoolean() ? (long) random.nextInt(1000) : null;
+            index.put(slot, expected[slot]);
+        }
+        TreeMap<Long, RoaringBitmap> reference = new TreeMap<>();
+        for (int slot = 0; slot < expected.length; slot++) {
+            if (expected[slot] != null) {
+                reference.computeIfAbsent(expected[slot], key -> new RoaringBitmap()).add(slot);
+            }
+        }
+        //WHEN looking up a range
+        RoaringBitmap slots = index.range(250, 750);
+        //THEN it holds the same slots as a naive sorted map
+        assertThat(slots, is(RoaringBitmap.or(reference.subMap(250L, true, 750L, true).values().iterator())));
+    }
+
+    @Test
+    public void testRebuildAfterGrowingPastTheInitialCapacity() {
+        //GIVEN an index loaded with more slots than its initial capacity
+        SortedLongIndex index = new SortedLongIndex();
+        for (int slot = 0; slot < 3000; slot++) {
+            index.load(slot, (long) slot);
+        }
+        index.seal();
+        //WHEN it is cleared and loaded again with as many slots
+        index.clear();
+        for (int slot = 0; slot < 3000; slot++) {
+            index.load(slot, (long) slot * 2);
+        }
+        index.seal();
+        //THEN it only holds the new keys
+        assertThat(index.range(0, 1999).getCardinality(), is(1000));
+        assertThat(index.get(2999), is(5998L));
+        assertThat(index.count(Long.MIN_VALUE, Long.MAX_VALUE), is(3000));
+    }
+
+    @Test
+    public void testBufferedChangesReadTheSameBeforeAndAfterTheyAreMerged() {
+        //GIVEN a sealed index with many duplicated keys
+        Random random = new Random(11);
+        SortedLongIndex index = new SortedLongIndex();
+        Long[] expected = new Long[4000];
+        for (int slot = 0; slot < 2000; slot++) {
+            expected[slot] = (long) random.nextInt(50);
+            index.load(slot, expected[slot]);
+        }
+        index.seal();
+        //WHEN slots are put and removed one at a time, enough of them for the buffer to be merged more than once
+        for (int i = 1; i <= 3000; i++) {
+            int slot = random.nextInt(expected.length);
+            if (random.nextInt(5) == 0) {
+                index.remove(slot);
+                expected[slot] = null;
+            } else {
+                expected[slot] = random.nextInt(10) == 0 ? null : (long) random.nextInt(50);
+                index.put(slot, expected[slot]);
+            }
+            //THEN every range read along the way holds the same slots as scanning the keys
+            if (i % 250 == 0) {
+                for (long[] range : new long[][]{{10, 30}, {0, 0}, {Long.MIN_VALUE, Long.MAX_VALUE}, {30, 10}}) {
+                    RoaringBitmap reference = new RoaringBitmap();
+                    for (int s = 0; s < expected.length; s++) {
+                        if (expected[s] != null && expected[s] >= range[0] && expected[s] <= range[1]) {
+                            reference.add(s);
+                        }
+                    }
+                    assertThat(index.range(range[0], range[1]), is(reference));
+                    assertThat(index.count(range[0], range[1]), is(reference.getCardinality()));
+                }
+            }
+        }
+        //AND a slot whose place is dead is loaded again without being counted twice
+        index.put(0, 5L);
+        index.load(0, 7L);
+        index.seal();
+        assertThat(index.range(5, 7).contains(0), is(true));
+        assertThat(index.range(5, 6).contains(0), is(false));
+        assertThat(index.get(0), is(7L));
+    }
+}
@@ -0,0 +1,59 @@
+package uk.ac.jisc.bookshop.index;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class TrigramIndexTest {
+
+    private TrigramIndex index;
+
+    @BeforeEach
+    public void setup() {
+        index = new TrigramIndex();
+        index.add(0, "coreJava");
+        index.add(1, "coreJava2");
+        index.add(2, "corePython");
+        index.add(3, "harryPotter");
+    }
+
+    @Test
+    public void testSearchIgnoresCase() {
+        //WHEN searching a substring in a different case
+        RoaringBitmap slots = index.search("JAVA");
+        //THEN both java titles are matched
+        assertThat(slots, is(RoaringBitmap.bitmapOf(0, 1)));
+    }
+
+    @Test
+    public void testSearchVerifiesCandidates() {
+        //GIVEN a value holding all trigrams of the pattern but not the pattern itself
+        index.add(4, "AVAJAVXJAV");
+        //WHEN searching for the pattern
+        RoaringBitmap slots = index.search("javaj");
+        //THEN only the values really containing it are matched
+        assertThat(slots.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testSearchWithShortPatternIsNotServed() {
+        //WHEN searching with less characters than a trigram
+        //THEN the index cannot answer
+        assertThat(index.search("py"), nullValue());
+    }
+
+    @Test
+    public void testRemoveAndReplaceValue() {
+        //GIVEN a removed and a renamed slot
+        index.remove(0);
+        index.add(2, "corePerl");
+        //THEN the postings follow the latest values
+        assertThat(index.search("java"), is(RoaringBitmap.bitmapOf(1)));
+        assertThat(index.search("python").isEmpty(), is(true));
+        assertThat(index.search("perl"), is(RoaringBitmap.bitmapOf(2)));
+    }
+}
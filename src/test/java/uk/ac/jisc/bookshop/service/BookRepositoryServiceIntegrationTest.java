@@ -4,6 +4,11 @@ package uk.ac.jisc.bookshop.service;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.EntityManagerFactory;
 import jakarta.persistence.Persistence;
+import jakarta.validation.Validation;
+import org.hibernate.Session;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.hamcrest.CoreMatchers;
 
 import org.junit.jupiter.api.AfterAll;
@@ -13,31 +18,83 @@ import org.junit.jupiter.api.extension.ExtendWith;
 
 
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.Sort;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.util.ReflectionTestUtils;
+import uk.ac.jisc.bookshop.Exception.BookNotFoundException;
+import uk.ac.jisc.bookshop.Exception.HoldNotFoundException;
+import uk.ac.jisc.bookshop.Exception.StockConflictException;
+import uk.ac.jisc.bookshop.cache.BookJsonCache;
+import uk.ac.jisc.bookshop.cache.BookSearchCache;
 import uk.ac.jisc.bookshop.domain.Book;
 import uk.ac.jisc.bookshop.domain.Category;
 import uk.ac.jisc.bookshop.domain.Format;
+import uk.ac.jisc.bookshop.index.BookCatalogIndex;
+import uk.ac.jisc.bookshop.index.LuceneBookIndex;
+import uk.ac.jisc.bookshop.nondomain.BookField;
+import uk.ac.jisc.bookshop.nondomain.BookLookup;
+import uk.ac.jisc.bookshop.nondomain.BookRow;
 import uk.ac.jisc.bookshop.nondomain.BookSearchArgument;
+import uk.ac.jisc.bookshop.nondomain.BulkResult;
+import uk.ac.jisc.bookshop.nondomain.ExportFormat;
+import uk.ac.jisc.bookshop.nondomain.ExportManifest;
+import uk.ac.jisc.bookshop.nondomain.ImportFormat;
+import uk.ac.jisc.bookshop.nondomain.ImportProgress;
+import uk.ac.jisc.bookshop.nondomain.CountMode;
+import uk.ac.jisc.bookshop.nondomain.SearchCursor;
+import uk.ac.jisc.bookshop.nondomain.SearchFacets;
+import uk.ac.jisc.bookshop.nondomain.SearchResult;
+import uk.ac.jisc.bookshop.nondomain.StockHold;
+import uk.ac.jisc.bookshop.nondomain.StockLevel;
+import uk.ac.jisc.bookshop.nondomain.SuggestField;
+import uk.ac.jisc.bookshop.stock.StockReservationEngine;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.Month;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasEntry;
 import static org.hamcrest.Matchers.hasProperty;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.collection.IsIterableContainingInOrder.contains;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 
 @DataJpaTest
 @ExtendWith(SpringExtension.class)
 public class BookRepositoryServiceIntegrationTest {
 
+    private static EntityManagerFactory factory;
     private static EntityManager entityManager;
     private static BookRepositoryService service;
+    private static LuceneBookIndex luceneIndex;
+    private static SearchQueryTemplates queryTemplates = new SearchQueryTemplates(new SimpleMeterRegistry(), 100);
 
     static Book book1 = new Book("coreJava", "Cay S. Horstmann", Format.PAPER, BigDecimal.valueOf( 50.00).setScale(2),
             Category.NON_FICTION, LocalDate.of(2000, Month.NOVEMBER,12), "978-0-596-52068-7",3);
@@ -53,8 +110,8 @@ public class BookRepositoryServiceIntegrationTest {
     static Book book6 = new Book("Western Lane", "Chetna Maroo",Format.HARDBACK, BigDecimal.valueOf( 90.00).setScale(2),
             Category.FICTION,LocalDate.of(2023,Month.DECEMBER,30), " 978-152-909-462-6",5);
     @BeforeAll
-    public static void setup() {
-        EntityManagerFactory factory = Persistence.createEntityManagerFactory("jpa-h2-queryparams");
+    public static void setup() throws IOException {
+        factory = Persistence.createEntityManagerFactory("jpa-h2-queryparams");
         entityManager = factory.createEntityManager();
         entityManager.getTransaction().begin();
 
@@ -69,6 +126,15 @@ public class BookRepositoryServiceIntegrationTest {
 
         service = new BookRepositoryService();
         ReflectionTestUtils.setField(service,"entityManager",entityManager);
+        ReflectionTestUtils.setField(service,"catalogIndex",new BookCatalogIndex());
+        ReflectionTestUtils.setField(service,"entityManagerFactory",factory);
+        ReflectionTestUtils.setField(service,"taskExecutor", Executors.newSingleThreadExecutor());
+        ReflectionTestUtils.setField(service,"searchCache", new BookSearchCache(new SimpleMeterRegistry(), 100, Duration.ofMinutes(1)));
+        ReflectionTestUtils.setField(service,"queryTemplates", queryTemplates);
+        ReflectionTestUtils.setField(service,"jsonCache", new BookJsonCache(new SimpleMeterRegistry(), 1 << 20));
+        luceneIndex = new LuceneBookIndex(Files.createTempDirectory("lucene"), Duration.ofSeconds(1), Duration.ofMillis(20));
+        ReflectionTestUtils.setField(service,"luceneIndex", luceneIndex);
+        service.rebuildCatalogIndex();
     }
 
     @Test
@@ -195,8 +261,854 @@ public class BookRepositoryServiceIntegrationTest {
         assertThat(books,contains(book3 , book2,  book1));
     }
 
+    @Test
+    public void testFindBookBySearchArgumentWithCursor(){
+        //GIVEN there are 6 valid books in database
+        //AND user pages 3 books at a time ordered by price, where the third and fourth book share a price
+        Sort sorts = Sort.by(Sort.Direction.ASC, "price");
+        BookSearchArgument bookSearchArgument = new BookSearchArgument();
+        bookSearchArgument.setSize(3);
+        bookSearchArgument.setSorts(sorts);
+        List<Book> firstPage = service.findBookBySearchArgument(bookSearchArgument);
+        //WHEN query the next page with a cursor after the last book of the first page
+        bookSearchArgument.setCursor(SearchCursor.decode(SearchCursor.after(firstPage.get(2), sorts).encode(), sorts));
+        List<Book> secondPage = service.findBookBySearchArgument(bookSearchArgument);
+        //THEN the pages continue each other without gaps or duplicates
+        assertThat(firstPage,contains(
+                hasProperty("title", is(book1.getTitle())),
+                hasProperty("title", is(book6.getTitle())),
+                hasProperty("title", is(book3.getTitle()))));
+        assertThat(secondPage,contains(
+                hasProperty("title", is(book4.getTitle())),
+                hasProperty("title", is(book2.getTitle())),
+                hasProperty("title", is(book5.getTitle()))));
+    }
+
+    @Test
+    public void testSearchSliceWithoutTotal(){
+        //GIVEN there are 6 valid books in database
+        //AND user pages 4 books at a time without asking for a total
+        BookSearchArgument bookSearchArgument = new BookSearchArgument();
+        bookSearchArgument.setSize(4);
+        //WHEN query the first and the second page
+        SearchResult<Book> firstPage = service.searchSlice(bookSearchArgument, CountMode.NONE);
+        bookSearchArgument.setPage(1);
+        SearchResult<Book> secondPage = service.searchSlice(bookSearchArgument, CountMode.NONE);
+        //THEN only the first page has a next page
+        assertThat(firstPage.getContent().size(), is(4));
+        assertThat(firstPage.isHasNext(), is(true));
+        assertThat(firstPage.getNextCursor() != null, is(true));
+        assertThat(secondPage.getContent().size(), is(2));
+        assertThat(secondPage.isHasNext(), is(false));
+        //AND no total has been counted
+        assertThat(firstPage.getTotal(), nullValue());
+    }
+
+    @Test
+    public void testSearchSliceWithExactTotal(){
+        //GIVEN there are 6 valid books in database
+        //AND an bookSearchArgument with title "java" showing 2 books per page
+        BookSearchArgument bookSearchArgument = new BookSearchArgument();
+        bookSearchArgument.setTitle("java");
+        bookSearchArgument.setSize(2);
+        //WHEN query the first page with an exact total, once answered by the index and once by the database
+        SearchResult<Book> indexed = service.searchSlice(bookSearchArgument, CountMode.EXACT);
+        bookSearchArgument.setTitle(null);
+        bookSearchArgument.setIsbn("978");
+        SearchResult<Book> counted = service.searchSlice(bookSearchArgument, CountMode.EXACT);
+        //THEN both totals are exact
+        assertThat(indexed.isHasNext(), is(true));
+        assertThat(indexed.getTotal(), is(3L));
+        assertThat(indexed.getTotalExact(), is(true));
+        assertThat(counted.getTotal(), is(5L));
+        assertThat(counted.getTotalExact(), is(true));
+    }
+
+    @Test
+    public void testSearchSliceWithEstimatedTotal(){
+        //GIVEN there are 6 valid books in database, 5 of them matching isbn "978"
+        //AND the estimate samples 4 books spread over the ids, so book2 among the oldest as well as the newest ones
+        ReflectionTestUtils.setField(service,"estimateSampleSize",4);
+        BookSearchArgument bookSearchArgument = new BookSearchArgument();
+        bookSearchArgument.setIsbn("978");
+        bookSearchArgument.setSize(2);
+        try {
+            //WHEN query the first page with an estimated total
+            SearchResult<Book> result = service.searchSlice(bookSearchArgument, CountMode.ESTIMATE);
+            //THEN the total is extrapolated from the share of the sample matching, which the 4 newest books alone would put at 6
+            assertThat(result.getTotal(), is(5L));
+            assertThat(result.getTotalExact(), is(false));
+        } finally {
+            ReflectionTestUtils.setField(service,"estimateSampleSize",10000);
+        }
+    }
+
+    @Test
+    public void testFindBookBySearchArgumentWithIsbnInAnyHyphenation(){
+        //GIVEN there are 6 valid books in database
+        //AND book3 is stored with isbn "978-0-195-10519-3"
+        BookSearchArgument bookSearchArgument = new BookSearchArgument();
+        bookSearchArgument.setIsbn("9780195105193");
+        //AND a service whose index is not built yet, so that it goes to the database
+        BookRepositoryService unindexed = new BookRepositoryService();
+        ReflectionTestUtils.setField(unindexed,"entityManager",entityManager);
+        ReflectionTestUtils.setField(unindexed,"catalogIndex",new BookCatalogIndex());
+        ReflectionTestUtils.setField(unindexed,"searchCache", new BookSearchCache(new SimpleMeterRegistry(), 100, Duration.ofMinutes(1)));
+        ReflectionTestUtils.setField(unindexed,"queryTemplates", queryTemplates);
+        //WHEN query with the unhyphenated isbn, once through the index and once through the database
+        List<Book> indexed = service.findBookBySearchArgument(bookSearchArgument);
+        bookSearchArgument.setIsbn("978 0 195 10519 3");
+        List<Book> queried = unindexed.findBookBySearchArgument(bookSearchArgument);
+        //THEN book3 is found both ways
+        assertThat(indexed,contains(hasProperty("title",is(book3.getTitle()))));
+        assertThat(queried,contains(hasProperty("title",is(book3.getTitle()))));
+    }
+
+    @Test
+    public void testDatabaseSearchesOfTheSameShapeShareATemplate(){
+        //GIVEN a service whose index is not built yet, so that every filter goes to the database
+        BookRepositoryService unindexed = new BookRepositoryService();
+        ReflectionTestUtils.setField(unindexed,"entityManager",entityManager);
+        ReflectionTestUtils.setField(unindexed,"catalogIndex",new BookCatalogIndex());
+        ReflectionTestUtils.setField(unindexed,"searchCache", new BookSearchCache(new SimpleMeterRegistry(), 100, Duration.ofMinutes(1)));
+        SearchQueryTemplates templates = new SearchQueryTemplates(new SimpleMeterRegistry(), 100);
+        ReflectionTestUtils.setField(unindexed,"queryTemplates", templates);
+        //AND non-fiction books with "core" in the title from 60 up to 1000, by price then title, one per page
+        BookSearchArgument bookSearchArgument = new BookSearchArgument();
+        bookSearchArgument.setTitle("core");
+        bookSearchArgument.setCategories(List.of(Category.NON_FICTION));
+        bookSearchArgument.setPriceFrom(new BigDecimal("60"));
+        bookSearchArgument.setPriceTo(new BigDecimal("1000"));
+        bookSearchArgument.setSorts(Sort.by(Sort.Order.asc("price"), Sort.Order.asc("title")));
+        bookSearchArgument.setSize(1);
+        //WHEN the pages are followed with cursors, each search binding new values to the same shape
+        List<String> titles = new ArrayList<>();
+        List<Book> page = unindexed.findBookBySearchArgument(bookSearchArgument);
+        while (!page.isEmpty()) {
+            titles.add(page.get(0).getTitle());
+            bookSearchArgument.setCursor(SearchCursor.after(page.get(0), bookSearchArgument.getSorts()));
+            page = unindexed.findBookBySearchArgument(bookSearchArgument);
+        }
+        //THEN the books come in price then title order
+        assertThat(titles, contains(book3.getTitle(), book4.getTitle(), book2.getTitle()));
+        //AND only the first page and the first cursor page had to build their jpql
+        assertThat(templates.hitRate(), is(2.0 / 4));
+    }
+
+    @Test
+    public void testStreamCatalogInIdOrder(){
+        //GIVEN there are 6 valid books in database
+        //AND the persistence context is cleared every 4 books
+        ReflectionTestUtils.setField(service,"streamFetchSize",4);
+        List<Long> ids = new ArrayList<>();
+        try {
+            //WHEN the catalog is streamed
+            service.streamCatalog(book -> ids.add(book.getId()));
+        } finally {
+            ReflectionTestUtils.setField(service,"streamFetchSize",500);
+        }
+        //THEN every book is handed over once, in id order
+        assertThat(ids, contains(book1.getId(), book2.getId(), book3.getId(), book4.getId(), book5.getId(), book6.getId()));
+    }
+
+    @Test
+    public void testFindBookRowsBySearchArgumentReadsSelectedFields(){
+        //GIVEN there are 6 valid books in database
+        //AND an bookSearchArgument with title "java" selecting the price only, sorted by title and showing 2 books per page
+        BookSearchArgument bookSearchArgument = new BookSearchArgument();
+        bookSearchArgument.setTitle("java");
+        bookSearchArgument.setFields(List.of(BookField.PRICE));
+        bookSearchArgument.setSorts(Sort.by(Sort.Direction.DESC, "title"));
+        bookSearchArgument.setSize(2);
+        //WHEN query the findBookRowsBySearchArgument method
+        List<BookRow> rows = service.findBookRowsBySearchArgument(bookSearchArgument);
+        //THEN the first page holds the prices of the matched books
+        assertThat(rows.size(), is(2));
+        assertThat(rows.get(0).toJson(), is(Map.of("price", "1000.00")));
+        //AND the sort key and id were read to build the next cursor
+        assertThat(rows.get(1).get("title"), is(book3.getTitle()));
+        assertThat(rows.get(1).getId(), is(book3.getId()));
+    }
+
+    @Test
+    public void testSuggestFromIndexAndDatabaseAgree(){
+        //GIVEN there are 6 valid books in database
+        //AND a service whose index is not built yet, so that it goes to the database
+        BookRepositoryService unindexed = new BookRepositoryService();
+        ReflectionTestUtils.setField(unindexed,"entityManager",entityManager);
+        ReflectionTestUtils.setField(unindexed,"catalogIndex",new BookCatalogIndex());
+        //WHEN completing the title prefix "COREJ" both ways
+        List<String> indexed = service.suggest(SuggestField.TITLE, "COREJ", 10);
+        List<String> queried = unindexed.suggest(SuggestField.TITLE, "COREJ", 10);
+        //THEN the java titles are suggested in the same order
+        assertThat(indexed, contains(book1.getTitle(), book3.getTitle(), book2.getTitle()));
+        assertThat(queried, is(indexed));
+    }
+
+    @Test
+    public void testSearchSortedByRelevance(){
+        //GIVEN there are 6 valid books in database
+        //AND an bookSearchArgument with title "java" sorted by relevance and showing 2 books per page
+        BookSearchArgument bookSearchArgument = new BookSearchArgument();
+        bookSearchArgument.setTitle("java");
+        bookSearchArgument.setSorts(Sort.by(BookSearchArgument.RELEVANCE));
+        bookSearchArgument.setSize(2);
+        //WHEN query the search methods
+        List<Book> books = service.findBookBySearchArgument(bookSearchArgument);
+        SearchResult<Book> slice = service.searchSlice(bookSearchArgument, CountMode.EXACT);
+        bookSearchArgument.setFields(List.of(BookField.TITLE));
+        List<BookRow> rows = service.findBookRowsBySearchArgument(bookSearchArgument);
+        //THEN the shortest title comes first, then the others in id order
+        assertThat(books, contains(
+                hasProperty("title",is(book1.getTitle())),
+                hasProperty("title",is(book2.getTitle()))));
+        assertThat(rows.get(0).getId(), is(book1.getId()));
+        assertThat(rows.get(1).getId(), is(book2.getId()));
+        //AND the slice tells there is a next page, without a cursor
+        assertThat(slice.getContent().size(), is(2));
+        assertThat(slice.isHasNext(), is(true));
+        assertThat(slice.getNextCursor(), is(nullValue()));
+        assertThat(slice.getTotal(), is(3L));
+    }
+
+    @Test
+    public void testPagesOrderedByTheIndexMatchTheDatabase(){
+        //GIVEN there are 6 valid books in database
+        //AND a service whose index is not built yet, so that it goes to the database
+        BookRepositoryService unindexed = new BookRepositoryService();
+        ReflectionTestUtils.setField(unindexed,"entityManager",entityManager);
+        ReflectionTestUtils.setField(unindexed,"catalogIndex",new BookCatalogIndex());
+        ReflectionTestUtils.setField(unindexed,"searchCache", new BookSearchCache(new SimpleMeterRegistry(), 100, Duration.ofMinutes(1)));
+        ReflectionTestUtils.setField(unindexed,"queryTemplates", queryTemplates);
+        //WHEN reading every page of 2 books in each sortable order and direction, the second one among fiction and non-fiction books
+        for (String property : List.of("id", "title", "author", "price", "publishedDate", "stockLevel")) {
+            for (Sort.Direction direction : Sort.Direction.values()) {
+                for (int page = 0; page < 3; page++) {
+                    BookSearchArgument bookSearchArgument = new BookSearchArgument();
+                    bookSearchArgument.setSorts(Sort.by(direction, property));
+                    bookSearchArgument.setPage(page);
+                    bookSearchArgument.setSize(2);
+                    if (page == 1) {
+                        bookSearchArgument.setCategories(List.of(Category.FICTION, Category.NON_FICTION));
+                    }
+                    //THEN the index orders them as the database does, ties and nulls included
+                    assertThat(property + " " + direction + " page " + page,
+                            ids(service.findBookBySearchArgument(bookSearchArgument)),
+                            is(ids(unindexed.findBookBySearchArgument(bookSearchArgument))));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnpagedSearchOnACatalogLargerThanTheResolvedIdCapGoesToTheDatabase(){
+        //GIVEN there are 6 valid books in database
+        //AND an index resolving at most 3 ids
+        BookCatalogIndex catalogIndex = (BookCatalogIndex) ReflectionTestUtils.getField(service, "catalogIndex");
+        ReflectionTestUtils.setField(catalogIndex, "maxResolvedIds", 3);
+        BookSearchArgument bookSearchArgument = new BookSearchArgument();
+        bookSearchArgument.setSorts(Sort.by(Sort.Direction.ASC, "title"));
+        bookSearchArgument.setCategories(List.of(Category.FICTION, Category.NON_FICTION));
+        bookSearchArgument.setSize(0);
+        try {
+            //WHEN searching without a page size
+            //THEN the index declines the page
+            assertThat(catalogIndex.page(bookSearchArgument, List.of(Sort.Order.asc("title"), Sort.Order.asc("id")), 0, 0).isPresent(), is(false));
+            //AND the database returns every book in order
+            assertThat(service.findBookBySearchArgument(bookSearchArgument).stream().map(Book::getTitle).collect(Collectors.toList()),
+                    contains("Western Lane", "coreJava", "coreJava17", "coreJava2", "corePython", "harryPotter"));
+        } finally {
+            ReflectionTestUtils.setField(catalogIndex, "maxResolvedIds", 1000);
+        }
+    }
+
+    @Test
+    public void testFuzzySearchOverTheResolvedIdCapPagesAndCountsTheSameBooks(){
+        //GIVEN there are 6 valid books in database
+        //AND 2 books matching "pagingWizard" as a substring and 2 only through a typo
+        List<Book> books = new ArrayList<>();
+        for (String title : List.of("pagingWizard", "pagingWizzard", "pagingWizard", "pagingWizzard")) {
+            books.add(new Book(title, "Fuzzy Author", Format.PAPER, BigDecimal.valueOf(10).setScale(2),
+                    Category.FICTION, LocalDate.of(2020, Month.MAY, 1), "978-0-596-52068-7", 1));
+        }
+        bulkService(4).saveAll(books);
+        //AND an index resolving at most 3 ids, fewer than the 4 fuzzy matches
+        BookCatalogIndex catalogIndex = (BookCatalogIndex) ReflectionTestUtils.getField(service, "catalogIndex");
+        ReflectionTestUtils.setField(catalogIndex, "maxResolvedIds", 3);
+        Sort sorts = Sort.by(Sort.Direction.DESC, "title");
+        BookSearchArgument bookSearchArgument = new BookSearchArgument();
+        bookSearchArgument.setTitle("pagingWizard");
+        bookSearchArgument.setFuzzy(true);
+        bookSearchArgument.setSorts(sorts);
+        bookSearchArgument.setSize(1);
+        try {
+            //WHEN reading the first page, where the typos would sort first, then every page after its cursor
+            SearchResult<Book> page = service.searchSlice(bookSearchArgument, CountMode.EXACT);
+            Long total = page.getTotal();
+            List<Book> paged = new ArrayList<>(page.getContent());
+            while (page.getNextCursor() != null && paged.size() <= books.size()) {
+                bookSearchArgument.setCursor(SearchCursor.decode(page.getNextCursor(), sorts));
+                page = service.searchSlice(bookSearchArgument, CountMode.EXACT);
+                paged.addAll(page.getContent());
+                //THEN every page tells the same total
+                assertThat(page.getTotal(), is(total));
+            }
+            //AND the pages hold the substring matches alone, as many as the total
+            assertThat(paged.stream().map(Book::getTitle).collect(Collectors.toList()), contains("pagingWizard", "pagingWizard"));
+            assertThat(total, is(2L));
+        } finally {
+            ReflectionTestUtils.setField(catalogIndex, "maxResolvedIds", 1000);
+            entityManager.getTransaction().begin();
+            entityManager.createQuery("delete from Book b where b.title like 'pagingWiz%'").executeUpdate();
+            entityManager.getTransaction().commit();
+            books.forEach(book -> service.afterDelete(book.getId(), book));
+        }
+    }
+
+    private static List<Long> ids(List<Book> books){
+        return books.stream().map(Book::getId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testBatchSearchFindsWhatEachSearchFinds(){
+        //GIVEN there are 6 valid books in database
+        //AND searches the index answers, one of them twice, one on a partial isbn left to the database and one by relevance
+        BookSearchArgument java = new BookSearchArgument();
+        java.setTitle("java");
+        java.setSorts(Sort.by(Sort.Direction.DESC, "price"));
+        java.setSize(2);
+        BookSearchArgument fiction = new BookSearchArgument();
+        fiction.setCategories(List.of(Category.FICTION));
+        fiction.setSorts(Sort.by(Sort.Direction.ASC, "publishedDate"));
+        fiction.setSize(10);
+        BookSearchArgument isbn = new BookSearchArgument();
+        isbn.setIsbn("978-0");
+        isbn.setSize(10);
+        BookSearchArgument relevance = new BookSearchArgument();
+        relevance.setTitle("java");
+        relevance.setSorts(Sort.by(BookSearchArgument.RELEVANCE));
+        relevance.setSize(1);
+        //WHEN running them as a batch
+        List<List<Book>> found = service.findBooksBySearchArguments(List.of(java, fiction, isbn, java, relevance));
+        //THEN each one finds the same books in the same order as on its own
+        assertThat(found.size(), is(5));
+        assertThat(ids(found.get(0)), contains(book2.getId(), book3.getId()));
+        assertThat(ids(found.get(1)), contains(book5.getId(), book6.getId()));
+        assertThat(ids(found.get(2)), is(ids(service.findBookBySearchArgument(isbn))));
+        assertThat(ids(found.get(3)), is(ids(found.get(0))));
+        assertThat(ids(found.get(4)), contains(book1.getId()));
+    }
+
+    @Test
+    public void testFindBooksByIdsKeepsRequestOrderAndReportsMissingIds(){
+        //GIVEN there are 6 valid books in database
+        //AND lookups chunked by 2 ids
+        ReflectionTestUtils.setField(service,"lookupBatchSize", 2);
+        //WHEN looking up ids out of order, with a duplicate and two ids without a book
+        BookLookup lookup = service.findBooksByIds(List.of(book5.getId(), 999L, book1.getId(), book3.getId(), book5.getId(), -1L, book2.getId()));
+        ReflectionTestUtils.setField(service,"lookupBatchSize", 100);
+        //THEN each book is returned once in the order of the request
+        assertThat(ids(lookup.getBooks()), contains(book5.getId(), book1.getId(), book3.getId(), book2.getId()));
+        assertThat(lookup.getBooks().get(0).getTitle(), is(book5.getTitle()));
+        //AND the missing ids are reported in that order too
+        assertThat(lookup.getMissing(), contains(999L, -1L));
+    }
+
+    @Test
+    public void testFacetsFromIndexAndDatabaseAgree(){
+        //GIVEN there are 6 valid books in database
+        //AND a service whose index is not built yet, so that it goes to the database
+        BookRepositoryService unindexed = new BookRepositoryService();
+        ReflectionTestUtils.setField(unindexed,"entityManager",entityManager);
+        ReflectionTestUtils.setField(unindexed,"catalogIndex",new BookCatalogIndex());
+        ReflectionTestUtils.setField(unindexed,"queryTemplates", queryTemplates);
+        //AND an bookSearchArgument for books from 60
+        BookSearchArgument bookSearchArgument = new BookSearchArgument();
+        bookSearchArgument.setPriceFrom(BigDecimal.valueOf(60));
+        //WHEN counting the facets both ways
+        SearchFacets indexed = service.facets(bookSearchArgument);
+        SearchFacets queried = unindexed.facets(bookSearchArgument);
+        //THEN the counts are those of the 5 matching books
+        assertThat(indexed.getTotal(), is(5L));
+        assertThat(indexed.getFormats(), is(Map.of("paper", 1L, "hardback", 2L, "kindle", 1L, "audio", 1L)));
+        assertThat(indexed.getCategories(), is(Map.of("fiction", 2L, "non-fiction", 3L)));
+        assertThat(bandCounts(indexed), contains(0L, 0L, 0L, 1L, 4L));
+        assertThat(indexed.getYears(), is(Map.of(2011, 1L, 2015, 1L, 2021, 1L, 2023, 2L)));
+        //AND the grouped query agrees with the index
+        assertThat(queried.getTotal(), is(indexed.getTotal()));
+        assertThat(queried.getFormats(), is(indexed.getFormats()));
+        assertThat(queried.getCategories(), is(indexed.getCategories()));
+        assertThat(bandCounts(queried), is(bandCounts(indexed)));
+        assertThat(queried.getYears(), is(indexed.getYears()));
+    }
+
+    @Test
+    public void testBulkSaveReportsRejectedBooksAndSavesTheOthers(){
+        //GIVEN there are 6 valid books in database
+        //AND a bulk service inserting chunks of 3 books
+        BookBulkService bulkService = bulkService(3);
+        //AND 7 books, one without a title and one with a title too long for its column
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            books.add(new Book("bulkBook" + i, "Bulk Author", Format.PAPER, BigDecimal.valueOf(10 + i).setScale(2),
+                    Category.FICTION, LocalDate.of(2020, Month.MAY, 1), "978-0-596-52068-7", i));
+        }
+        books.get(1).setTitle(" ");
+        books.get(4).setTitle("x".repeat(300));
+        //WHEN saving them in bulk
+        BulkResult result = bulkService.saveAll(books);
+        List<Book> saved = books.stream().filter(book -> book.getId() != null).collect(Collectors.toList());
+        try {
+            //THEN the 5 others are saved, the chunk with the rejected one falling back to one by one inserts
+            assertThat(result.getSaved(), is(5L));
+            assertThat(saved.size(), is(5));
+            assertThat(result.getFailures().stream().map(BulkResult.Failure::getIndex).collect(Collectors.toList()), contains(1L, 4L));
+            assertThat(result.getFailures().get(0).getErrors(), is(Map.of("title", "title is mandatory")));
+            //AND they are found by a search straight away
+            BookSearchArgument bookSearchArgument = new BookSearchArgument();
+            bookSearchArgument.setTitle("bulkBook");
+            assertThat(service.findBookBySearchArgument(bookSearchArgument).size(), is(5));
+        } finally {
+            entityManager.getTransaction().begin();
+            entityManager.createQuery("delete from Book b where b.title like 'bulkBook%'").executeUpdate();
+            entityManager.getTransaction().commit();
+            saved.forEach(book -> service.afterDelete(book.getId(), book));
+        }
+    }
+
+    @Test
+    public void testImportStreamsCsvAndNdjsonReportingRejectedLines(){
+        //GIVEN there are 6 valid books in database
+        //AND an import reading chunks of 2 lines on 2 workers, with at most 2 chunks pending
+        BookImportService importService = new BookImportService();
+        ReflectionTestUtils.setField(importService,"bookBulkService",bulkService(2));
+        ReflectionTestUtils.setField(importService,"objectMapper", Jackson2ObjectMapperBuilder.json().build());
+        ReflectionTestUtils.setField(importService,"workers",2);
+        ReflectionTestUtils.setField(importService,"maxPendingChunks",2);
+        importService.start();
+        //AND a csv catalog with quoted fields, an unknown format on line 3, stock without a price on line 4 and a blank line
+        String csv = "title,author,format,price,category,publishedDate,isbn,stockLevel\n"
+                + "importBook0,\"Horstmann, Cay\",paper,12.50,fiction,2020-05-01,978-0-596-52068-7,3\n"
+                + "importBook1,Someone,vinyl,12.50,fiction,2020-05-01,978-0-596-52068-7,3\n"
+                + "importBook2,Someone,paper,,fiction,2020-05-01,978-0-596-52068-7,2\n"
+                + "\"importBook3, \"\"vol\"\" 2\",B,kindle,9.99,non-fiction,2021-01-01,978-0-596-52068-7,0\n"
+                + "\n"
+                + "importBook4,C,audio,5,fiction,,978-0-596-52068-7,0\n";
+        //AND a newline delimited json catalog whose second line is cut short
+        String ndjson = "{\"title\":\"importBook5\",\"author\":\"D\",\"format\":\"hardback\",\"price\":20,\"category\":\"fiction\",\"stockLevel\":0}\n"
+                + "{\"title\":\n";
+        try {
+            //WHEN importing both
+            ImportProgress fromCsv = importService.importStream(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), ImportFormat.CSV);
+            ImportProgress fromNdjson = importService.importStream(new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8)), ImportFormat.NDJSON);
+            //THEN the valid rows are saved and the others reported by line number
+            assertThat(fromCsv.getStatus(), is(ImportProgress.Status.DONE));
+            assertThat(fromCsv.getRowsRead(), is(5L));
+            assertThat(fromCsv.getSaved(), is(3L));
+            assertThat(fromCsv.getFailures().stream().map(BulkResult.Failure::getIndex).collect(Collectors.toList()), containsInAnyOrder(3L, 4L));
+            assertThat(fromCsv.getFailures().stream().filter(failure -> failure.getIndex() == 4L).findFirst().get().getErrors(),
+                    hasEntry("stockLevel", "stockLevel should be zero if price is empty"));
+            assertThat(fromNdjson.getSaved(), is(1L));
+            assertThat(fromNdjson.getFailures().get(0).getIndex(), is(2L));
+            //AND the progress of each import can be looked up
+            assertThat(importService.progress(fromCsv.getId()).get(), is(fromCsv));
+            //AND the quoted fields are read whole
+            BookSearchArgument bookSearchArgument = new BookSearchArgument();
+            bookSearchArgument.setAuthor("Horstmann, Cay");
+            assertThat(service.findBookBySearchArgument(bookSearchArgument).get(0).getTitle(), is("importBook0"));
+            bookSearchArgument = new BookSearchArgument();
+            bookSearchArgument.setTitle("importBook3");
+            assertThat(service.findBookBySearchArgument(bookSearchArgument).get(0).getTitle(), is("importBook3, \"vol\" 2"));
+        } finally {
+            importService.stop();
+            List<Book> imported = entityManager.createQuery("select b from Book b where b.title like 'importBook%'", Book.class).getResultList();
+            entityManager.getTransaction().begin();
+            entityManager.createQuery("delete from Book b where b.title like 'importBook%'").executeUpdate();
+            entityManager.getTransaction().commit();
+            entityManager.clear();
+            imported.forEach(book -> service.afterDelete(book.getId(), book));
+        }
+    }
+
+    @Test
+    public void testExportWritesChecksummedChunksAndResumesAfterTheLastOne() throws Exception {
+        //GIVEN there are 6 valid books in database
+        //AND exports of 4 books per chunk
+        ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        BookExportService exportService = new BookExportService();
+        ReflectionTestUtils.setField(exportService,"bookRepositoryService",service);
+        ReflectionTestUtils.setField(exportService,"objectMapper",objectMapper);
+        ReflectionTestUtils.setField(exportService,"directory",Files.createTempDirectory("export"));
+        ReflectionTestUtils.setField(exportService,"chunkRows",4);
+        ReflectionTestUtils.setField(exportService,"bufferSize",64);
+        exportService.start();
+        try {
+            //WHEN exporting the catalog as csv
+            ExportManifest manifest = awaitExport(exportService, exportService.startExport(ExportFormat.CSV).getId());
+            //THEN it is written in 2 chunks of books in id order, each with the crc32c of its file
+            assertThat(manifest.getStatus(), is(ExportManifest.Status.DONE));
+            assertThat(manifest.getRows(), is(6L));
+            assertThat(manifest.getChunks().stream().map(ExportManifest.Chunk::getRows).collect(Collectors.toList()), contains(4L, 2L));
+            assertThat(manifest.getChunks().get(1).getFirstId(), is(book5.getId()));
+            for (int index = 0; index < 2; index++) {
+                byte[] bytes = Files.readAllBytes(exportService.chunk(manifest.getId(), index));
+                assertThat((long) bytes.length, is(manifest.getChunks().get(index).getBytes()));
+                assertThat(manifest.getChunks().get(index).getCrc32c(), is(crc32c(bytes)));
+            }
+            List<String> lines = Files.readAllLines(exportService.chunk(manifest.getId(), 1));
+            assertThat(lines.get(0), is("id,title,author,format,price,category,publishedDate,isbn,stockLevel"));
+            assertThat(lines.get(2), is(book6.getId() + ",Western Lane,Chetna Maroo,hardback,90.00,fiction,2023-12-30, 978-152-909-462-6,5"));
+            //AND an export cut short after its first chunk resumes after it, writing the same second chunk
+            Path manifestFile = exportService.chunk(manifest.getId(), 0).resolveSibling("manifest.json");
+            ExportManifest cutShort = objectMapper.readValue(manifestFile.toFile(), ExportManifest.class);
+            cutShort.setChunks(cutShort.getChunks().subList(0, 1));
+            cutShort.setStatus(ExportManifest.Status.FAILED);
+            objectMapper.writeValue(manifestFile.toFile(), cutShort);
+            exportService.resume(manifest.getId());
+            ExportManifest resumed = awaitExport(exportService, manifest.getId());
+            assertThat(resumed.getStatus(), is(ExportManifest.Status.DONE));
+            assertThat(resumed.getChunks().get(1).getCrc32c(), is(manifest.getChunks().get(1).getCrc32c()));
+            //AND the columnar format starts with its magic and the row count of the chunk
+            ExportManifest columnar = awaitExport(exportService, exportService.startExport(ExportFormat.COLUMNAR).getId());
+            ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(exportService.chunk(columnar.getId(), 0)));
+            assertThat(new String(header.array(), 0, 4, StandardCharsets.US_ASCII), is("BKC1"));
+            assertThat(header.getInt(4), is(4));
+            assertThat(header.getInt(8), is(9));
+        } finally {
+            exportService.stop();
+        }
+    }
+
+    @Test
+    public void testStockChangesAreConditionalSingleUpdates(){
+        //GIVEN there are 6 valid books in database, book4 with 5 in stock
+        //WHEN selling 3 of it
+        StockLevel sold = inTransaction(() -> service.decrementStock(book4.getId(), 3));
+        service.afterStockChange(sold);
+        //THEN 2 are left
+        assertThat(sold.getStockLevel(), is(2));
+        //AND it now comes first by stock level, the index order having followed
+        BookSearchArgument byStock = new BookSearchArgument();
+        byStock.setSorts(Sort.by(Sort.Order.asc("stockLevel")));
+        byStock.setSize(1);
+        assertThat(service.findBookBySearchArgument(byStock).get(0).getId(), is(book4.getId()));
+        //AND selling 3 more is refused without changing the level
+        try {
+            inTransaction(() -> service.decrementStock(book4.getId(), 3));
+            throw new AssertionError("selling more than the stock succeeded");
+        } catch (StockConflictException e) {
+            assertThat(e.getMessage(), is("insufficient stock for book " + book4.getId() + ": 3 requested, 2 available"));
+        }
+        //AND restocking brings the level back
+        StockLevel restocked = inTransaction(() -> service.incrementStock(book4.getId(), 3));
+        service.afterStockChange(restocked);
+        assertThat(restocked.getStockLevel(), is(5));
+        assertThat(entityManager.find(Book.class, book4.getId()).getStockLevel(), is(5));
+        //AND a book that does not exist is not found
+        try {
+            inTransaction(() -> service.incrementStock(999L, 1));
+            throw new AssertionError("restocking a missing book succeeded");
+        } catch (BookNotFoundException e) {
+            assertThat(e.getMessage(), is("Could not find book 999"));
+        }
+    }
+
+    @Test
+    public void testStockChangesMoveTheVersionAndTheCatalogETag(){
+        //GIVEN there are 6 valid books in database, book5 with 5 in stock
+        long version = entityManager.find(Book.class, book5.getId()).getVersion();
+        String catalogETag = service.catalogETag();
+        //WHEN selling one of it
+        StockLevel sold = inTransaction(() -> service.decrementStock(book5.getId(), 1));
+        service.afterStockChange(sold);
+        //THEN the book has a new version
+        assertThat(entityManager.find(Book.class, book5.getId()).getVersion(), is(version + 1));
+        //AND listings of the catalog a new etag
+        assertThat(service.catalogETag().equals(catalogETag), is(false));
+        assertThat(service.catalogETag().startsWith("W/\""), is(true));
+        //AND restocking moves the version again
+        StockLevel restocked = inTransaction(() -> service.incrementStock(book5.getId(), 1));
+        service.afterStockChange(restocked);
+        assertThat(restocked.getStockLevel(), is(5));
+        assertThat(entityManager.find(Book.class, book5.getId()).getVersion(), is(version + 2));
+    }
+
+    @Test
+    public void testReservationsHoldStockInMemoryAndWriteTheNetChangeBehind() throws IOException, InterruptedException {
+        //GIVEN there are 6 valid books in database, book3 with 10 in stock
+        StockReservationEngine engine = reservationEngine(Files.createTempDirectory("stock"));
+        try {
+            //WHEN holding 4 of it
+            StockHold hold = engine.reserve(book3.getId(), 4, null);
+            //THEN 6 are left on sale
+            assertThat(engine.available(book3.getId()).getStockLevel(), is(6));
+            //AND holding 7 more is refused
+            try {
+                engine.reserve(book3.getId(), 7, null);
+                throw new AssertionError("holding more than the stock succeeded");
+            } catch (StockConflictException e) {
+                assertThat(e.getMessage(), is("insufficient stock for book " + book3.getId() + ": 7 requested, 6 available"));
+            }
+            //AND releasing the hold puts its stock back on sale
+            engine.release(hold.getId());
+            assertThat(engine.available(book3.getId()).getStockLevel(), is(10));
+            //AND a confirmed hold is sold, reaching the database with the next flush only
+            engine.confirm(engine.reserve(book3.getId(), 3, null).getId());
+            assertThat(engine.available(book3.getId()).getStockLevel(), is(7));
+            assertThat(stockLevel(book3.getId()), is(10));
+            engine.flush(false);
+            assertThat(stockLevel(book3.getId()), is(7));
+            //AND a hold past its ttl expires, its stock back on sale
+            StockHold lapsing = engine.reserve(book3.getId(), 2, Duration.ofMillis(1));
+            Thread.sleep(5);
+            engine.expireHolds();
+            assertThat(engine.hold(lapsing.getId()).isPresent(), is(false));
+            assertThat(engine.available(book3.getId()).getStockLevel(), is(7));
+            try {
+                engine.confirm(lapsing.getId());
+                throw new AssertionError("confirming an expired hold succeeded");
+            } catch (HoldNotFoundException e) {
+                assertThat(e.getMessage(), is("Could not find stock hold " + lapsing.getId()));
+            }
+        } finally {
+            engine.restock(book3.getId(), 3);
+            engine.stop();
+        }
+        assertThat(stockLevel(book3.getId()), is(10));
+    }
+
+    @Test
+    public void testStockLevelSetOutrightReplacesTheCountedOneEvenWhenUnchanged() throws IOException {
+        //GIVEN there are 6 valid books in database, book3 with 10 in stock
+        StockReservationEngine engine = reservationEngine(Files.createTempDirectory("stock"));
+        ReflectionTestUtils.setField(service, "stockReservations", engine);
+        try {
+            //AND 2 of it sold in memory, not flushed yet
+            engine.sell(book3.getId(), 2);
+            assertThat(engine.available(book3.getId()).getStockLevel(), is(8));
+            //WHEN its stock level is set to the 10 the database already has
+            entityManager.clear();
+            Book book = entityManager.find(Book.class, book3.getId());
+            service.afterSave((Book) book.clone(), book, true);
+            //THEN the level set is the one on sale and the sale is not flushed on top of it
+            assertThat(engine.available(book3.getId()).getStockLevel(), is(10));
+            engine.flush(false);
+            assertThat(stockLevel(book3.getId()), is(10));
+            //AND a write leaving the stock level alone keeps the one counted in memory
+            engine.sell(book3.getId(), 1);
+            service.afterSave((Book) book.clone(), book, false);
+            assertThat(engine.available(book3.getId()).getStockLevel(), is(9));
+        } finally {
+            ReflectionTestUtils.setField(service, "stockReservations", null);
+            engine.restock(book3.getId(), 1);
+            engine.stop();
+        }
+        assertThat(stockLevel(book3.getId()), is(10));
+    }
+
+    @Test
+    public void testStockLevelSetWhileAFlushIsWritingAgreesWithTheDatabase() throws Exception {
+        //GIVEN there are 6 valid books in database, book3 with 10 in stock
+        StockReservationEngine engine = reservationEngine(Files.createTempDirectory("stock"));
+        //AND 2 of it sold in memory, not flushed yet
+        engine.sell(book3.getId(), 2);
+        //AND a flush about to write the sale when its stock level is set to 20, and reset while the flush is writing
+        EntityManagerFactory pausing = mock(EntityManagerFactory.class, delegatesTo(factory));
+        ReflectionTestUtils.setField(engine, "entityManagerFactory", pausing);
+        Thread[] reset = {null};
+        doAnswer(invocation -> {
+            if (reset[0] == null) {
+                inTransaction(() -> entityManager.createQuery("update Book b set b.stockLevel = 20, b.version = b.version + 1 where b.id = :id")
+                        .setParameter("id", book3.getId())
+                        .executeUpdate());
+                entityManager.clear();
+                Book saved = entityManager.find(Book.class, book3.getId());
+                reset[0] = new Thread(() -> engine.reset(saved));
+                reset[0].start();
+                for (int attempt = 0; attempt < 1000 && reset[0].isAlive() && reset[0].getState() != Thread.State.BLOCKED; attempt++) {
+                    Thread.sleep(1);
+                }
+            }
+            return factory.createEntityManager();
+        }).when(pausing).createEntityManager();
+        try {
+            //WHEN the flush applies the sale after the level set
+            engine.flush(false);
+            reset[0].join();
+            //THEN the reset waited for it, and what is on sale is what the database has
+            assertThat(stockLevel(book3.getId()), is(18));
+            assertThat(engine.available(book3.getId()).getStockLevel(), is(18));
+        } finally {
+            engine.stop();
+            inTransaction(() -> entityManager.createQuery("update Book b set b.stockLevel = 10, b.version = b.version + 1 where b.id = :id")
+                    .setParameter("id", book3.getId())
+                    .executeUpdate());
+            service.afterStockChange(new StockLevel(book3.getId(), 10));
+        }
+        assertThat(stockLevel(book3.getId()), is(10));
+    }
+
+    @Test
+    public void testReservationsRecoverFromTheJournalAfterACrash() throws IOException {
+        //GIVEN there are 6 valid books in database, book2 with 23 in stock
+        Path directory = Files.createTempDirectory("stock");
+        StockReservationEngine crashed = reservationEngine(directory);
+        //AND 2 of it held and 3 sold, none of it flushed
+        StockHold hold = crashed.reserve(book2.getId(), 2, null);
+        crashed.sell(book2.getId(), 3);
+        assertThat(stockLevel(book2.getId()), is(23));
+        //WHEN the engine stops without flushing and starts again
+        ((ScheduledExecutorService) ReflectionTestUtils.getField(crashed, "scheduler")).shutdownNow();
+        StockReservationEngine recovered = reservationEngine(directory);
+        //THEN the sale replayed from the journal is in the database
+        assertThat(stockLevel(book2.getId()), is(20));
+        //AND the hold is still there
+        assertThat(recovered.hold(hold.getId()).isPresent(), is(true));
+        assertThat(recovered.available(book2.getId()).getStockLevel(), is(18));
+        //AND starting once more does not apply the sale twice
+        recovered.stop();
+        StockReservationEngine restarted = reservationEngine(directory);
+        try {
+            assertThat(stockLevel(book2.getId()), is(20));
+            assertThat(restarted.available(book2.getId()).getStockLevel(), is(18));
+            restarted.confirm(hold.getId());
+            restarted.flush(false);
+            assertThat(stockLevel(book2.getId()), is(18));
+        } finally {
+            restarted.restock(book2.getId(), 5);
+            restarted.stop();
+        }
+        assertThat(stockLevel(book2.getId()), is(23));
+    }
+
+    private static StockReservationEngine reservationEngine(Path directory) throws IOException {
+        StockReservationEngine engine = new StockReservationEngine();
+        ReflectionTestUtils.setField(engine, "entityManagerFactory", factory);
+        ReflectionTestUtils.setField(engine, "catalogIndex", ReflectionTestUtils.getField(service, "catalogIndex"));
+        ReflectionTestUtils.setField(engine, "searchCache", ReflectionTestUtils.getField(service, "searchCache"));
+        ReflectionTestUtils.setField(engine, "directory", directory);
+        //flushed by the tests only
+        ReflectionTestUtils.setField(engine, "flushInterval", Duration.ofHours(1));
+        engine.start();
+        return engine;
+    }
+
+    private static int stockLevel(Long id) {
+        entityManager.clear();
+        return entityManager.find(Book.class, id).getStockLevel();
+    }
+
+    //the service is not proxied here, so its transactions are opened by hand on the shared entity manager
+    private static <T> T inTransaction(Supplier<T> change){
+        entityManager.getTransaction().begin();
+        try {
+            T changed = change.get();
+            entityManager.getTransaction().commit();
+            return changed;
+        } finally {
+            if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+        }
+    }
+
+    private static ExportManifest awaitExport(BookExportService exportService, String id) throws InterruptedException {
+        for (int attempt = 0; attempt < 100 && exportService.manifest(id).getStatus() == ExportManifest.Status.RUNNING; attempt++) {
+            Thread.sleep(50);
+        }
+        return exportService.manifest(id);
+    }
+
+    private static String crc32c(byte[] bytes){
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        return String.format("%08x", crc.getValue());
+    }
+
+    private static BookBulkService bulkService(int chunkSize){
+        BookBulkService bulkService = new BookBulkService();
+        ReflectionTestUtils.setField(bulkService,"entityManagerFactory",factory);
+        ReflectionTestUtils.setField(bulkService,"validator", Validation.buildDefaultValidatorFactory().getValidator());
+        ReflectionTestUtils.setField(bulkService,"bookRepositoryService",service);
+        ReflectionTestUtils.setField(bulkService,"chunkSize",chunkSize);
+        ReflectionTestUtils.setField(bulkService,"jdbcBatchSize",2);
+        return bulkService;
+    }
+
+    private static List<Long> bandCounts(SearchFacets facets){
+        return facets.getPrices().stream().map(SearchFacets.PriceBand::getCount).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testFilterPlansAreIndexBacked(){
+        //GIVEN a service whose index is not built yet, so that every filter goes to the database
+        BookRepositoryService unindexed = new BookRepositoryService();
+        ReflectionTestUtils.setField(unindexed,"entityManager",entityManager);
+        ReflectionTestUtils.setField(unindexed,"catalogIndex",new BookCatalogIndex());
+        ReflectionTestUtils.setField(unindexed,"searchCache", new BookSearchCache(new SimpleMeterRegistry(), 100, Duration.ofMinutes(1)));
+        ReflectionTestUtils.setField(unindexed,"queryTemplates", queryTemplates);
+        //AND the filter combinations the search sends to the database without any text filter
+        BookSearchArgument byCategoryAndPrice = new BookSearchArgument();
+        byCategoryAndPrice.setCategories(List.of(Category.FICTION, Category.NON_FICTION));
+        byCategoryAndPrice.setPriceFrom(BigDecimal.TEN);
+        byCategoryAndPrice.setPriceTo(BigDecimal.valueOf(100));
+        BookSearchArgument byFormatAndDate = new BookSearchArgument();
+        byFormatAndDate.setFormats(List.of(Format.PAPER));
+        byFormatAndDate.setPublicationDateStart(LocalDate.of(2000, Month.JANUARY, 1));
+        BookSearchArgument byIsbn = new BookSearchArgument();
+        byIsbn.setIsbn("9780195105193");
+        //WHEN h2 plans the sql hibernate generates for them
+        //THEN each one is answered through its index rather than a table scan
+        assertThat(plan(() -> unindexed.findBookBySearchArgument(byCategoryAndPrice)), containsString("IDX_BOOK_CATEGORY_PRICE"));
+        assertThat(plan(() -> unindexed.findBookBySearchArgument(byFormatAndDate)), containsString("IDX_BOOK_FORMAT_PUBLISHED_DATE"));
+        assertThat(plan(() -> unindexed.findBookBySearchArgument(byIsbn)), containsString("IDX_BOOK_ISBN13"));
+        //AND prefix matches on the upper case copy of the title use its index, as the suggestions do
+        assertThat(plan(() -> unindexed.suggest(SuggestField.TITLE, "COREJ", 10), "COREJ%"), containsString("IDX_BOOK_TITLE_UPPER"));
+        //AND the copy is kept in step with the title
+        assertThat(entityManager.find(Book.class, book5.getId()).getTitleUpper(), is("HARRYPOTTER"));
+    }
+
+    //explains the last select the action sent, its first parameters bound to the values given and the others to nulls
+    //of their types, a like being planned as a range only once its pattern is known
+    private static String plan(Runnable action, Object... values){
+        RecordingStatementInspector.STATEMENTS.clear();
+        action.run();
+        String sql = RecordingStatementInspector.STATEMENTS.stream()
+                .filter(statement -> statement.startsWith("select"))
+                .reduce((first, second) -> second).orElseThrow();
+        return entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement explain = connection.prepareStatement("explain " + sql)) {
+                ParameterMetaData parameters = explain.getParameterMetaData();
+                for (int i = 1; i <= parameters.getParameterCount(); i++) {
+                    if (i <= values.length) {
+                        explain.setObject(i, values[i - 1]);
+                    } else {
+                        explain.setNull(i, parameters.getParameterType(i));
+                    }
+                }
+                try (ResultSet plan = explain.executeQuery()) {
+                    plan.next();
+                    return plan.getString(1);
+                }
+            }
+        });
+    }
+
+    //set as the statement inspector of the persistence unit, keeping the sql hibernate generates
+    public static class RecordingStatementInspector implements StatementInspector {
+
+        static final List<String> STATEMENTS = new CopyOnWriteArrayList<>();
+
+        @Override
+        public String inspect(String sql) {
+            STATEMENTS.add(sql);
+            return sql;
+        }
+    }
+
     @AfterAll
-    public static void shutdown(){
+    public static void shutdown() throws IOException {
+        luceneIndex.close();
         entityManager.close();
     }
 